@@ -0,0 +1,41 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Helper for implementing ReplacementPolicies. Handles the hit/miss counters. */
+public abstract class AbstractReplacementPolicy implements ReplacementPolicy {
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long h = hits.get(), m = misses.get();
+        if (h + m == 0) return 0;
+        return (double) h / (h + m);
+    }
+
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + "(hits=" + getHits() + ", misses=" + getMisses() + ")";
+    }
+}
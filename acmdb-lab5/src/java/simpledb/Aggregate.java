@@ -5,9 +5,18 @@ import java.util.*;
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * single column. The child is read a batch at a time.
+ * <p>
+ * Groups are kept in a hash table until it outgrows a memory budget; rows
+ * of groups that do not fit are then partitioned to disk and aggregated a
+ * partition at a time, see {@link HashAggregator}.
+ * <p>
+ * If the child returns the tuples of each group together, as when it is in
+ * order of the group field, the aggregate can instead stream: it holds the
+ * state of one group, and returns it as soon as a tuple of another group
+ * comes. The first group is then returned after reading only its tuples.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
 
@@ -15,8 +24,23 @@ public class Aggregate extends Operator {
     private int afield;
     private int gfield;
     private Aggregator.Op aop;
-    private Aggregator aggregator;
+    private HashAggregator aggregator;
+    private boolean streaming;
+    // the name of the aggregate column if it is not named after aop and
+    // the aggregate field, as in the final aggregate of a parallel one
+    private String aggregateName;
     private DbIterator iter;
+    private transient TupleBatch out;
+
+    // when streaming: the input, the batch being read and the position in
+    // its selection, and the key and state of the current group
+    private transient BatchIterator in;
+    private transient TupleBatch batch;
+    private transient int pos;
+    private transient boolean done;
+    private transient AggregateHashTable group;
+    private transient int groupInt;
+    private transient String groupString;
 
     /**
      * Constructor.
@@ -37,6 +61,28 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+	    this(child, afield, gfield, aop, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use; SC_AVG reads the counts
+     *            of its sums from the column after afield
+     * @param streaming
+     *            true if the child returns the tuples of each group
+     *            together, so groups can be returned as they end
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop,
+            boolean streaming) {
 	    this.child = child;
 	    this.afield = afield;
 	    this.gfield = gfield;
@@ -45,6 +91,21 @@ public class Aggregate extends Operator {
             aggregator = new IntegerAggregator(gfield,gfield==Aggregator.NO_GROUPING?null:child.getTupleDesc().getFieldType(gfield),afield,aop);
 	    else
             aggregator = new StringAggregator(gfield,gfield==Aggregator.NO_GROUPING?null:child.getTupleDesc().getFieldType(gfield),afield,aop);
+	    this.streaming = streaming;
+    }
+
+    /**
+     * @return true if there is grouping and the tuples of each group of the
+     *         child come together, because the child is sorted on the group
+     *         field, so the aggregate can stream
+     */
+    public static boolean isGroupedOn(DbIterator child, int gfield) {
+        return gfield != Aggregator.NO_GROUPING && SortMergeJoin.isSortedOn(child, gfield);
+    }
+
+    /** @return true if groups are returned as the child is read */
+    public boolean isStreaming() {
+        return streaming;
     }
 
     /**
@@ -88,6 +149,27 @@ public class Aggregate extends Operator {
 	    return aop;
     }
 
+    /**
+     * @return the number of bytes the groups may take before rows of new
+     *         groups are written to disk
+     */
+    public long getMemoryBudget() {
+        return aggregator.getMemoryBudget();
+    }
+
+    /**
+     * Set the number of bytes the groups may take before rows of new groups
+     * are written to disk; it takes effect at the next open.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        aggregator.setMemoryBudget(memoryBudget);
+    }
+
+    /** @return true if the aggregate has written rows to disk since it was opened */
+    public boolean hasSpilled() {
+        return aggregator.hasSpilled();
+    }
+
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
 	return aop.toString();
     }
@@ -96,26 +178,138 @@ public class Aggregate extends Operator {
 	    TransactionAbortedException {
         super.open();
 	    child.open();
-	    while (child.hasNext())
-            aggregator.mergeTupleIntoGroup(child.next());
+	    if (streaming) {
+	        startStream();
+	        return;
+	    }
+	    aggregator.clear();
+	    BatchIterator in = BatchingIterator.of(child);
+	    TupleBatch b;
+	    while ((b = in.nextBatch()) != null)
+            aggregator.mergeBatchIntoGroup(b);
 	    iter = aggregator.iterator();
 	    iter.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns an aggregate that computes part of this one over part of the
+     * input: running this one over the union of the results of partial
+     * aggregates, with {@link #finalOf}, gives the result of this one over
+     * the union of their inputs.
+     */
+    public Aggregate partialOf(DbIterator part) {
+        Aggregator.Op op = aop == Aggregator.Op.AVG ? Aggregator.Op.SUM_COUNT : aop;
+        return new Aggregate(part, afield, gfield, op);
+    }
+
+    /**
+     * Returns the aggregate that puts together the results of partial
+     * aggregates from {@link #partialOf}, read from the given iterator, into
+     * the result of this one, with the same TupleDesc as this one.
+     */
+    public Aggregate finalOf(DbIterator partials) {
+        Aggregator.Op op;
+        switch (aop) {
+            case AVG: op = Aggregator.Op.SC_AVG; break;
+            case COUNT: op = Aggregator.Op.SUM; break;
+            default: op = aop; break;
+        }
+        boolean grouped = gfield != Aggregator.NO_GROUPING;
+        Aggregate a = new Aggregate(partials, grouped ? 1 : 0,
+                grouped ? 0 : Aggregator.NO_GROUPING, op);
+        a.aggregateName = getTupleDesc().getFieldName(grouped ? 1 : 0);
+        return a;
+    }
+
+    private void startStream() {
+        in = BatchingIterator.of(child);
+        batch = null;
+        pos = 0;
+        done = false;
+        group = new AggregateHashTable(null, aop);
+    }
+
+    /**
+     * Fills a batch with the groups that end in the next part of the child,
+     * reading it a batch at a time; a group is known to end when a row with
+     * another key comes, or the child ends.
+     */
+    private TupleBatch nextGroups() throws TransactionAbortedException, DbException {
+        if (out == null) out = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        out.clear();
+        boolean strings = gfield != Aggregator.NO_GROUPING
+                && child.getTupleDesc().getFieldType(gfield) == Type.STRING_TYPE;
+        int[] values = null;
+        int[] counts = null;
+        while (!done && !out.isFull()) {
+            if (batch == null || pos >= batch.numSelected()) {
+                batch = in.nextBatch();
+                pos = 0;
+                if (batch == null) {
+                    done = true;
+                    if (group.size() > 0) emitGroup();
+                    break;
+                }
+                values = null;
+            }
+            if (values == null && aop != Aggregator.Op.COUNT) {
+                values = batch.intColumn(afield);
+                if (aop == Aggregator.Op.SC_AVG) counts = batch.intColumn(afield + 1);
+            }
+            int r = batch.selected(pos++);
+            if (group.size() > 0 && gfield != Aggregator.NO_GROUPING
+                    && (strings ? !batch.getString(gfield, r).equals(groupString)
+                                : batch.getInt(gfield, r) != groupInt))
+                emitGroup();
+            if (group.size() == 0) {
+                group.insert(batch, 0, r);
+                if (gfield != Aggregator.NO_GROUPING) {
+                    if (strings) groupString = batch.getString(gfield, r);
+                    else groupInt = batch.getInt(gfield, r);
+                }
+            }
+            group.merge(0, values == null ? 0 : values[r], counts == null ? 1 : counts[r]);
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    /** Adds the current group to the output and starts a new one. */
+    private void emitGroup() {
+        int row = out.addRow();
+        int col = 0;
+        if (gfield != Aggregator.NO_GROUPING) {
+            if (groupString != null) out.setString(col++, row, groupString);
+            else out.setInt(col++, row, groupInt);
+        }
+        out.setInt(col, row, group.result(0));
+        if (aop == Aggregator.Op.SUM_COUNT) out.setInt(col + 1, row, group.count(0));
+        group.clear();
+    }
+
+    /**
+     * Returns the next batch of result tuples. If there is a group by field,
+     * then the first field is the field by which we are grouping, and the
+     * second field is the result of computing the aggregate, If there is no
+     * group by field, then the result tuple should contain one field
+     * representing the result of the aggregate. Should return null if there
+     * are no more tuples.
      */
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (iter.hasNext())
-            return iter.next();
-        return null;
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (streaming) return nextGroups();
+        if (out == null) out = new TupleBatch(iter.getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        out.clear();
+        while (!out.isFull() && iter.hasNext())
+            out.addTuple(iter.next());
+        return out.size() == 0 ? null : out;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        if (streaming) {
+            child.rewind();
+            startStream();
+            return;
+        }
         iter.rewind();
     }
 
@@ -128,15 +322,42 @@ public class Aggregate extends Operator {
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
      * given in the constructor, and child_td is the TupleDesc of the child
-     * iterator.
+     * iterator. SUM_COUNT has two aggregate columns, the sum and the count.
+     * The final aggregate of a parallel one is named as the one it stands
+     * for.
      */
     public TupleDesc getTupleDesc() {
-        return child.getTupleDesc();
+        TupleDesc td = child.getTupleDesc();
+        String name = td.getFieldName(afield);
+        ArrayList<Type> types = new ArrayList<Type>();
+        ArrayList<String> names = new ArrayList<String>();
+        if (gfield != Aggregator.NO_GROUPING) {
+            types.add(td.getFieldType(gfield));
+            names.add(td.getFieldName(gfield));
+        }
+        if (aop == Aggregator.Op.SUM_COUNT) {
+            types.add(Type.INT_TYPE);
+            names.add(nameOfAggregatorOp(Aggregator.Op.SUM) + "(" + name + ")");
+            types.add(Type.INT_TYPE);
+            names.add(nameOfAggregatorOp(Aggregator.Op.COUNT) + "(" + name + ")");
+        } else {
+            types.add(Type.INT_TYPE);
+            names.add(aggregateName != null ? aggregateName
+                    : nameOfAggregatorOp(aop) + "(" + name + ")");
+        }
+        return new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
     }
 
     public void close() {
 	    super.close();
-	    iter.close();
+	    out = null;
+	    if (iter != null) iter.close();
+	    iter = null;
+	    in = null;
+	    batch = null;
+	    group = null;
+	    groupString = null;
+	    aggregator.clear();
 	    child.close();
     }
 
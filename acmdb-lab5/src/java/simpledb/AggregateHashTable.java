@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * An AggregateHashTable holds the groups of a hash aggregation: the key of
+ * each group and the running state of its aggregate, in parallel primitive
+ * arrays indexed by group number, and an index from key to group.
+ * <p>
+ * The state of a group is a long accumulator, which is the sum, minimum or
+ * maximum of its values depending on the operator, and a long count. The
+ * aggregate is only computed from them when a result is read, so AVG costs
+ * an addition per row rather than a division. SUM_COUNT returns both the
+ * sum and the count, and SC_AVG merges such pairs into an average, so AVG
+ * can be computed in parts and the parts put together.
+ * <p>
+ * The index is an open addressing table with linear probing, like the one
+ * of {@link JoinHashTable}, whose hash function it shares. Integer keys are
+ * never boxed; string keys are kept with their hash codes.
+ */
+public class AggregateHashTable {
+
+    private static final int INITIAL_GROUPS = 256;
+
+    private final Type keyType;
+    private final Aggregator.Op op;
+
+    // per group: its key, the hash of the key, and its state
+    private int[] intKeys;
+    private String[] stringKeys;
+    private int[] hashes;
+    private long[] acc;
+    private long[] count;
+    private int numGroups;
+    // total length of the string keys, for memoryUsage
+    private long stringChars;
+
+    // the index: the group in each slot, or -1
+    private int[] slots;
+    private int mask;
+
+    /**
+     * @param keyType the type of the group key, or null if there is no
+     *            grouping and the table holds a single group
+     * @param op the aggregate to compute
+     */
+    public AggregateHashTable(Type keyType, Aggregator.Op op) {
+        this.keyType = keyType;
+        this.op = op;
+        // without grouping there is only ever one group, and no index
+        int n = keyType == null ? 1 : INITIAL_GROUPS;
+        if (keyType == Type.INT_TYPE)
+            intKeys = new int[n];
+        else if (keyType == Type.STRING_TYPE)
+            stringKeys = new String[n];
+        hashes = new int[n];
+        acc = new long[n];
+        count = new long[n];
+        allocate(keyType == null ? 1 : 2 * n);
+    }
+
+    private void allocate(int n) {
+        mask = n - 1;
+        slots = new int[n];
+        Arrays.fill(slots, -1);
+    }
+
+    /** @return the number of groups in the table */
+    public int size() {
+        return numGroups;
+    }
+
+    /** Remove all groups. */
+    public void clear() {
+        numGroups = 0;
+        stringChars = 0;
+        Arrays.fill(slots, -1);
+    }
+
+    /**
+     * Returns an estimate of the number of bytes of heap the table takes,
+     * counting the arrays it has allocated and the strings it refers to.
+     */
+    public long memoryUsage() {
+        long perGroup = 4 + 8 + 8;
+        long strings = 0;
+        if (keyType == Type.INT_TYPE) {
+            perGroup += 4;
+        } else if (keyType == Type.STRING_TYPE) {
+            perGroup += 8;
+            strings = 48L * numGroups + 2 * stringChars;
+        }
+        return perGroup * acc.length + strings + 4L * slots.length;
+    }
+
+    /**
+     * Returns the group whose key is the given field of a row of a batch, or
+     * -1 if there is none. Without grouping the column is ignored.
+     */
+    public int find(TupleBatch b, int col, int row) {
+        if (keyType == null) return numGroups > 0 ? 0 : -1;
+        int h = JoinHashTable.hash(b, col, row);
+        int s = h & mask;
+        if (keyType == Type.INT_TYPE) {
+            int key = b.getInt(col, row);
+            for (int g; (g = slots[s]) >= 0; s = (s + 1) & mask)
+                if (intKeys[g] == key) return g;
+        } else {
+            String key = b.getString(col, row);
+            for (int g; (g = slots[s]) >= 0; s = (s + 1) & mask)
+                if (hashes[g] == h && stringKeys[g].equals(key)) return g;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a group whose key is the given field of a row of a batch, which
+     * must not be in the table yet; its state is that of an empty group.
+     *
+     * @return the new group
+     */
+    public int insert(TupleBatch b, int col, int row) {
+        if (numGroups == acc.length) grow();
+        int g = numGroups++;
+        acc[g] = op == Aggregator.Op.MIN ? Long.MAX_VALUE
+                : op == Aggregator.Op.MAX ? Long.MIN_VALUE : 0;
+        count[g] = 0;
+        if (keyType == null) return g;
+        if (keyType == Type.INT_TYPE) {
+            intKeys[g] = b.getInt(col, row);
+        } else {
+            stringKeys[g] = b.getString(col, row);
+            stringChars += stringKeys[g].length();
+        }
+        hashes[g] = JoinHashTable.hash(b, col, row);
+        if (2 * numGroups > slots.length) rehash();
+        else place(g);
+        return g;
+    }
+
+    private void place(int g) {
+        int s = hashes[g] & mask;
+        while (slots[s] >= 0) s = (s + 1) & mask;
+        slots[s] = g;
+    }
+
+    private void rehash() {
+        allocate(2 * slots.length);
+        for (int g = 0; g < numGroups; g++) place(g);
+    }
+
+    private void grow() {
+        int n = 2 * acc.length;
+        if (intKeys != null) intKeys = Arrays.copyOf(intKeys, n);
+        if (stringKeys != null) stringKeys = Arrays.copyOf(stringKeys, n);
+        hashes = Arrays.copyOf(hashes, n);
+        acc = Arrays.copyOf(acc, n);
+        count = Arrays.copyOf(count, n);
+    }
+
+    /**
+     * Merges the values of some rows into a group.
+     *
+     * @param value the sum, minimum or maximum of the values, as the
+     *            operator of the table needs
+     * @param rows the number of rows; for SC_AVG, the sum of their counts
+     */
+    public void merge(int g, long value, long rows) {
+        switch (op) {
+            case MIN:
+                acc[g] = Math.min(acc[g], value);
+                break;
+            case MAX:
+                acc[g] = Math.max(acc[g], value);
+                break;
+            case SUM:
+            case AVG:
+            case SUM_COUNT:
+            case SC_AVG:
+                acc[g] += value;
+                break;
+            default:
+                break;
+        }
+        count[g] += rows;
+    }
+
+    /** @return the number of rows merged into a group */
+    public int count(int g) {
+        return (int) count[g];
+    }
+
+    /** @return the aggregate of a group; for SUM_COUNT, its sum */
+    public int result(int g) {
+        switch (op) {
+            case COUNT:
+                return (int) count[g];
+            case AVG:
+            case SC_AVG:
+                return (int) (acc[g] / count[g]);
+            default:
+                return (int) acc[g];
+        }
+    }
+
+    /**
+     * Sets the fields of a tuple to the key of a group, if there is
+     * grouping, followed by its aggregate, and for SUM_COUNT its count.
+     */
+    public void fillTuple(int g, Tuple t) {
+        int i = 0;
+        if (keyType == Type.INT_TYPE)
+            t.setField(i++, new IntField(intKeys[g]));
+        else if (keyType == Type.STRING_TYPE)
+            t.setField(i++, new StringField(stringKeys[g], Type.STRING_LEN));
+        t.setField(i, new IntField(result(g)));
+        if (op == Aggregator.Op.SUM_COUNT)
+            t.setField(i + 1, new IntField(count(g)));
+    }
+}
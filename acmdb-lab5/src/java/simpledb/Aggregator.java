@@ -10,9 +10,9 @@ public interface Aggregator extends Serializable {
     static final int NO_GROUPING = -1;
 
     /**
-     * SUM_COUNT and SC_AVG will
-     * only be used in lab7, you are not required
-     * to implement them until then.
+     * SUM_COUNT and SC_AVG split AVG in two, so a parallel plan can
+     * aggregate parts of its input separately and then put the parts
+     * together.
      * */
     public enum Op implements Serializable {
         MIN, MAX, SUM, AVG, COUNT,
@@ -76,6 +76,15 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the live rows of a batch into the aggregate, with the same
+     * result as merging them one tuple at a time.
+     *
+     * @param b the batch, whose rows have the TupleDesc of the tuples
+     *          passed to mergeTupleIntoGroup
+     */
+    public void mergeBatchIntoGroup(TupleBatch b);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -0,0 +1,19 @@
+package simpledb;
+
+/**
+ * A DbIterator that can also return its tuples a batch at a time. Callers
+ * should use either nextBatch or hasNext/next between an open (or rewind)
+ * and the next close (or rewind), not both.
+ *
+ * @see TupleBatch
+ * @see BatchingIterator for using a plain DbIterator as a BatchIterator
+ */
+public interface BatchIterator extends DbIterator {
+
+    /**
+     * Returns the next batch of tuples, which has at least one live row, or
+     * null if there are no more tuples. The batch may be reused by the
+     * next call.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
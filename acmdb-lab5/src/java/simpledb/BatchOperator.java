@@ -0,0 +1,40 @@
+package simpledb;
+
+/**
+ * Abstract class for operators that work a batch at a time. Subclasses
+ * implement <code>nextBatch</code>; tuple at a time callers are served by
+ * taking the live rows of those batches apart.
+ * <p>
+ * Subclasses that override <code>open</code>, <code>close</code> or
+ * <code>rewind</code> should call the method of this class.
+ */
+public abstract class BatchOperator extends Operator implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient TupleBatch current;
+    private transient int pos;
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (current == null || pos >= current.numSelected()) {
+            current = nextBatch();
+            pos = 0;
+            if (current == null) return null;
+        }
+        return current.getTuple(current.selected(pos++));
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        current = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        current = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        current = null;
+    }
+}
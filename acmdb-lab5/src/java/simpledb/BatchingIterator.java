@@ -0,0 +1,62 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Makes a plain DbIterator usable as a BatchIterator by packing the tuples
+ * it returns into batches. All other methods go to the wrapped iterator, so
+ * an operator can open and close its child as before and read it through
+ * this wrapper.
+ */
+public class BatchingIterator implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DbIterator child;
+    private transient TupleBatch batch;
+
+    public BatchingIterator(DbIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * @return it if it already is a BatchIterator, or a BatchingIterator
+     *         wrapping it
+     */
+    public static BatchIterator of(DbIterator it) {
+        if (it instanceof BatchIterator) return (BatchIterator) it;
+        return new BatchingIterator(it);
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null) batch = new TupleBatch(child.getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        batch.clear();
+        while (!batch.isFull() && child.hasNext())
+            batch.addTuple(child.next());
+        return batch.size() == 0 ? null : batch;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return child.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        return child.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,81 @@
+package simpledb;
+
+/**
+ * A BloomFilter is a compact, approximate set of keys, checked against a
+ * field of the rows of batches: a row whose field is in the set always
+ * passes, and one whose field is not passes only with a small probability.
+ * <p>
+ * {@link HashEquiJoin} builds one over the keys of its left input and
+ * pushes it down into the scan of its right input, which then drops most
+ * of the rows that would find no match before they go any further up the
+ * plan. Keys are added and checked by their hash, as {@link JoinHashTable}
+ * computes it, so the filter works for both types of fields.
+ */
+public class BloomFilter {
+
+    /** Number of bits per key, which gives about 1% false positives. */
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 4;
+
+    private final int field;
+    private final long[] bits;
+    private final int mask;
+
+    /**
+     * Create an empty filter.
+     *
+     * @param field the field of the rows the filter is checked against
+     * @param expectedKeys the number of keys that will be added
+     */
+    public BloomFilter(int field, int expectedKeys) {
+        this.field = field;
+        long n = Math.max(64, (long) expectedKeys * BITS_PER_KEY);
+        int size = (int) Math.min(1L << 30, Long.highestOneBit(n - 1) << 1);
+        this.bits = new long[size >>> 6];
+        this.mask = size - 1;
+    }
+
+    /** @return the field of the rows the filter is checked against */
+    public int getField() {
+        return field;
+    }
+
+    /** Add a key, given by its hash code from {@link JoinHashTable#hash}. */
+    public void add(int hash) {
+        int step = step(hash);
+        for (int i = 0; i < NUM_HASHES; i++, hash += step)
+            bits[(hash & mask) >>> 6] |= 1L << hash;
+    }
+
+    /**
+     * @return false if the key with the given hash code is surely not in
+     *         the filter
+     */
+    public boolean mightContain(int hash) {
+        int step = step(hash);
+        for (int i = 0; i < NUM_HASHES; i++, hash += step)
+            if ((bits[(hash & mask) >>> 6] & (1L << hash)) == 0) return false;
+        return true;
+    }
+
+    // the bits of a key are picked by double hashing; the step is odd, so
+    // the bits differ
+    private static int step(int hash) {
+        return (Integer.rotateLeft(hash, 16) * 0x85EBCA6B) | 1;
+    }
+
+    /**
+     * Drops the rows of a batch whose field is surely not in the filter
+     * from its selection vector.
+     */
+    public void filter(TupleBatch b) {
+        int[] sel = b.selectionBuffer();
+        int n = b.numSelected();
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            int r = b.selected(i);
+            if (mightContain(JoinHashTable.hash(b, field, r))) sel[m++] = r;
+        }
+        b.setSelection(sel, m);
+    }
+}
@@ -0,0 +1,50 @@
+package simpledb;
+
+/**
+ * A BufferAccessStrategy gives a large sequential scan a small private ring
+ * of buffer pool frames. Pages the scan has to read from disk are put into
+ * the ring; once the ring is full, the next page read by the scan replaces
+ * the oldest page of the ring instead of evicting a page of the shared
+ * working set. Pages that are already resident are used in place and are not
+ * treated as recently used, so the scan cannot make them look hot.
+ * <p>
+ * A page read through a ring is handed back to the normal replacement policy
+ * as soon as any other request touches it.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferAccessStrategy)
+ * @see BufferPool#newBulkReadStrategy()
+ */
+public class BufferAccessStrategy {
+
+    /** Largest ring handed out by {@link BufferPool#newBulkReadStrategy()}. */
+    public static final int MAX_RING_SIZE = 16;
+
+    private final PageId[] ring;
+    private int next;
+
+    /**
+     * @param ringSize the number of frames this strategy may recycle
+     */
+    public BufferAccessStrategy(int ringSize) {
+        if (ringSize < 1) throw new IllegalArgumentException("ring size must be positive");
+        this.ring = new PageId[ringSize];
+        this.next = 0;
+    }
+
+    /** @return the number of frames in the ring */
+    public int getRingSize() {
+        return ring.length;
+    }
+
+    /**
+     * Put pid into the next slot of the ring.
+     *
+     * @return the page that used to occupy that slot, or null if the slot was empty
+     */
+    synchronized PageId add(PageId pid) {
+        PageId old = ring[next];
+        ring[next] = pid;
+        next = (next + 1) % ring.length;
+        return old;
+    }
+}
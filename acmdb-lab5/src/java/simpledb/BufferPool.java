@@ -1,12 +1,11 @@
 package simpledb;
 
-import sun.util.resources.cldr.so.CalendarData_so_ET;
-
-import javax.xml.crypto.Data;
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -16,6 +15,9 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is split into shards by the hash of the PageId, each with
+ * its own lock, and pages are read from disk while no shard lock is held.
  * 
  * @Threadsafe, all fields are final
  */
@@ -25,8 +27,44 @@ public class BufferPool {
 
     private static int pageSize = PAGE_SIZE;
 
+    /** Default number of shards the page table is split into. */
+    public static final int DEFAULT_SHARDS = 16;
+
+    /**
+     * A buffer frame. The page is null while the frame is being loaded from
+     * disk; other threads asking for the same page wait on the shard until
+     * the loading thread fills it in. A frame with pins > 0 is in use by
+     * getPage and is never chosen for eviction.
+     */
+    private static class Frame {
+        // written under the shard lock, read without it by canEvict
+        volatile Page page;
+        volatile int pins;
+        volatile boolean loading;
+
+        Frame(Page page) {
+            this.page = page;
+        }
+    }
+
+    /**
+     * One partition of the page table. Frames are added, removed and pinned
+     * only while holding the shard's monitor; the map is concurrent so the
+     * replacement policy can look at it without taking the lock.
+     */
+    private static class Shard {
+        final ConcurrentHashMap<PageId, Frame> frames = new ConcurrentHashMap<PageId, Frame>();
+    }
+
     private LockManager lockManager;
-    private ConcurrentHashMap<PageId, Page> pages;
+    private final Shard[] shards;
+    // frames in all shards, including the ones still being loaded
+    private final AtomicInteger resident;
+    // serializes evictions, so concurrent misses do not overshoot numpages
+    private final Object evictionLock = new Object();
+    private ReplacementPolicy policy;
+    // pages read through a BufferAccessStrategy, mapped to the ring that may recycle them
+    private ConcurrentHashMap<PageId, BufferAccessStrategy> ringPages;
     private int numpages;
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
@@ -34,14 +72,74 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, evicting in
+     * least-recently-used order.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new LRUPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and asks the
+     * given policy which page to evict when it is full.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy, e.g. {@link LRUPolicy},
+     *               {@link ClockPolicy}, {@link LRUKPolicy} or {@link TwoQPolicy}
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages, policy, DEFAULT_SHARDS);
+    }
+
+    /**
+     * Creates a BufferPool whose page table is split into numShards
+     * independently locked partitions. A page lives in the shard picked by
+     * the hash of its PageId; lookups of pages in different shards never
+     * contend, and disk reads are done without holding any shard lock.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy
+     * @param numShards number of page table partitions
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy, int numShards) {
+        if (numShards < 1) throw new IllegalArgumentException("number of shards must be positive");
         numpages=numPages;
-        pages = new ConcurrentHashMap<PageId, Page>();
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) shards[i] = new Shard();
+        resident = new AtomicInteger(0);
         lockManager = new LockManager();
+        this.policy = policy;
+        ringPages = new ConcurrentHashMap<PageId, BufferAccessStrategy>();
+    }
+
+    /** @return the replacement policy of this pool, which also keeps its hit/miss counters */
+    public ReplacementPolicy getReplacementPolicy() {
+        return policy;
+    }
+
+    /** @return the maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return numpages;
+    }
+
+    /** @return the lock manager, e.g. to choose how deadlock victims are picked */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /** @return the number of partitions of the page table */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /**
+     * Create a ring for a large sequential read, sized to an eighth of this
+     * pool but at most {@link BufferAccessStrategy#MAX_RING_SIZE} frames.
+     */
+    public BufferAccessStrategy newBulkReadStrategy() {
+        return new BufferAccessStrategy(Math.max(1, Math.min(BufferAccessStrategy.MAX_RING_SIZE, numpages / 8)));
     }
     
     public static int getPageSize() {
@@ -58,10 +156,16 @@ public class BufferPool {
     	BufferPool.pageSize = PAGE_SIZE;
     }
 
+    private Shard shardOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
-     * transaction.
+     * transaction, until the lock is released or a deadlock is detected.
      * <p>
      * The retrieved page should be looked up in the buffer pool.  If it
      * is present, it should be returned.  If it is not present, it should
@@ -73,26 +177,98 @@ public class BufferPool {
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
-    public synchronized Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        int waitcnt = 0;
-        while (!lockManager.getlock(tid,pid,perm)) {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but read it through the given strategy: a miss recycles the oldest frame
+     * of the strategy's ring rather than evicting a shared page, and a hit
+     * does not count as a recent use.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param strategy the ring to read through, or null for normal access
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm,
+            BufferAccessStrategy strategy) throws TransactionAbortedException, DbException {
+        lockManager.acquire(tid, pid, perm);
+        Shard shard = shardOf(pid);
+        while (true) {
+            Frame frame;
+            boolean miss = false;
+            synchronized (shard) {
+                frame = shard.frames.get(pid);
+                if (frame == null) {
+                    frame = new Frame(null);
+                    frame.loading = true;
+                    shard.frames.put(pid, frame);
+                    miss = true;
+                }
+                frame.pins++;
+                while (frame.loading && !miss) {
+                    try {
+                        shard.wait();
+                    } catch (InterruptedException ignore) {}
+                }
+            }
             try {
-                wait(100);
-            } catch (InterruptedException ignore) {}
-            waitcnt ++;
-            if (waitcnt>10) {
-                throw new TransactionAbortedException();
+                if (miss) return load(shard, frame, pid, strategy);
+                Page page = frame.page;
+                // the loading thread failed, or the page was discarded meanwhile: look again
+                if (page == null) continue;
+                policy.recordHit();
+                if (strategy == null) {
+                    ringPages.remove(pid);
+                    policy.recordAccess(pid);
+                }
+                return page;
+            } finally {
+                synchronized (shard) {
+                    frame.pins--;
+                }
             }
         }
-        if (pages.containsKey(pid)) return pages.get(pid);
-        else {
+    }
+
+    /**
+     * Fill in a frame that the calling thread has just put into the shard.
+     * The page is read with no lock held; if the read fails the frame is
+     * dropped again.
+     */
+    private Page load(Shard shard, Frame frame, PageId pid, BufferAccessStrategy strategy)
+            throws DbException {
+        policy.recordMiss();
+        Page newpage = null;
+        boolean reserved = false;
+        try {
+            if (strategy != null) {
+                PageId old = strategy.add(pid);
+                if (old != null && ringPages.remove(old, strategy)) removeFrame(old, true, false);
+                ringPages.put(pid, strategy);
+            }
+            reserveFrame(pid);
+            reserved = true;
             DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page newpage = dbFile.readPage(pid);
-            if (pages.size()>=numpages) evictPage();
-            pages.put(pid,newpage);
-            return newpage;
+            newpage = dbFile.readPage(pid);
+        } finally {
+            synchronized (shard) {
+                frame.page = newpage;
+                frame.loading = false;
+                if (newpage != null) {
+                    policy.recordAccess(pid);
+                } else {
+                    shard.frames.remove(pid);
+                    if (reserved) resident.decrementAndGet();
+                    if (strategy != null) ringPages.remove(pid, strategy);
+                }
+                shard.notifyAll();
+            }
         }
+        return newpage;
     }
 
     /**
@@ -105,7 +281,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {
-        lockManager.eraseTP(new LockManager.TP(tid,pid,Permissions.READ_WRITE));
+        lockManager.release(tid,pid);
     }
 
     /**
@@ -119,7 +295,7 @@ public class BufferPool {
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        return lockManager.queryTP(tid,p)!=null;
+        return lockManager.getPermissions(tid,p)!=null;
     }
 
     /**
@@ -131,19 +307,18 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        ArrayList<LockManager.TP> tmp = (ArrayList<LockManager.TP>) lockManager.query_tid(tid).clone();
         if (!commit) {
             ArrayList<Page> dirtypages = new ArrayList<>();
-            for (Page page:pages.values()) {
+            for (Page page:residentPages()) {
                 TransactionId id = page.isDirty();
-                LockManager.TP tp = lockManager.queryTP(tid,page.getId());
-                if (tp!=null) {
-                    if ((id!=null && id.equals(tid))||tp.permissions.equals(Permissions.READ_WRITE)) dirtypages.add(page);
+                Permissions perm = lockManager.getPermissions(tid,page.getId());
+                if (perm!=null) {
+                    if ((id!=null && id.equals(tid))||perm.equals(Permissions.READ_WRITE)) dirtypages.add(page);
                 }
             }
-            for (Page page:dirtypages) pages.remove(page.getId());
+            for (Page page:dirtypages) discardPage(page.getId());
         }   else flushPages(tid);
-        for (LockManager.TP tp:tmp) lockManager.eraseTP(tp);
+        lockManager.releaseAll(tid);
     }
 
     /**
@@ -167,13 +342,7 @@ public class BufferPool {
         ArrayList<Page> tmp = f.insertTuple(tid,t);
         for (Page page:tmp) {
             page.markDirty(true,tid);
-            if (pages.containsKey(page.getId())) {
-                pages.remove(page.getId());
-                pages.put(page.getId(),page);
-            }   else {
-                if (pages.size()>=numpages) evictPage();
-                pages.put(page.getId(),page);
-            }
+            cachePage(page);
         }
     }
 
@@ -196,13 +365,7 @@ public class BufferPool {
         ArrayList<Page> tmp = f.deleteTuple(tid,t);
         for (Page page:tmp) {
             page.markDirty(true,tid);
-            if (pages.containsKey(page.getId())) {
-                pages.remove(page.getId());
-                pages.put(page.getId(),page);
-            }   else {
-                if (pages.size()>=numpages) evictPage();
-                pages.put(page.getId(),page);
-            }
+            cachePage(page);
         }
     }
 
@@ -212,7 +375,7 @@ public class BufferPool {
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        for (Page page:pages.values()) {
+        for (Page page:residentPages()) {
             flushPage(page.getId());
         }
     }
@@ -225,8 +388,42 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
-        pages.remove(pid);
+    public void discardPage(PageId pid) {
+        removeFrame(pid, false, false);
+    }
+
+    /**
+     * Put a page dirtied by insertTuple/deleteTuple into the pool, replacing
+     * the cached version of it if there is one.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        Shard shard = shardOf(pid);
+        boolean reserved = false;
+        while (true) {
+            synchronized (shard) {
+                Frame frame = shard.frames.get(pid);
+                while (frame != null && frame.loading) {
+                    try {
+                        shard.wait();
+                    } catch (InterruptedException ignore) {}
+                    frame = shard.frames.get(pid);
+                }
+                if (frame != null || reserved) {
+                    if (frame != null) {
+                        frame.page = page;
+                        if (reserved) resident.decrementAndGet();
+                    } else {
+                        shard.frames.put(pid, new Frame(page));
+                    }
+                    ringPages.remove(pid);
+                    policy.recordAccess(pid);
+                    return;
+                }
+            }
+            reserveFrame(pid);
+            reserved = true;
+        }
     }
 
     /**
@@ -234,7 +431,8 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
-        Page page = pages.get(pid);
+        Frame frame = shardOf(pid).frames.get(pid);
+        Page page = frame == null ? null : frame.page;
         if (page != null && page.isDirty()!=null) {
             DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
             page.markDirty(false,null);
@@ -245,28 +443,109 @@ public class BufferPool {
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
-        for (Page page: pages.values()) {
+        for (Page page: residentPages()) {
             TransactionId id = page.isDirty();
             if (id != null && id.equals(tid)) {
                 page.markDirty(false,tid);
                 PageId pid = page.getId();
-                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pages.get(pid));
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            }
+        }
+    }
+
+    /** @return the pages currently held by all shards, not counting frames still being loaded */
+    private ArrayList<Page> residentPages() {
+        ArrayList<Page> res = new ArrayList<Page>();
+        for (Shard shard : shards) {
+            for (Frame frame : shard.frames.values()) {
+                Page page = frame.page;
+                if (page != null) res.add(page);
             }
         }
+        return res;
+    }
+
+    /**
+     * Make room for one more frame, evicting pages until the pool is below
+     * its capacity, and count the new frame as resident.
+     *
+     * @param pid the page the frame is for
+     */
+    private void reserveFrame(PageId pid) throws DbException {
+        synchronized (evictionLock) {
+            while (resident.get() >= numpages) evictPage(pid);
+            resident.incrementAndGet();
+        }
+    }
+
+    /** A page can be evicted if it is loaded, clean and not pinned by getPage. */
+    private boolean canEvict(PageId pid) {
+        Frame frame = shardOf(pid).frames.get(pid);
+        if (frame == null) return true;
+        Page page = frame.page;
+        return !frame.loading && frame.pins == 0 && page != null && page.isDirty()==null;
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Drop the frame of pid from its shard. Frames that are still being
+     * loaded are left alone; their loader installs a fresh copy from disk.
+     *
+     * @param evicting if true, only remove the frame if it is unpinned and clean
+     * @param victim true if the replacement policy chose pid, rather than
+     *               the page being discarded
+     * @return true if a frame was removed
+     */
+    private boolean removeFrame(PageId pid, boolean evicting, boolean victim) {
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            Frame frame = shard.frames.get(pid);
+            if (frame == null) {
+                // forget pages the policy still tracks after they were dropped
+                policy.recordRemoval(pid, victim);
+                return false;
+            }
+            if (frame.loading) return false;
+            if (evicting && !canEvict(pid)) return false;
+            shard.frames.remove(pid);
+            resident.decrementAndGet();
+            ringPages.remove(pid);
+            policy.recordRemoval(pid, victim);
+            return true;
+        }
+    }
+
+    /**
+     * Discards the page chosen by the replacement policy from the buffer pool.
+     * Only clean pages that no thread has pinned are considered, since we run
+     * in NO STEAL mode.
+     */
+    private void evictPage(PageId loading) throws DbException {
+        PageId victim = policy.chooseVictim(this::canEvict);
+        if (victim == null) throw new DbException(noVictimMessage(loading));
+        removeFrame(victim, true, true);
+    }
+
+    /**
+     * Describes why no page could be evicted, from counts of the frames
+     * that are dirty, pinned by getPage or still being loaded; a frame may
+     * be counted for more than one reason.
+     *
+     * @param pid the page being made room for, whose frame is not counted
      */
-    private synchronized  void evictPage() throws DbException {
-        for (Page page:pages.values()) {
-            if (page.isDirty()==null) {
-                discardPage(page.getId());
-                return;
+    private String noVictimMessage(PageId pid) {
+        int dirty = 0, pinned = 0, loading = 0;
+        for (Shard shard : shards) {
+            for (Map.Entry<PageId, Frame> e : shard.frames.entrySet()) {
+                if (e.getKey().equals(pid)) continue;
+                Frame frame = e.getValue();
+                Page page = frame.page;
+                if (frame.loading) loading++;
+                if (frame.pins > 0) pinned++;
+                if (page != null && page.isDirty() != null) dirty++;
             }
         }
-        throw new DbException("");
+        return "no page in the buffer pool can be evicted: " + dirty + " dirty, "
+                + pinned + " pinned, " + loading + " loading";
     }
 
 }
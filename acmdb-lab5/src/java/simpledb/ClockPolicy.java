@@ -0,0 +1,70 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a circular list
+ * of frames, each with a reference bit that is set on every access. The hand
+ * sweeps the frames, clearing set bits, and stops at the first evictable page
+ * whose bit is already clear.
+ */
+public class ClockPolicy extends AbstractReplacementPolicy {
+
+    private final ArrayList<PageId> frames;
+    private final ArrayList<Boolean> referenced;
+    private final HashMap<PageId, Integer> slotOf;
+    private final ArrayList<Integer> freeSlots;
+    private int hand;
+
+    public ClockPolicy() {
+        frames = new ArrayList<PageId>();
+        referenced = new ArrayList<Boolean>();
+        slotOf = new HashMap<PageId, Integer>();
+        freeSlots = new ArrayList<Integer>();
+        hand = 0;
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced.set(slot, true);
+            return;
+        }
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.remove(freeSlots.size() - 1);
+            frames.set(slot, pid);
+            referenced.set(slot, true);
+        } else {
+            slot = frames.size();
+            frames.add(pid);
+            referenced.add(true);
+        }
+        slotOf.put(pid, slot);
+    }
+
+    public synchronized void recordRemoval(PageId pid, boolean evicted) {
+        Integer slot = slotOf.remove(pid);
+        if (slot == null) return;
+        frames.set(slot, null);
+        referenced.set(slot, false);
+        freeSlots.add(slot);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        int n = frames.size();
+        // two full turns: the first may only clear reference bits
+        for (int step = 0; step < 2 * n; step++) {
+            if (hand >= n) hand = 0;
+            int slot = hand++;
+            PageId pid = frames.get(slot);
+            if (pid == null) continue;
+            if (referenced.get(slot)) {
+                referenced.set(slot, false);
+                continue;
+            }
+            if (evictable.canEvict(pid)) return pid;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,173 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A DbFileChannel keeps the file backing a DbFile open for the lifetime of
+ * the DbFile, so page reads and writes do not open and close the file every
+ * time. All I/O is positional, so concurrent readers and writers of
+ * different pages need no lock around a shared file pointer.
+ * <p>
+ * The channel is opened on first use. If it gets closed underneath its
+ * users (a thread interrupted during I/O closes a FileChannel for all of
+ * them), it is reopened by the next operation.
+ * <p>
+ * Reads can optionally be served from a read-only memory mapping of the
+ * file instead of read system calls, which pays off for read-mostly files
+ * that fit in memory. Writes always go through the channel; the mapping
+ * sees them through the page cache. When a read goes past the end of the
+ * mapping because the file has grown, the file is mapped again. Files
+ * larger than 2GB are read through the channel.
+ */
+public class DbFileChannel {
+
+    private final File f;
+    private volatile FileChannel channel;
+    private volatile boolean memoryMapped;
+    // read-only mapping of the start of the file, replaced when the file grows
+    private volatile MappedByteBuffer map;
+
+    /**
+     * @param f the file to read and write; created on first use if it does not exist
+     */
+    public DbFileChannel(File f) {
+        this.f = f;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if (c != null && c.isOpen()) return c;
+        synchronized (this) {
+            c = channel;
+            if (c == null || !c.isOpen()) {
+                c = new RandomAccessFile(f, "rw").getChannel();
+                channel = c;
+            }
+            return c;
+        }
+    }
+
+    /** @return true if reads are served from a memory mapping of the file */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * @param memoryMapped true to serve reads from a memory mapping of the
+     *        file, false to read through the channel
+     */
+    public synchronized void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) map = null;
+    }
+
+    /**
+     * @return a mapping covering [position, position + length), or null if
+     *         the file is too short or too large to be mapped there
+     */
+    private MappedByteBuffer mapping(long position, int length) throws IOException {
+        long end = position + length;
+        MappedByteBuffer m = map;
+        if (m != null && end <= m.capacity()) return m;
+        synchronized (this) {
+            m = map;
+            if (m != null && end <= m.capacity()) return m;
+            long size = size();
+            if (end > size || size > Integer.MAX_VALUE) return null;
+            m = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map = m;
+            return m;
+        }
+    }
+
+    /**
+     * Read data.length bytes starting at position, or as many as there are
+     * before the end of the file.
+     *
+     * @return the number of bytes read
+     */
+    public int read(byte[] data, long position) throws IOException {
+        if (memoryMapped) {
+            MappedByteBuffer m = mapping(position, data.length);
+            if (m != null) {
+                // a duplicate has its own position, so readers do not interfere
+                ByteBuffer view = m.duplicate();
+                view.position((int) position);
+                view.get(data);
+                return data.length;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (true) {
+            try {
+                FileChannel c = channel();
+                while (buf.hasRemaining()) {
+                    if (c.read(buf, position + buf.position()) < 0) break;
+                }
+                return buf.position();
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread, retry on a fresh channel
+            }
+        }
+    }
+
+    /** Write all of data starting at position, growing the file if needed. */
+    public void write(byte[] data, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (true) {
+            try {
+                FileChannel c = channel();
+                while (buf.hasRemaining()) c.write(buf, position + buf.position());
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread, retry on a fresh channel
+            }
+        }
+    }
+
+    /**
+     * Append data at the end of the file; appends through the same
+     * DbFileChannel are serialized.
+     *
+     * @return the position data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long position = size();
+        write(data, position);
+        return position;
+    }
+
+    /** @return the current size of the file in bytes */
+    public long size() throws IOException {
+        while (true) {
+            try {
+                return channel().size();
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread, retry on a fresh channel
+            }
+        }
+    }
+
+    /** Close the file; the next operation opens it again. */
+    public synchronized void close() throws IOException {
+        // the mapping is released once it is garbage collected
+        map = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An Exchange is a point in a plan where rows move between threads, which
+ * lets the parts of a plan below it run in parallel: {@link Gather} runs
+ * copies of a plan fragment in worker threads and returns all of their
+ * rows, and {@link Shuffle} sends the rows of some inputs to several
+ * outputs, by the hash of a field or to all of them, so the fragments that
+ * read those outputs can each work on their own part of the rows.
+ * <p>
+ * Rows are copied into new batches before they cross over, as the batches
+ * of an iterator are reused, and go through bounded queues, so a fast
+ * producer waits for its consumer rather than filling memory.
+ * <p>
+ * All workers run as the transaction of the plan, so they take the locks
+ * the plan would take in one thread; {@link LockManager} lets threads of
+ * a transaction share its locks. An Exchange waits for its workers to stop
+ * when it is closed, so no page is read for a transaction once its plan is
+ * closed and it can complete.
+ */
+public abstract class Exchange extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of batches a queue between threads holds. */
+    static final int QUEUE_BATCHES = 4;
+    private static final long POLL_MILLIS = 10;
+
+    // workers block on queues, so a pool of fixed size could be taken up by
+    // the producers of an exchange whose consumer waits for another one
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "exchange-worker-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /** @return a short description of this exchange, for query plans */
+    public abstract String getName();
+
+    /** Runs a task on a thread of the pool that exchange workers run on. */
+    static void execute(Runnable task) {
+        POOL.execute(task);
+    }
+
+    /**
+     * Splits a plan that scans a HeapFile, possibly through Filters, into n
+     * plans that each scan a part of its pages through the same filters.
+     *
+     * @return the plans, or null if the plan is not such a scan
+     */
+    public static DbIterator[] split(DbIterator plan, int n) {
+        ArrayList<Predicate> filters = new ArrayList<Predicate>();
+        DbIterator it = plan;
+        while (it instanceof Filter) {
+            filters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        if (!(it instanceof SeqScan)) return null;
+        SeqScan scan = (SeqScan) it;
+        if (!(Database.getCatalog().getDatabaseFile(scan.getTableId()) instanceof HeapFile))
+            return null;
+        DbIterator[] parts = new DbIterator[n];
+        for (int i = 0; i < n; i++) {
+            SeqScan part = new SeqScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias());
+            for (Predicate p : scan.getPredicates()) part.addPredicate(p);
+            part.setPartition(i, n);
+            DbIterator top = part;
+            for (int j = filters.size() - 1; j >= 0; j--)
+                top = new Filter(filters.get(j), top);
+            parts[i] = top;
+        }
+        return parts;
+    }
+
+    /**
+     * A group of worker threads: the first failure of any of them is kept
+     * for the consumer, and cancelling them makes them stop at their next
+     * batch.
+     */
+    static class Workers {
+        private CountDownLatch done = new CountDownLatch(0);
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        private volatile boolean cancelled;
+
+        /** Starts the tasks, each on a thread of its own; called once. */
+        void start(Runnable[] tasks) {
+            done = new CountDownLatch(tasks.length);
+            for (final Runnable task : tasks) {
+                execute(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /** Records a failure of a worker and stops the others. */
+        void fail(Throwable e) {
+            failure.compareAndSet(null, e);
+            cancelled = true;
+        }
+
+        /** Rethrows the failure of a worker, if any. */
+        void check() throws DbException, TransactionAbortedException {
+            Throwable e = failure.get();
+            if (e == null) return;
+            if (e instanceof TransactionAbortedException) throw (TransactionAbortedException) e;
+            if (e instanceof DbException) throw (DbException) e;
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            if (e instanceof Error) throw (Error) e;
+            throw new DbException("exchange worker failed: " + e);
+        }
+
+        /** Stops the workers and waits until all of them have returned. */
+        void cancel() {
+            cancelled = true;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A bounded queue of batches from some producers to one consumer, which
+     * ends once every producer is done. A consumer that stops reading
+     * closes it, and producers then drop what they put into it.
+     */
+    static class Channel {
+        private final BlockingQueue<TupleBatch> queue = new ArrayBlockingQueue<TupleBatch>(QUEUE_BATCHES);
+        private final AtomicInteger producers;
+        private final TupleBatch end;
+        private volatile boolean closed;
+        private boolean ended;
+
+        Channel(TupleDesc td, int producers) {
+            this.producers = new AtomicInteger(producers);
+            this.end = new TupleBatch(td, 1);
+        }
+
+        /**
+         * Queues a batch, waiting for room unless the channel is closed or
+         * the workers cancelled.
+         */
+        void put(TupleBatch b, Workers workers) throws InterruptedException {
+            while (!closed && !queue.offer(b, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (workers.isCancelled()) return;
+            }
+        }
+
+        /**
+         * Called by each producer when it is done, whether it failed or not.
+         * The last one queues the end, which the consumer must get even if
+         * the workers were cancelled by a failure, unless it has stopped
+         * reading.
+         */
+        void producerDone() {
+            if (producers.decrementAndGet() > 0) return;
+            while (!closed) {
+                try {
+                    if (queue.offer(end, POLL_MILLIS, TimeUnit.MILLISECONDS)) return;
+                } catch (InterruptedException ignore) {}
+            }
+        }
+
+        /**
+         * @return the next batch, or null once all producers are done
+         * @throws DbException if a producer failed or the thread was interrupted
+         * @throws TransactionAbortedException if a producer was aborted
+         */
+        TupleBatch take(Workers workers) throws DbException, TransactionAbortedException {
+            if (ended) return null;
+            TupleBatch b;
+            try {
+                b = queue.take();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for exchange workers");
+            }
+            workers.check();
+            if (b == end) {
+                ended = true;
+                return null;
+            }
+            return b;
+        }
+
+        /**
+         * Stop reading; what producers put from then on is dropped. Must be
+         * called before the workers are cancelled, which waits for them.
+         */
+        void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+}
@@ -3,13 +3,16 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select. It works a
+ * batch at a time, dropping rows that fail the predicate from the selection
+ * vector of the child's batches.
  */
-public class Filter extends Operator {
+public class Filter extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
     private Predicate p;
     private DbIterator child;
+    private transient BatchIterator in;
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -35,6 +38,7 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
+        in = BatchingIterator.of(child);
         super.open();
     }
 
@@ -44,23 +48,25 @@ public class Filter extends Operator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
         child.rewind();
     }
 
     /**
-     * AbstractDbIterator.readNext implementation. Iterates over tuples from the
-     * child operator, applying the predicate to them and returning those that
-     * pass the predicate (i.e. for which the Predicate.filter() returns true.)
+     * BatchIterator.nextBatch implementation. Reads batches from the child
+     * operator, applying the predicate to their rows and returning the first
+     * one in which some row passes the predicate (i.e. for which the
+     * Predicate.filter() returns true.)
      * 
-     * @return The next tuple that passes the filter, or null if there are no
-     *         more tuples
-     * @see Predicate#filter
+     * @return The next batch with a row that passes the filter, or null if
+     *         there are no more tuples
+     * @see Predicate#filter(TupleBatch)
      */
-    protected Tuple fetchNext() throws NoSuchElementException,
-            TransactionAbortedException, DbException {
-        while (child.hasNext()) {
-            Tuple tmp = child.next();
-            if (p.filter(tmp)) return tmp;
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch b;
+        while ((b = in.nextBatch()) != null) {
+            p.filter(b);
+            if (b.numSelected() > 0) return b;
         }
         return null;
     }
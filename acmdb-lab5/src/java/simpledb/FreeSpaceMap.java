@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A FreeSpaceMap records how many free tuple slots each page of a HeapFile
+ * has, so an insert can go straight to a page with room instead of reading
+ * and locking every page of the table.
+ * <p>
+ * The counts are hints: a caller must check the page itself once it has
+ * locked it and report what it found. Pages whose count is not known (for
+ * example pages written before the map existed) are treated as possibly
+ * having room until they have been looked at.
+ * <p>
+ * The map is kept in a side file next to the heap file, with two bytes per
+ * page holding the number of free slots plus one; zero, which is also what
+ * a gap in a sparse file reads as, means unknown. Only counts of pages that
+ * reach the disk and of pages found full are written through, so the file
+ * reflects the heap file on disk, not uncommitted changes.
+ */
+public class FreeSpaceMap {
+
+    /** Free slot count of a page that has not been looked at. */
+    public static final int UNKNOWN = -1;
+
+    private final DbFileChannel file;
+    // free slots per page, UNKNOWN if not known
+    private int[] free;
+    private int numPages;
+    // pages that are known or assumed to have a free slot
+    private final BitSet withSpace;
+    // all pages below this one are known to be full
+    private int firstCandidate;
+
+    /**
+     * Load the map of a heap file, or start an empty one.
+     *
+     * @param f the side file holding the map
+     * @param numPages the current number of pages of the heap file
+     */
+    public FreeSpaceMap(File f, int numPages) throws IOException {
+        this.file = new DbFileChannel(f);
+        this.free = new int[Math.max(16, numPages)];
+        this.withSpace = new BitSet();
+        this.numPages = 0;
+        this.firstCandidate = 0;
+        grow(numPages);
+
+        byte[] data = new byte[2 * numPages];
+        int read = file.read(data, 0);
+        for (int i = 0; i + 1 < read; i += 2) {
+            int v = ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+            if (v != 0) setFree(i / 2, v - 1);
+        }
+    }
+
+    /** @return the number of pages the map covers */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /** Extend the map to numPages pages; the new pages are unknown. */
+    public synchronized void grow(int numPages) {
+        if (numPages <= this.numPages) return;
+        if (numPages > free.length) free = Arrays.copyOf(free, Math.max(numPages, 2 * free.length));
+        Arrays.fill(free, this.numPages, numPages, UNKNOWN);
+        withSpace.set(this.numPages, numPages);
+        this.numPages = numPages;
+    }
+
+    /** @return the lowest page that may have a free slot, or -1 if all pages are full */
+    public synchronized int findPage() {
+        int p = withSpace.nextSetBit(firstCandidate);
+        firstCandidate = p < 0 ? numPages : p;
+        return p;
+    }
+
+    /** @return the number of free slots of a page, or -1 if it is not known */
+    public synchronized int getFree(int pageNo) {
+        return pageNo < numPages ? free[pageNo] : UNKNOWN;
+    }
+
+    /** Record the number of free slots of a page, or UNKNOWN, in memory only. */
+    public synchronized void setFree(int pageNo, int freeSlots) {
+        if (pageNo >= numPages) grow(pageNo + 1);
+        free[pageNo] = freeSlots;
+        withSpace.set(pageNo, freeSlots != 0);
+        if (freeSlots != 0 && pageNo < firstCandidate) firstCandidate = pageNo;
+    }
+
+    /** Record the number of free slots of a page, or UNKNOWN, in memory and in the side file. */
+    public void persist(int pageNo, int freeSlots) throws IOException {
+        setFree(pageNo, freeSlots);
+        int v = freeSlots + 1;
+        file.write(new byte[] { (byte) (v >> 8), (byte) v }, 2L * pageNo);
+    }
+
+    /** Close the side file; it is reopened by the next write. */
+    public void close() throws IOException {
+        file.close();
+    }
+}
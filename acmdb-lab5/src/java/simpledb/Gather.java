@@ -0,0 +1,195 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Gather is an {@link Exchange} that runs some plan fragments, each in a
+ * worker thread of its own, and returns the rows of all of them.
+ * <p>
+ * If the fragments each return their rows in order of a field, Gather can
+ * merge them into one ordered stream, as in the last pass of a merge sort:
+ * OrderBy fragments then generate their sorted runs in parallel. Otherwise
+ * rows come in no particular order.
+ */
+public class Gather extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator[] children;
+    // the field to merge on, or -1 if rows are not merged
+    private final int orderByField;
+    private final boolean asc;
+
+    // one channel shared by all fragments, or one per fragment when merging
+    private transient Channel[] channels;
+    private transient Workers workers;
+    // when merging: the current batch of each channel and the next row in
+    // it, and the channels that have rows left, by their next row
+    private transient TupleBatch[] heads;
+    private transient int[] pos;
+    private transient PriorityQueue<Integer> merge;
+    private transient TupleBatch out;
+
+    /**
+     * @param children the plan fragments to run, which must all have the
+     *            same TupleDesc
+     */
+    public Gather(DbIterator[] children) {
+        this(children, -1, true);
+    }
+
+    /**
+     * @param children the plan fragments to run, which must all have the
+     *            same TupleDesc and each return their rows in order of a
+     *            field
+     * @param orderByField the field the rows of the fragments are in order of
+     * @param asc true if the order is ascending
+     */
+    public Gather(DbIterator[] children, int orderByField, boolean asc) {
+        this.children = children;
+        this.orderByField = orderByField;
+        this.asc = asc;
+    }
+
+    public String getName() {
+        if (orderByField < 0) return "gather(" + children.length + ")";
+        return "gather(" + children.length + ", merge on "
+                + getTupleDesc().getFieldName(orderByField) + ")";
+    }
+
+    /** @return true if the rows of the fragments are merged in order */
+    public boolean isMerging() {
+        return orderByField >= 0;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return children[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        start();
+        super.open();
+    }
+
+    private void start() {
+        final TupleDesc td = getTupleDesc();
+        channels = new Channel[isMerging() ? children.length : 1];
+        for (int i = 0; i < channels.length; i++)
+            channels[i] = new Channel(td, isMerging() ? 1 : children.length);
+        final Workers w = new Workers();
+        Runnable[] tasks = new Runnable[children.length];
+        for (int i = 0; i < children.length; i++) {
+            final DbIterator child = children[i];
+            final Channel channel = channels[isMerging() ? i : 0];
+            tasks[i] = new Runnable() {
+                public void run() {
+                    try {
+                        child.open();
+                        BatchIterator in = BatchingIterator.of(child);
+                        TupleBatch b;
+                        TupleBatch copy = null;
+                        while (!w.isCancelled() && (b = in.nextBatch()) != null) {
+                            for (int j = 0; j < b.numSelected(); j++) {
+                                if (copy == null) copy = new TupleBatch(td, TupleBatch.DEFAULT_CAPACITY);
+                                copy.addRow(b, b.selected(j));
+                                if (copy.isFull()) {
+                                    channel.put(copy, w);
+                                    copy = null;
+                                }
+                            }
+                        }
+                        if (copy != null) channel.put(copy, w);
+                    } catch (Throwable e) {
+                        w.fail(e);
+                    } finally {
+                        child.close();
+                        channel.producerDone();
+                    }
+                }
+            };
+        }
+        workers = w;
+        heads = null;
+        merge = null;
+        w.start(tasks);
+    }
+
+    private void stop() {
+        if (workers == null) return;
+        for (Channel c : channels) c.close();
+        workers.cancel();
+        workers = null;
+        channels = null;
+        heads = null;
+        merge = null;
+    }
+
+    public void close() {
+        super.close();
+        stop();
+        out = null;
+    }
+
+    /** Rewinding runs the fragments again from the start. */
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        stop();
+        start();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!isMerging()) return channels[0].take(workers);
+        if (merge == null) startMerge();
+        if (out == null) out = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        out.clear();
+        while (!out.isFull() && !merge.isEmpty()) {
+            int c = merge.poll();
+            out.addRow(heads[c], heads[c].selected(pos[c]++));
+            if (advance(c)) merge.add(c);
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    private void startMerge() throws DbException, TransactionAbortedException {
+        heads = new TupleBatch[channels.length];
+        pos = new int[channels.length];
+        merge = new PriorityQueue<Integer>(Math.max(1, channels.length), new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareHeads(a, b);
+            }
+        });
+        for (int c = 0; c < channels.length; c++)
+            if (advance(c)) merge.add(c);
+    }
+
+    /** Moves to a row of channel c to return next; false if it has none. */
+    private boolean advance(int c) throws DbException, TransactionAbortedException {
+        while (heads[c] == null || pos[c] >= heads[c].numSelected()) {
+            heads[c] = channels[c].take(workers);
+            pos[c] = 0;
+            if (heads[c] == null) return false;
+        }
+        return true;
+    }
+
+    private int compareHeads(int a, int b) {
+        TupleBatch x = heads[a], y = heads[b];
+        int rx = x.selected(pos[a]), ry = y.selected(pos[b]);
+        int cmp;
+        if (x.intColumn(orderByField) != null)
+            cmp = Integer.compare(x.getInt(orderByField, rx), y.getInt(orderByField, ry));
+        else
+            cmp = x.getString(orderByField, rx).compareTo(y.getString(orderByField, ry));
+        if (cmp == 0) cmp = Integer.compare(a, b);
+        return asc ? cmp : -cmp;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.children = children;
+    }
+}
@@ -0,0 +1,330 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * HashAggregator computes an aggregate over groups of rows with an
+ * {@link AggregateHashTable}; {@link IntegerAggregator} and
+ * {@link StringAggregator} are the two kinds of it.
+ * <p>
+ * When the table grows past a memory budget, the groups in it stay there
+ * and keep taking rows, but rows of new groups are written to one of a few
+ * spill files, picked by the hash of their key. Each spill file is then
+ * aggregated by itself when the results are read, spilling again the same
+ * way if it is still too big.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of bytes the group table may take before rows spill. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+    private static final int PARTITION_BITS = 4;
+    private static final int NUM_PARTITIONS = 1 << PARTITION_BITS;
+    // each level partitions on the next bits from the top of the hash; the
+    // table picks slots by the low bits, so these stay clear of them
+    private static final int MAX_LEVELS = 4;
+
+    protected final int gbfield;
+    protected final Type gbfieldtype;
+    protected final int afield;
+    protected final Op what;
+    private final TupleDesc td;
+    // the rows that are spilled: their key, if any, value, and for SC_AVG
+    // the count the value is the sum of
+    private final TupleDesc spillTd;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    private transient Pass root;
+    private transient TupleBatch scratch;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field (e.g., Type.INT_TYPE), or null
+     *            if there is no grouping
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param what
+     *            the aggregation operator; for SC_AVG, the tuples have the
+     *            count that goes with the sum at afield after it
+     */
+    public HashAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this.gbfield = gbfield;
+        this.gbfieldtype = gbfield == NO_GROUPING ? null : gbfieldtype;
+        this.afield = afield;
+        this.what = what;
+        ArrayList<Type> types = new ArrayList<Type>();
+        if (gbfield != NO_GROUPING) types.add(gbfieldtype);
+        types.add(Type.INT_TYPE);
+        if (what == Op.SUM_COUNT) types.add(Type.INT_TYPE);
+        this.td = new TupleDesc(types.toArray(new Type[0]));
+        Type key = gbfieldtype == null ? Type.INT_TYPE : gbfieldtype;
+        this.spillTd = what == Op.SC_AVG
+                ? new TupleDesc(new Type[]{key, Type.INT_TYPE, Type.INT_TYPE})
+                : new TupleDesc(new Type[]{key, Type.INT_TYPE});
+        this.root = new Pass(0);
+    }
+
+    /**
+     * The groups of one pass over some rows: those in memory, and the spill
+     * files of the rows of the rest.
+     */
+    private class Pass {
+        final AggregateHashTable table = new AggregateHashTable(gbfieldtype, what);
+        final int level;
+        SpillFile[] parts;
+
+        Pass(int level) {
+            this.level = level;
+        }
+
+        /**
+         * Adds a row, whose key is in the given column, to its group; rows
+         * is 1 unless the row is a partial SC_AVG.
+         */
+        void add(TupleBatch b, int col, int row, int value, int rows) {
+            int g = table.find(b, col, row);
+            if (g < 0) {
+                if (parts != null) {
+                    spill(b, col, row, value, rows);
+                    return;
+                }
+                g = table.insert(b, col, row);
+                if (level < MAX_LEVELS && table.memoryUsage() > memoryBudget)
+                    parts = new SpillFile[NUM_PARTITIONS];
+            }
+            table.merge(g, value, rows);
+        }
+
+        private void spill(TupleBatch b, int col, int row, int value, int rows) {
+            int h = JoinHashTable.hash(b, col, row);
+            int p = (h >>> (32 - PARTITION_BITS * (level + 1))) & (NUM_PARTITIONS - 1);
+            if (scratch == null) scratch = new TupleBatch(spillTd, 1);
+            scratch.clear();
+            scratch.addRow();
+            if (gbfieldtype == Type.STRING_TYPE)
+                scratch.setString(0, 0, b.getString(col, row));
+            else
+                scratch.setInt(0, 0, b.getInt(col, row));
+            scratch.setInt(1, 0, value);
+            if (what == Op.SC_AVG) scratch.setInt(2, 0, rows);
+            try {
+                if (parts[p] == null) parts[p] = new SpillFile(spillTd);
+                parts[p].append(scratch, 0);
+            } catch (IOException e) {
+                throw new RuntimeException("unable to spill aggregate input", e);
+            }
+        }
+
+        void deleteParts() {
+            if (parts == null) return;
+            for (SpillFile f : parts)
+                if (f != null) f.delete();
+            parts = null;
+        }
+    }
+
+    /**
+     * @return the number of bytes the group table may take before rows of
+     *         new groups are written to disk
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the number of bytes the group table may take before rows of new
+     * groups are written to disk.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /** @return true if rows have been written to disk since the last clear */
+    public boolean hasSpilled() {
+        return root.parts != null;
+    }
+
+    /** Remove all groups and the files of spilled rows. */
+    public void clear() {
+        root.deleteParts();
+        root = new Pass(0);
+    }
+
+    /** @return true if the value of a row must be read for the aggregate */
+    private boolean needsValue() {
+        return what != Op.COUNT;
+    }
+
+    /**
+     * Merge a new tuple into the aggregate, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing an aggregate field and a group-by field
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        TupleBatch b = new TupleBatch(tup.getTupleDesc(), 1);
+        b.addTuple(tup);
+        mergeBatchIntoGroup(b);
+    }
+
+    /**
+     * Merge the live rows of a batch into the aggregate. Without grouping the
+     * batch is first folded into a single value in a loop over the column.
+     */
+    public void mergeBatchIntoGroup(TupleBatch b) {
+        int[] col = needsValue() ? b.intColumn(afield) : null;
+        int[] counts = what == Op.SC_AVG ? b.intColumn(afield + 1) : null;
+        int n = b.numSelected();
+        if (gbfield != NO_GROUPING) {
+            for (int i = 0; i < n; i++) {
+                int r = b.selected(i);
+                root.add(b, gbfield, r, col == null ? 0 : col[r], counts == null ? 1 : counts[r]);
+            }
+            return;
+        }
+        if (n == 0) return;
+        long acc = 0;
+        long rows = n;
+        switch (what) {
+            case SUM:
+            case AVG:
+            case SUM_COUNT:
+                for (int i = 0; i < n; i++) acc += col[b.selected(i)];
+                break;
+            case SC_AVG:
+                rows = 0;
+                for (int i = 0; i < n; i++) {
+                    int r = b.selected(i);
+                    acc += col[r];
+                    rows += counts[r];
+                }
+                break;
+            case MAX:
+                acc = Integer.MIN_VALUE;
+                for (int i = 0; i < n; i++) acc = Math.max(acc, col[b.selected(i)]);
+                break;
+            case MIN:
+                acc = Integer.MAX_VALUE;
+                for (int i = 0; i < n; i++) acc = Math.min(acc, col[b.selected(i)]);
+                break;
+            default:
+                break;
+        }
+        AggregateHashTable table = root.table;
+        int g = table.size() > 0 ? 0 : table.insert(b, 0, 0);
+        table.merge(g, acc, rows);
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results. Groups of spilled
+     * rows are aggregated as it gets to them.
+     *
+     * @return a DbIterator whose tuples are the pair (groupVal, aggregateVal)
+     *         if using group, or a single (aggregateVal) if no grouping. The
+     *         aggregateVal is determined by the type of aggregate specified in
+     *         the constructor.
+     */
+    public DbIterator iterator() {
+        return new Results();
+    }
+
+    private class Results implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        // the pass whose groups are being returned, and the next group
+        private transient Pass pass;
+        private transient int group;
+        // spill files still to aggregate, with their level
+        private transient ArrayDeque<SpillFile> pending;
+        private transient ArrayDeque<Integer> levels;
+        // passes over spill files, whose own spill files go when we do
+        private transient ArrayList<Pass> passes;
+
+        public void open() {
+            pass = root;
+            group = 0;
+            pending = new ArrayDeque<SpillFile>();
+            levels = new ArrayDeque<Integer>();
+            passes = new ArrayList<Pass>();
+            addPending(root);
+        }
+
+        private void addPending(Pass p) {
+            if (p.parts == null) return;
+            for (SpillFile f : p.parts) {
+                if (f == null) continue;
+                pending.add(f);
+                levels.add(p.level + 1);
+            }
+        }
+
+        /** Aggregates the next spill file; returns false if there is none. */
+        private boolean nextPass() throws DbException, TransactionAbortedException {
+            if (pending.isEmpty()) return false;
+            SpillFile f = pending.poll();
+            pass = new Pass(levels.poll());
+            passes.add(pass);
+            BatchIterator in;
+            try {
+                in = f.iterator();
+            } catch (IOException e) {
+                throw new DbException("unable to read spilled aggregate input: " + e.getMessage());
+            }
+            in.open();
+            TupleBatch b;
+            while ((b = in.nextBatch()) != null) {
+                int[] values = b.intColumn(1);
+                int[] counts = what == Op.SC_AVG ? b.intColumn(2) : null;
+                for (int i = 0; i < b.numSelected(); i++) {
+                    int r = b.selected(i);
+                    pass.add(b, 0, r, values[r], counts == null ? 1 : counts[r]);
+                }
+            }
+            in.close();
+            addPending(pass);
+            group = 0;
+            return true;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (pass == null) throw new IllegalStateException("aggregate results not open");
+            while (group >= pass.table.size()) {
+                if (!nextPass()) return false;
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext()) throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            pass.table.fillTuple(group++, t);
+            return t;
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (passes != null) {
+                for (Pass p : passes) p.deleteParts();
+                passes = null;
+            }
+            pass = null;
+        }
+    }
+}
@@ -1,18 +1,83 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation. The left
+ * child is loaded into a hash table when the operator is opened; the right
+ * child is then probed against it a batch at a time.
+ * <p>
+ * The hash table is held to a memory budget. When the left child does not
+ * fit, the join turns into a hybrid hash join: rows are split into
+ * partitions by the hash of their join field, partition 0 stays in memory
+ * and the others are written to spill files, as are the right child's rows
+ * that fall into them. Once the right child is done, each pair of spilled
+ * partitions is joined the same way, partitioning it again on other bits of
+ * the hash if it still does not fit. After a few levels a partition is
+ * loaded whatever its size, since it is then likely to hold a single key.
+ * The buffers of the spill files count against the budget: the files of a
+ * level are only written while the level is being partitioned, and closed
+ * as soon as it is, so at most one file per partition, plus the one being
+ * read, holds a buffer at a time.
+ * <p>
+ * If the right child's join field comes from a scan, through filters and
+ * down the right side of other joins, the join builds a {@link BloomFilter}
+ * of the left keys as it loads them and pushes it down into that scan,
+ * which then drops most right rows without a match before they are read
+ * any further.
+ *
+ * @see JoinHashTable
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
-    private HashMap<Field,ArrayList<Tuple> > map;
-    private Tuple now2;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    /** Default number of bytes the hash table may take before the join spills. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+    private static final int PARTITION_BITS = 4;
+    private static final int NUM_PARTITIONS = 1 << PARTITION_BITS;
+    // each level partitions on the next bits from the top of the hash; the
+    // table picks slots by the low bits, so these stay clear of them
+    private static final int MAX_LEVELS = 4;
+    // the spill files of a level share at most this part of the budget for
+    // their buffers, of no less than MIN_SPILL_BUFFER bytes each
+    private static final int SPILL_BUFFER_SHARE = 4;
+    private static final int MIN_SPILL_BUFFER = 256;
+    // the most left rows to build a runtime filter for; past that the
+    // filter would take a lot of memory and is unlikely to drop much
+    private static final int MAX_FILTER_KEYS = 1 << 20;
+
+    // the rows of the left input in memory, null if partition 0 is spilled too
+    private transient JoinHashTable table;
+    // the spilled partitions of the current inputs, null if nothing spilled
+    private transient SpillFile[] buildParts;
+    private transient SpillFile[] probeParts;
+    private transient int level;
+    // partition pairs still to join
+    private transient ArrayDeque<Partition> pending;
+    // the right input if it is a spill file, to be deleted when read
+    private transient SpillFile probeFile;
+    private transient boolean spilled;
+    // probe state: the current batch of the right input, the next live row
+    // in it, and the next left row matching the row before that, or -1
+    private transient BatchIterator in2;
+    private transient TupleBatch probe;
+    private transient int probePos;
+    private transient int match;
+    private transient TupleBatch out;
+    // the scan the runtime filter goes into and the field of its rows to
+    // check, the hashes of the left keys while they are loaded, and the
+    // filter once it is pushed down
+    private transient SeqScan filterScan;
+    private transient int filterField;
+    private transient int[] keyHashes;
+    private transient int numKeys;
+    private transient BloomFilter runtimeFilter;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -29,13 +94,123 @@ public class HashEquiJoin extends Operator {
         this.p=p;
         this.child1 = child1;
         this.child2 = child2;
-        map = new HashMap<>();
+    }
+
+    private static class Partition {
+        final SpillFile build;
+        final SpillFile probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
     }
 
     public JoinPredicate getJoinPredicate() {
         return p;
     }
 
+    /**
+     * @return the number of bytes the hash table of this join may take
+     *         before it spills to disk
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the number of bytes the hash table of this join may take before it
+     * spills to disk; takes effect at the next open.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /** @return the size of the buffer of each spill file under the memory budget */
+    private int spillBufferSize() {
+        long share = memoryBudget / SPILL_BUFFER_SHARE / (NUM_PARTITIONS + 1);
+        return (int) Math.max(MIN_SPILL_BUFFER, Math.min(SpillFile.DEFAULT_BUFFER_SIZE, share));
+    }
+
+    /**
+     * @return the number of bytes the hash table may take: the budget, less
+     *         the buffers of the spill files once the join has spilled
+     */
+    private long tableBudget() {
+        if (!spilled) return memoryBudget;
+        return memoryBudget - (long) (NUM_PARTITIONS + 1) * spillBufferSize();
+    }
+
+    /** @return true if the join has written rows to disk since it was opened */
+    public boolean hasSpilled() {
+        return spilled;
+    }
+
+    /**
+     * @return the filter of the left keys this join pushed down into a scan
+     *         under its right child when it was opened, or null if there
+     *         is none
+     */
+    public BloomFilter getRuntimeFilter() {
+        return runtimeFilter;
+    }
+
+    /**
+     * Finds the scan the right join field comes from, looking through
+     * filters and down the right side of joins, whose rows are only read
+     * after this join has loaded its left child. A left side is loaded
+     * when its join is opened, which is too early.
+     */
+    private void findFilterScan() {
+        DbIterator it = child2;
+        int field = p.getField2();
+        while (true) {
+            if (it instanceof Filter) {
+                it = ((Filter) it).getChildren()[0];
+            } else if (it instanceof HashEquiJoin || it instanceof Join) {
+                DbIterator[] children = ((Operator) it).getChildren();
+                int n1 = children[0].getTupleDesc().numFields();
+                if (field < n1) break;
+                field -= n1;
+                it = children[1];
+            } else {
+                break;
+            }
+        }
+        filterScan = it instanceof SeqScan ? (SeqScan) it : null;
+        filterField = field;
+    }
+
+    /** Remembers the keys of the live rows of a left batch for the filter. */
+    private void addKeys(TupleBatch b) {
+        int n = b.numSelected();
+        if (numKeys + n > MAX_FILTER_KEYS) {
+            keyHashes = null;
+            return;
+        }
+        if (numKeys + n > keyHashes.length)
+            keyHashes = Arrays.copyOf(keyHashes, Math.max(2 * keyHashes.length, numKeys + n));
+        for (int i = 0; i < n; i++)
+            keyHashes[numKeys++] = JoinHashTable.hash(b, p.getField1(), b.selected(i));
+    }
+
+    /** Builds the runtime filter of the left keys and pushes it down. */
+    private void pushRuntimeFilter() {
+        if (keyHashes == null) return;
+        runtimeFilter = new BloomFilter(filterField, numKeys);
+        for (int i = 0; i < numKeys; i++) runtimeFilter.add(keyHashes[i]);
+        keyHashes = null;
+        filterScan.addRuntimeFilter(runtimeFilter);
+    }
+
+    private void removeRuntimeFilter() {
+        if (runtimeFilter != null) filterScan.removeRuntimeFilter(runtimeFilter);
+        runtimeFilter = null;
+        keyHashes = null;
+    }
+
     public TupleDesc getTupleDesc() {
         return TupleDesc.merge(child1.getTupleDesc(),child2.getTupleDesc());
     }
@@ -52,43 +227,218 @@ public class HashEquiJoin extends Operator {
     
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        map.clear();
-        listIt = null;
-        now2 = null;
         child1.open();
         child2.open();
-        while (child1.hasNext()) {
-            Tuple tmp = child1.next();
-            Field key = tmp.getField(p.getField1());
-            if (!map.containsKey(key)) {
-                map.put(key,new ArrayList<>());
+        start();
+        super.open();
+    }
+
+    /** Loads the left child and starts probing with the right one. */
+    private void start() throws DbException, TransactionAbortedException {
+        resetProbe();
+        pending = new ArrayDeque<>();
+        spilled = false;
+        removeRuntimeFilter();
+        findFilterScan();
+        if (filterScan != null) {
+            keyHashes = new int[TupleBatch.DEFAULT_CAPACITY];
+            numKeys = 0;
+        }
+        try {
+            build(BatchingIterator.of(child1), 0);
+        } catch (IOException e) {
+            throw new DbException("unable to spill join input: " + e.getMessage());
+        }
+        pushRuntimeFilter();
+        in2 = BatchingIterator.of(child2);
+    }
+
+    /**
+     * Loads a left input into the hash table, partitioning it if it goes
+     * over the memory budget.
+     */
+    private void build(BatchIterator in, int level) throws DbException,
+            TransactionAbortedException, IOException {
+        this.level = level;
+        table = new JoinHashTable(child1.getTupleDesc(), p.getField1());
+        buildParts = null;
+        probeParts = null;
+        TupleBatch b;
+        while ((b = in.nextBatch()) != null) {
+            if (keyHashes != null) addKeys(b);
+            if (buildParts == null) table.add(b);
+            else routeBuild(b);
+            if (table != null && table.memoryUsage() > tableBudget() && level < MAX_LEVELS) {
+                if (buildParts == null) {
+                    buildParts = new SpillFile[NUM_PARTITIONS];
+                    probeParts = new SpillFile[NUM_PARTITIONS];
+                    int bufferSize = spillBufferSize();
+                    for (int i = 0; i < NUM_PARTITIONS; i++) {
+                        buildParts[i] = new SpillFile(child1.getTupleDesc(), bufferSize);
+                        probeParts[i] = new SpillFile(child2.getTupleDesc(), bufferSize);
+                    }
+                    spilled = true;
+                    JoinHashTable old = table;
+                    table = new JoinHashTable(child1.getTupleDesc(), p.getField1());
+                    reroute(old);
+                } else {
+                    // partition 0 does not fit either
+                    JoinHashTable old = table;
+                    table = null;
+                    reroute(old);
+                }
             }
-            map.get(key).add(tmp);
         }
-        super.open();
+        // the left partitions are complete, free their writers for those
+        // of the right ones
+        if (buildParts != null)
+            for (SpillFile f : buildParts) f.closeOutput();
+    }
+
+    /** @return the partition of a row at the current level */
+    private int partitionOf(TupleBatch b, int col, int row) {
+        int h = JoinHashTable.hash(b, col, row);
+        return (h >>> (32 - PARTITION_BITS * (level + 1))) & (NUM_PARTITIONS - 1);
+    }
+
+    /** Puts the rows of an old hash table where they now belong. */
+    private void reroute(JoinHashTable old) throws IOException {
+        TupleBatch scratch = new TupleBatch(old.getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        for (int row = 0; row < old.size(); ) {
+            scratch.clear();
+            while (!scratch.isFull() && row < old.size())
+                old.copyRow(row++, scratch, scratch.addRow(), 0);
+            routeBuild(scratch);
+        }
+    }
+
+    /** Adds the live rows of a left batch to the table or their spill file. */
+    private void routeBuild(TupleBatch b) throws IOException {
+        for (int i = 0; i < b.numSelected(); i++) {
+            int r = b.selected(i);
+            int part = partitionOf(b, p.getField1(), r);
+            if (part == 0 && table != null) table.add(b, r);
+            else buildParts[part].append(b, r);
+        }
+    }
+
+    /**
+     * Writes the live rows of a right batch that belong to a spilled
+     * partition to its spill file, and drops them from the batch; rows of
+     * partitions without left rows are dropped right away.
+     */
+    private void routeProbe(TupleBatch b) throws IOException {
+        int[] sel = b.selectionBuffer();
+        int n = b.numSelected();
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            int r = b.selected(i);
+            int part = partitionOf(b, p.getField2(), r);
+            if (part == 0 && table != null) sel[m++] = r;
+            else if (buildParts[part].numRows() > 0) probeParts[part].append(b, r);
+        }
+        b.setSelection(sel, m);
+    }
+
+    /**
+     * Called when the right input is done: queues the spilled partitions of
+     * the current inputs and moves on to the next queued pair.
+     *
+     * @return false if there is nothing left to join
+     */
+    private boolean nextPartition() throws DbException,
+            TransactionAbortedException, IOException {
+        if (buildParts != null) {
+            for (int i = NUM_PARTITIONS - 1; i >= 0; i--) {
+                if (buildParts[i].numRows() > 0 && probeParts[i].numRows() > 0) {
+                    probeParts[i].closeOutput();
+                    pending.push(new Partition(buildParts[i], probeParts[i], level + 1));
+                } else {
+                    buildParts[i].delete();
+                    probeParts[i].delete();
+                }
+            }
+            buildParts = null;
+            probeParts = null;
+        }
+        if (probeFile != null) {
+            in2.close();
+            in2 = null;
+            probeFile.delete();
+            probeFile = null;
+        }
+        Partition part = pending.poll();
+        if (part == null) return false;
+        BatchIterator in1 = part.build.iterator();
+        in1.open();
+        build(in1, part.level);
+        in1.close();
+        part.build.delete();
+        probeFile = part.probe;
+        in2 = probeFile.iterator();
+        in2.open();
+        return true;
+    }
+
+    /** Deletes all spill files. */
+    private void deleteSpillFiles() {
+        if (buildParts != null) {
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                buildParts[i].delete();
+                probeParts[i].delete();
+            }
+            buildParts = null;
+            probeParts = null;
+        }
+        if (pending != null) {
+            for (Partition part : pending) {
+                part.build.delete();
+                part.probe.delete();
+            }
+            pending.clear();
+        }
+        if (probeFile != null) {
+            in2.close();
+            probeFile.delete();
+            probeFile = null;
+        }
+    }
+
+    private void resetProbe() {
+        probe = null;
+        probePos = 0;
+        match = -1;
     }
 
     public void close() {
         super.close();
-        map.clear();
-        listIt = null;
-        now2 = null;
+        deleteSpillFiles();
+        removeRuntimeFilter();
+        table = null;
+        resetProbe();
+        out = null;
         child2.close();
         child1.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
         child1.rewind();
         child2.rewind();
+        if (spilled) {
+            // the table only holds the last partition, start over
+            deleteSpillFiles();
+            start();
+        } else {
+            resetProbe();
+            in2 = BatchingIterator.of(child2);
+        }
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
-     * Returns the next tuple generated by the join, or null if there are no
-     * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * Returns the next batch of tuples generated by the join, or null if there
+     * are no more tuples. Logically, these are the next tuples in r1 cross r2
+     * that satisfy the join predicate.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -99,23 +449,48 @@ public class HashEquiJoin extends Operator {
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
      * 
-     * @return The next matching tuple.
+     * @return The next batch of matching tuples.
      * @see JoinPredicate#filter
      */
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (!(listIt!=null && listIt.hasNext())) {
-            boolean changed = false;
-            while (child2.hasNext()) {
-                now2 = child2.next();
-                if (map.containsKey(now2.getField(p.getField2()))) {
-                    listIt = map.get(now2.getField(p.getField2())).iterator();
-                    changed = true;
-                    break;
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (out == null) out = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        out.clear();
+        while (!out.isFull()) {
+            if (match >= 0) {
+                emit(match, probe.selected(probePos-1));
+                match = table.next(match);
+                continue;
+            }
+            if (probe == null || probePos >= probe.numSelected()) {
+                probe = in2 == null ? null : in2.nextBatch();
+                probePos = 0;
+                try {
+                    if (probe == null) {
+                        if (!nextPartition()) break;
+                    } else if (buildParts != null) {
+                        routeProbe(probe);
+                    }
+                } catch (IOException e) {
+                    throw new DbException("unable to spill join input: " + e.getMessage());
                 }
+                continue;
             }
-            if (!changed) return null;
+            match = table.find(probe, p.getField2(), probe.selected(probePos++));
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    /** Adds the concatenation of a row of the table and a row of the probe batch to out. */
+    private void emit(int left, int probeRow) {
+        int row = out.addRow();
+        int n1 = table.getTupleDesc().numFields();
+        table.copyRow(left, out, row, 0);
+        for (int i = 0, n2 = probe.getTupleDesc().numFields(); i < n2; i++) {
+            if (probe.intColumn(i) != null)
+                out.setInt(n1+i, row, probe.getInt(i, probeRow));
+            else
+                out.setString(n1+i, row, probe.getString(i, probeRow));
         }
-        return Tuple.merge(listIt.next(),now2);
     }
 
     @Override
@@ -9,6 +9,9 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Inserts find a page with a free slot through a {@link FreeSpaceMap} kept in
+ * a side file next to the heap file, and only lock that page.
  *
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -24,9 +27,17 @@ public class HeapFile implements DbFile {
      */
     private File f;
     private TupleDesc td;
+    private final DbFileChannel channel;
+    // loaded by the first insert or delete, guarded by this
+    private FreeSpaceMap fsm;
+    // pages in the file, kept up to date by appends and writes and checked
+    // against its size when a scan starts; guarded by this
+    private int pageCount;
     public HeapFile(File f, TupleDesc td) {
         this.f = f;
         this.td = td;
+        this.channel = new DbFileChannel(f);
+        syncNumPages();
     }
 
     /**
@@ -63,13 +74,10 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid){
         try {
-            RandomAccessFile f = new RandomAccessFile(this.f,"r");
-            int offset = BufferPool.getPageSize() * pid.pageNumber();
+            long offset = (long) BufferPool.getPageSize() * pid.pageNumber();
             byte[] data = new byte[BufferPool.getPageSize()];
-            f.seek(offset);
-            f.readFully(data,0,BufferPool.getPageSize());
-            f.close();
-            return new HeapPage((HeapPageId)pid,data);
+            if (channel.read(data,offset) < data.length) return null;
+            return HeapPage.wrap((HeapPageId)pid,data);
         } catch (IOException e) {
             //throw new IllegalArgumentException();
         }
@@ -79,23 +87,83 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         PageId pid = page.getId();
-        RandomAccessFile f = new RandomAccessFile(this.f,"rw");
-        f.seek(pid.pageNumber()*BufferPool.getPageSize());
-        f.write(page.getPageData());
-        f.close();
+        channel.write(page.getPageData(),(long) pid.pageNumber()*BufferPool.getPageSize());
+        FreeSpaceMap map;
+        synchronized (this) {
+            if (pid.pageNumber() >= pageCount) pageCount = pid.pageNumber()+1;
+            map = fsm;
+        }
+        if (map != null && page instanceof HeapPage) map.persist(pid.pageNumber(),((HeapPage)page).getNumEmptySlots());
+    }
+
+    /**
+     * Returns the free space map of this file, loading it on first use.
+     */
+    private synchronized FreeSpaceMap freeSpaceMap() throws IOException {
+        if (fsm == null) {
+            fsm = new FreeSpaceMap(new File(f.getPath()+".fsm"),numPages());
+        }
+        return fsm;
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Appends an empty page to the file and returns its number.
      */
-    public int numPages() {
+    private synchronized int appendEmptyPage() throws IOException {
+        int pgNo = pageCount;
+        channel.write(HeapPage.createEmptyPageData(),(long) pgNo*BufferPool.getPageSize());
+        pageCount = pgNo+1;
+        return pgNo;
+    }
+
+    /**
+     * Returns the number of pages in this HeapFile. The count is kept in
+     * memory, so scans can check it for every page without asking the file
+     * system for the size of the file.
+     */
+    public synchronized int numPages() {
+        return pageCount;
+    }
+
+    /**
+     * Updates the page count from the size of the file, in case it was
+     * extended other than through this HeapFile, and returns it. Called once
+     * by each scan as it starts.
+     */
+    synchronized int syncNumPages() {
         try {
-            RandomAccessFile f=new RandomAccessFile(this.f, "r");
-            int ans =(int)Math.ceil((double)f.length()/BufferPool.getPageSize());
-            f.close();
-            return ans;
-        } catch (Exception ignore) {}
-        return 0;
+            pageCount = Math.max(pageCount,(int)Math.ceil((double)channel.size()/BufferPool.getPageSize()));
+        } catch (IOException ignore) {}
+        return pageCount;
+    }
+
+    /**
+     * Serves page reads from a memory mapping of the file instead of read
+     * system calls, for read-mostly tables that fit in memory; writes still go
+     * through the file channel.
+     *
+     * @see DbFileChannel#setMemoryMapped(boolean)
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        channel.setMemoryMapped(memoryMapped);
+    }
+
+    /**
+     * @return true if page reads are served from a memory mapping of the file
+     */
+    public boolean isMemoryMapped() {
+        return channel.isMemoryMapped();
+    }
+
+    /**
+     * Closes the file backing this HeapFile; it is reopened by the next
+     * read or write.
+     */
+    public void close() throws IOException {
+        channel.close();
+        synchronized (this) {
+            if (fsm != null) fsm.close();
+        }
     }
 
     // see DbFile.java for javadocs
@@ -103,21 +171,35 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         ArrayList<Page> dirtypages = new ArrayList<>();
         int id = getId();
-        for (int i=0,j=numPages();i<j;i++) {
-            HeapPageId pid = new HeapPageId(id,i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
+        FreeSpaceMap map = freeSpaceMap();
+        BufferPool bp = Database.getBufferPool();
+        while (true) {
+            int pgNo = map.findPage();
+            if (pgNo < 0) {
+                // every page is full; the new page is locked like any other, so
+                // a concurrent insert may take its slots first. Its count is
+                // reset in case the side file is older than the heap file.
+                map.persist(appendEmptyPage(),FreeSpaceMap.UNKNOWN);
+                continue;
+            }
+            HeapPageId pid = new HeapPageId(id,pgNo);
+            boolean locked = bp.holdsLock(tid,pid);
+            HeapPage page = (HeapPage) bp.getPage(tid,pid,Permissions.READ_WRITE);
             if (page.getNumEmptySlots() > 0) {
                 page.insertTuple(t);
+                map.setFree(pgNo,page.getNumEmptySlots());
                 dirtypages.add(page);
                 return dirtypages;
             }
+            if (locked) {
+                // may be full of our own uncommitted inserts, keep that off disk
+                map.setFree(pgNo,0);
+            } else {
+                map.persist(pgNo,0);
+                // only looked at, so the lock can go
+                bp.releasePage(tid,pid);
+            }
         }
-        HeapPageId pid = new HeapPageId(id,numPages());
-        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
-        page.insertTuple(t);
-        dirtypages.add(page);
-        writePage(page);
-        return dirtypages;
     }
 
     // see DbFile.java for javadocs
@@ -128,27 +210,48 @@ public class HeapFile implements DbFile {
         PageId pid = rid.getPageId();
         HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
         page.deleteTuple(t);
+        try {
+            freeSpaceMap().setFree(pid.pageNumber(),page.getNumEmptySlots());
+        } catch (IOException e) {
+            throw new DbException("unable to read the free space map: "+e.getMessage());
+        }
         dirtypages.add(page);
         return dirtypages;
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over all the tuples stored in this HeapFile that
+     * reads its pages through the given buffer access strategy, so a scan of
+     * a large table does not flush the rest of the buffer pool.
+     *
+     * @param strategy the ring to read through, or null for normal access
+     * @see BufferPool#newBulkReadStrategy()
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferAccessStrategy strategy) {
+        return new HeapFileIterator(tid, strategy);
     }
+
     class HeapFileIterator implements DbFileIterator {
         private TransactionId tid;
+        private BufferAccessStrategy strategy;
         private HeapPage page;
         private Iterator<Tuple> iter;
         private int cnt;
 
-        public HeapFileIterator(TransactionId tid) {
+        public HeapFileIterator(TransactionId tid, BufferAccessStrategy strategy) {
             this.tid = tid;
+            this.strategy = strategy;
             this.cnt = -1;
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            syncNumPages();
             cnt = 0;
             page = null;
             iter = null;
@@ -157,7 +260,7 @@ public class HeapFile implements DbFile {
         private boolean nxt() throws TransactionAbortedException, DbException {
             while (iter==null || !iter.hasNext()) {
                 if (cnt>=numPages()) return false;
-                page = (HeapPage)Database.getBufferPool().getPage(tid,new HeapPageId(getId(),cnt),Permissions.READ_WRITE);
+                page = (HeapPage)Database.getBufferPool().getPage(tid,new HeapPageId(getId(),cnt),Permissions.READ_WRITE,strategy);
                 if (page==null) return false;
                 iter = page.iterator();
                 cnt++;
@@ -181,6 +284,7 @@ public class HeapFile implements DbFile {
         @Override
         public void rewind() throws DbException, TransactionAbortedException {
             if (cnt==-1) throw new NoSuchElementException();
+            syncNumPages();
             cnt = 0;
             page = null;
             iter = null;
@@ -6,6 +6,12 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its on-disk bytes as the only copy of its contents. Fields
+ * are decoded in place by (slot, column), and Tuple objects are only built
+ * when they are asked for, by {@link #getTuple(int)} or the iterator; a
+ * tuple obtained this way is a copy, so changing it does not change the
+ * page. Serializing the page is an array copy.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,9 +21,13 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
+    // header followed by the tuple slots, in the format read from disk
+    final byte data[];
+    final int headerSize;
     final int numSlots;
+    final int tupleSize;
+    // offset of each field within a tuple
+    final int fieldOffsets[];
 
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
@@ -35,30 +45,47 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page works on a copy of data.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data.clone());
+    }
+
+    /**
+     * Create a HeapPage over data itself rather than a copy of it. The page
+     * takes ownership of the array, which the caller must not use any more;
+     * this saves a copy of every page read from disk.
+     */
+    static HeapPage wrap(HeapPageId id, byte[] data) throws IOException {
+        return new HeapPage(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    private HeapPage(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        if (data.length < BufferPool.getPageSize()) throw new IOException("short page");
+        this.data = data;
+
+        fieldOffsets = new int[td.numFields()];
+        for (int j=0, off=0; j<fieldOffsets.length; j++) {
+            fieldOffsets[j] = off;
+            off += td.getFieldType(j).getLen();
+        }
+
+        // empty slots, stray header bits and the padding are written out as
+        // zeroes, so clear them now and serialization stays a plain copy
+        for (int i=0; i<numSlots; i++) {
+            if (!isSlotUsed(i)) Arrays.fill(data, slotOffset(i), slotOffset(i)+tupleSize, (byte) 0);
         }
-        dis.close();
+        for (int i=numSlots; i<headerSize*8; i++) data[i/8] &= ~(1<<(i%8));
+        Arrays.fill(data, slotOffset(numSlots), BufferPool.getPageSize(), (byte) 0);
 
         setBeforeImage();
     }
@@ -77,6 +104,10 @@ public class HeapPage implements Page {
     private int getHeaderSize() {        
         return (int)Math.ceil(this.getNumTuples()/8.0);
     }
+
+    private int slotOffset(int slot) {
+        return headerSize + slot*tupleSize;
+    }
     
     /** Return a view of this page before it was modified
         -- used by recovery */
@@ -99,7 +130,7 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = getPageData();
         }
     }
 
@@ -111,37 +142,144 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the TupleDesc of the tuples on this page
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the number of tuple slots on this page, used or not.
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Returns the value of an integer field of the tuple in the given slot,
+     * decoded straight from the page.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    public int getInt(int slot, int col) {
+        int off = slotOffset(slot) + fieldOffsets[col];
+        return ((data[off] & 0xff) << 24) | ((data[off+1] & 0xff) << 16)
+                | ((data[off+2] & 0xff) << 8) | (data[off+3] & 0xff);
+    }
+
+    /**
+     * Returns the value of a string field of the tuple in the given slot,
+     * decoded straight from the page.
+     */
+    public String getString(int slot, int col) {
+        int off = slotOffset(slot) + fieldOffsets[col];
+        int len = getInt(slot, col);
+        return new String(data, off+4, Math.max(0, Math.min(len, Type.STRING_LEN)));
+    }
+
+    /**
+     * Returns the given field of the tuple in the given slot.
+     */
+    public Field getField(int slot, int col) {
+        if (td.getFieldType(col) == Type.INT_TYPE) return new IntField(getInt(slot, col));
+        return new StringField(getString(slot, col), Type.STRING_LEN);
+    }
+
+    /**
+     * Builds the tuple in the given slot.
+     *
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Tuple getTuple(int slot) throws NoSuchElementException {
+        if (!isSlotUsed(slot)) throw new NoSuchElementException("slot " + slot + " is empty");
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        for (int j=0; j<fieldOffsets.length; j++)
+            t.setField(j, getField(slot, j));
+        return t;
+    }
+
+    /**
+     * Copies the tuples in the used slots from slot onwards into the column
+     * vectors of a batch, until the batch is full or the page has no more.
+     * The batch must have the TupleDesc of this page.
+     *
+     * @return the slot to continue from, or getNumSlots() if the page is done
+     */
+    public int readInto(TupleBatch b, int slot) {
+        return readInto(b, slot, Collections.<Predicate>emptyList());
+    }
+
+    /**
+     * Like {@link #readInto(TupleBatch, int)}, but only copies the tuples
+     * that pass all of the given predicates. They are evaluated on the
+     * bytes of the page, so the fields of the other tuples are never
+     * decoded; see {@link Predicate#filter(byte[], int)}.
+     *
+     * @return the slot to continue from, or getNumSlots() if the page is done
+     * @throws IllegalArgumentException if a predicate compares a field to a
+     *             value of another type
+     */
+    public int readInto(TupleBatch b, int slot, List<Predicate> predicates) {
+        int n = predicates.size();
+        int[] offsets = new int[n];
+        for (int i = 0; i < n; i++) {
+            Predicate p = predicates.get(i);
+            if (td.getFieldType(p.getField()) != p.getOperand().getType())
+                throw new IllegalArgumentException("predicate compares field " + p.getField() + " of type "
+                        + td.getFieldType(p.getField()) + " to a " + p.getOperand().getType());
+            offsets[i] = fieldOffsets[p.getField()];
+        }
+        for (; slot < numSlots && !b.isFull(); slot++) {
+            if (!isSlotUsed(slot)) continue;
+            if (n > 0 && !passes(slot, predicates, offsets)) continue;
+            int row = b.addRow();
+            for (int j=0; j<fieldOffsets.length; j++) {
+                if (b.intColumn(j) != null)
+                    b.setInt(j, row, getInt(slot, j));
+                else
+                    b.setString(j, row, getString(slot, j));
             }
-            return null;
+            b.setRecordId(row, new RecordId(pid, slot));
         }
+        return slot;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+    private boolean passes(int slot, List<Predicate> predicates, int[] offsets) {
+        int off = slotOffset(slot);
+        for (int i = 0; i < offsets.length; i++)
+            if (!predicates.get(i).filter(data, off + offsets[i])) return false;
+        return true;
+    }
+
+    /**
+     * Encode field f of a tuple at offset off of the page, in the format
+     * of {@link Field#serialize}.
+     */
+    private void writeField(int off, Field f) {
+        if (f instanceof IntField) {
+            int v = ((IntField) f).getValue();
+            data[off] = (byte) (v >>> 24);
+            data[off+1] = (byte) (v >>> 16);
+            data[off+2] = (byte) (v >>> 8);
+            data[off+3] = (byte) v;
+            return;
+        }
+        if (f instanceof StringField) {
+            String s = ((StringField) f).getValue();
+            int len = Math.min(s.length(), Type.STRING_LEN);
+            writeField(off, new IntField(len));
+            for (int i=0; i<len; i++) data[off+4+i] = (byte) s.charAt(i);
+            Arrays.fill(data, off+4+len, off+Type.STRING_LEN+4, (byte) 0);
+            return;
+        }
         try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(f.getType().getLen());
+            f.serialize(new DataOutputStream(baos));
+            byte[] b = baos.toByteArray();
+            System.arraycopy(b, 0, data, off, Math.min(b.length, f.getType().getLen()));
+        } catch (IOException e) {
+            // this really shouldn't happen
             e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
-
-        return t;
     }
 
     /**
@@ -156,64 +294,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data.clone();
     }
 
     /**
@@ -239,8 +320,10 @@ public class HeapPage implements Page {
      */
     public void deleteTuple(Tuple t) throws DbException {
         if (!t.getRecordId().getPageId().equals(pid)) throw new DbException("wrong pages");
-        if (isSlotUsed(t.getRecordId().tupleno())) {
-            markSlotUsed(t.getRecordId().tupleno(),false);
+        int slot = t.getRecordId().tupleno();
+        if (isSlotUsed(slot)) {
+            markSlotUsed(slot,false);
+            Arrays.fill(data, slotOffset(slot), slotOffset(slot)+tupleSize, (byte) 0);
             return;
         }
         throw new DbException("not exist");
@@ -254,11 +337,13 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) throw new DbException("tupledesc mismatch");
         for (int i=0;i<numSlots;i++) {
             if (!isSlotUsed(i)) {
                 markSlotUsed(i,true);
+                for (int j=0; j<fieldOffsets.length; j++)
+                    writeField(slotOffset(i)+fieldOffsets[j], t.getField(j));
                 t.setRecordId(new RecordId(pid,i));
-                tuples[i]=t;
                 return;
             }
         }
@@ -284,29 +369,25 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int ans = 0;
-        for (int i =0;i<numSlots;i++) {
-            if (!isSlotUsed(i)) ans++;
-        }
-        return ans;
+        // bits past the last slot are always clear
+        int used = 0;
+        for (int i=0; i<headerSize; i++) used += Integer.bitCount(data[i] & 0xff);
+        return numSlots - used;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
-        int bytex = i/8;
-        int bitx = i%8;
-        if (bytex<0 || bytex>= header.length) return false;
-        byte tmp = header[bytex];
-        return ((1<<bitx)&tmp)>0;
+        if (i<0 || i>=numSlots) return false;
+        return ((1<<(i%8))&data[i/8])!=0;
     }
 
     /**
      * Abstraction to fill or clear a slot on this page.
      */
     private void markSlotUsed(int i, boolean value) {
-        if (value) header[i/8]|=1<<(i%8);else header[i/8]&=((1<<8)-1)^(1<<(i%8));
+        if (value) data[i/8]|=1<<(i%8);else data[i/8]&=((1<<8)-1)^(1<<(i%8));
     }
 
     /**
@@ -328,7 +409,8 @@ public class HeapPage implements Page {
             }
             @Override
             public Tuple next() {
-                Tuple ha = tuples[pos];
+                if (pos>=numSlots) throw new NoSuchElementException();
+                Tuple ha = getTuple(pos);
                 pos = build(pos+1);
                 return ha;
             }
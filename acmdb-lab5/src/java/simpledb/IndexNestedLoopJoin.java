@@ -0,0 +1,196 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins each tuple of its left input with the tuples of
+ * a B+ tree that match it, found by a lookup in the tree rather than a scan
+ * of it. The right input must be a SeqScan of a BTreeFile keyed on the join
+ * field, possibly under Filters; the scan itself is never read, its filters
+ * and the predicates pushed down into it are applied to the tuples each
+ * lookup returns.
+ *
+ * @see BTreeFile#indexIterator
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+
+    // what child2 reads: the tree, the transaction, and the filters on top
+    // of it and pushed into it
+    private transient BTreeFile file;
+    private transient TransactionId tid;
+    private transient ArrayList<Predicate> filters;
+    // the current left tuple and the lookup of its matches
+    private transient Tuple now1;
+    private transient DbFileIterator matches;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be EQUALS, LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or
+     *            GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join, for which
+     *            {@link #indexOf} must find a tree
+     * @throws IllegalArgumentException if the operator is not supported or
+     *             child2 cannot be looked up in
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (lookupOp(p.getOperator()) == null)
+            throw new IllegalArgumentException("unsupported join operator " + p.getOperator());
+        if (indexOf(child2, p.getField2()) == null)
+            throw new IllegalArgumentException("no B+ tree on the inner join field");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * @return the operator to look up the inner tree with so that it returns
+     *         the tuples t2 for which t1 op t2, or null if op is not supported
+     */
+    private static Predicate.Op lookupOp(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+                return Predicate.Op.EQUALS;
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the B+ tree that the given iterator scans if it is keyed on the
+     * given field of the iterator's tuples, and the iterator is a SeqScan of
+     * it under nothing but Filters; otherwise null.
+     */
+    public static BTreeFile indexOf(DbIterator it, int field) {
+        while (it instanceof Filter)
+            it = ((Filter) it).getChildren()[0];
+        if (!(it instanceof SeqScan)) return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) it).getTableId());
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != field) return null;
+        return (BTreeFile) f;
+    }
+
+    /**
+     * Estimates the number of pages read by an equality lookup in a tree: the
+     * root pointer, one page per internal level and a leaf.
+     */
+    public static double lookupPages(BTreeFile f) {
+        int n = Math.max(1, f.numPages());
+        int keySize = f.getTupleDesc().getFieldType(f.keyField()).getLen();
+        double fanout = BufferPool.getPageSize() / (double) (keySize + BTreeInternalPage.INDEX_SIZE);
+        return 2 + Math.ceil(Math.log(n) / Math.log(fanout));
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        filters = new ArrayList<Predicate>();
+        DbIterator it = child2;
+        while (it instanceof Filter) {
+            filters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        filters.addAll(((SeqScan) it).getPredicates());
+        file = indexOf(child2, p.getField2());
+        tid = ((SeqScan) it).getTransactionId();
+        child1.open();
+        now1 = null;
+        super.open();
+    }
+
+    private void closeMatches() {
+        if (matches != null) {
+            matches.close();
+            matches = null;
+        }
+    }
+
+    public void close() {
+        super.close();
+        closeMatches();
+        now1 = null;
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeMatches();
+        now1 = null;
+        child1.rewind();
+    }
+
+    private boolean passesFilters(Tuple t) {
+        for (Predicate f : filters)
+            if (!f.filter(t)) return false;
+        return true;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of joining tuples from the
+     * left and right relation, in order of the left one.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches == null) {
+                if (!child1.hasNext()) return null;
+                now1 = child1.next();
+                matches = file.indexIterator(tid, new IndexPredicate(
+                        lookupOp(p.getOperator()), now1.getField(p.getField1())));
+                matches.open();
+            }
+            while (matches.hasNext()) {
+                Tuple now2 = matches.next();
+                if (passesFilters(now2)) return Tuple.merge(now1, now2);
+            }
+            closeMatches();
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
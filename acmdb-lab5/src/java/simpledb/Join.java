@@ -4,6 +4,12 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Equality joins are handed to a {@link HashEquiJoin}, which then owns the
+ * children: it alone opens, rewinds and closes them. Other joins are block
+ * nested loops joins: the outer input is read a block of pages at a time,
+ * and the inner input is scanned once per block rather than once per outer
+ * tuple, each inner tuple being matched against the whole block.
  */
 public class Join extends Operator {
 
@@ -11,8 +17,16 @@ public class Join extends Operator {
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
-    private Tuple now1,now2;
+    private Tuple now2;
     private HashEquiJoin has;
+    private int blockPages = DEFAULT_BLOCK_PAGES;
+
+    /** Default number of pages of outer tuples to hold per scan of the inner input. */
+    public static final int DEFAULT_BLOCK_PAGES = 64;
+
+    // the current block of outer tuples, and the next one to match now2 with
+    private transient ArrayList<Tuple> block;
+    private transient int blockPos;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -36,6 +50,33 @@ public class Join extends Operator {
         return p;
     }
 
+    /**
+     * @return the number of pages of outer tuples this join holds in memory
+     *         per scan of the inner input
+     */
+    public int getBlockPages() {
+        return blockPages;
+    }
+
+    /**
+     * Set the number of pages of outer tuples this join holds in memory per
+     * scan of the inner input; takes effect at the next block.
+     */
+    public void setBlockPages(int blockPages) {
+        if (blockPages < 1)
+            throw new IllegalArgumentException("a block needs at least one page");
+        this.blockPages = blockPages;
+    }
+
+    /**
+     * @return the number of tuples of the given TupleDesc that fit in the
+     *         given number of heap pages
+     */
+    public static int tuplesPerBlock(TupleDesc td, int pages) {
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        return Math.max(1, pages * perPage);
+    }
+
     /**
      * @return
      *       the field name of join field1. Should be quantified by
@@ -64,33 +105,46 @@ public class Join extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        if (this.has != null) this.has.open();
+        if (this.has != null) {
+            this.has.open();
+            super.open();
+            return;
+        }
         child1.open();
         child2.open();
         super.open();
-        now1=now2=null;
+        block = new ArrayList<Tuple>();
+        now2=null;
     }
 
     public void close() {
-        if (this.has != null) this.has.close();
         super.close();
+        if (this.has != null) {
+            this.has.close();
+            return;
+        }
         child1.close();
         child2.close();
-        now1=now2=null;
+        block = null;
+        now2=null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        if (this.has != null) this.has.rewind();
+        if (this.has != null) {
+            this.has.rewind();
+            return;
+        }
         child1.rewind();
         child2.rewind();
-        now1=now2=null;
+        block.clear();
+        now2=null;
     }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate. Within a block of outer tuples, matches
+     * come in the order of the inner relation.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -107,16 +161,26 @@ public class Join extends Operator {
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         if (this.has != null) return this.has.fetchNext();
         while (true) {
-            if (now1 == null) {
-                if (!child1.hasNext()) return null;
-                now1 = child1.next();
+            if (block.isEmpty()) {
+                int size = tuplesPerBlock(child1.getTupleDesc(), blockPages);
+                while (block.size() < size && child1.hasNext()) block.add(child1.next());
+                if (block.isEmpty()) return null;
                 child2.rewind();
+                now2 = null;
             }
-            while (child2.hasNext()) {
-                now2 = child2.next();
-                if (p.filter(now1,now2)) return Tuple.merge(now1,now2);
+            while (true) {
+                if (now2 == null) {
+                    if (!child2.hasNext()) break;
+                    now2 = child2.next();
+                    blockPos = 0;
+                }
+                while (blockPos < block.size()) {
+                    Tuple now1 = block.get(blockPos++);
+                    if (p.filter(now1,now2)) return Tuple.merge(now1,now2);
+                }
+                now2 = null;
             }
-            now1=null;
+            block.clear();
         }
     }
 
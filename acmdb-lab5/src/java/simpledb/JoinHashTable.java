@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * A JoinHashTable holds the build side of a hash join: its rows, stored
+ * column by column in growable primitive arrays, and an index from join
+ * key to the rows with that key.
+ * <p>
+ * The index is an open addressing table with linear probing. Each slot
+ * holds a distinct key and the first and last of its rows; the rows of one
+ * key are chained through a next array parallel to the rows, so a key
+ * costs no list object and a row no pointer but one int. Integer keys are
+ * kept in an int array and never boxed. String keys are kept as String
+ * references together with their hash codes, so probing compares hashes
+ * before strings.
+ */
+public class JoinHashTable {
+
+    private static final int INITIAL_ROWS = 1024;
+
+    private final TupleDesc td;
+    private final int keyField;
+    private final boolean intKey;
+
+    // rows, one of the two arrays is null for each column
+    private int[][] ints;
+    private String[][] strings;
+    private int numRows;
+    // total length of the strings in the rows, for memoryUsage
+    private long stringChars;
+    // next row with the same key, or -1
+    private int[] next;
+
+    // the index; a slot is empty if its first row is -1
+    private int mask;
+    private int numKeys;
+    private int[] intKeys;
+    private String[] stringKeys;
+    private int[] hashes;
+    private int[] first;
+    private int[] last;
+
+    /**
+     * @param td the TupleDesc of the build side rows
+     * @param keyField the join column
+     */
+    public JoinHashTable(TupleDesc td, int keyField) {
+        this.td = td;
+        this.keyField = keyField;
+        this.intKey = td.getFieldType(keyField) == Type.INT_TYPE;
+        this.ints = new int[td.numFields()][];
+        this.strings = new String[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[INITIAL_ROWS];
+            else
+                strings[i] = new String[INITIAL_ROWS];
+        }
+        this.next = new int[INITIAL_ROWS];
+        allocate(64);
+    }
+
+    private void allocate(int slots) {
+        mask = slots - 1;
+        if (intKey)
+            intKeys = new int[slots];
+        else {
+            stringKeys = new String[slots];
+            hashes = new int[slots];
+        }
+        first = new int[slots];
+        last = new int[slots];
+        Arrays.fill(first, -1);
+    }
+
+    /** @return the TupleDesc of the rows */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows in the table */
+    public int size() {
+        return numRows;
+    }
+
+    /** Remove all rows. */
+    public void clear() {
+        numRows = 0;
+        numKeys = 0;
+        stringChars = 0;
+        Arrays.fill(first, -1);
+    }
+
+    /**
+     * Returns an estimate of the number of bytes of heap the table takes,
+     * counting the arrays it has allocated and the strings it refers to.
+     */
+    public long memoryUsage() {
+        long perRow = 4;
+        int stringColumns = 0;
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                perRow += 4;
+            } else {
+                perRow += 8;
+                stringColumns++;
+            }
+        }
+        // a String object and its char array, besides the characters
+        long strings = 48L * numRows * stringColumns + 2 * stringChars;
+        long perSlot = intKey ? 12 : 16;
+        return perRow * next.length + strings + perSlot * first.length;
+    }
+
+    /** Spreads the bits of a hash code, since slots are picked by its low bits. */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    /**
+     * Returns the hash code of a field of a row of a batch, as the table
+     * computes it for its keys. The slot of a key is picked by the low bits,
+     * so the high bits can be used to partition rows between tables.
+     */
+    public static int hash(TupleBatch b, int col, int row) {
+        int[] c = b.intColumn(col);
+        return mix(c != null ? c[row] : b.getString(col, row).hashCode());
+    }
+
+    /** @return the slot of an int key, or the empty slot where it would go */
+    private int slotOf(int key) {
+        int s = mix(key) & mask;
+        while (first[s] >= 0 && intKeys[s] != key) s = (s + 1) & mask;
+        return s;
+    }
+
+    /** @return the slot of a string key, or the empty slot where it would go */
+    private int slotOf(String key, int hash) {
+        int s = mix(hash) & mask;
+        while (first[s] >= 0 && (hashes[s] != hash || !stringKeys[s].equals(key))) s = (s + 1) & mask;
+        return s;
+    }
+
+    /** Doubles the index and puts every key back. */
+    private void rehash() {
+        int[] oldInts = intKeys;
+        String[] oldStrings = stringKeys;
+        int[] oldHashes = hashes;
+        int[] oldFirst = first;
+        int[] oldLast = last;
+        allocate(2 * oldFirst.length);
+        for (int i = 0; i < oldFirst.length; i++) {
+            if (oldFirst[i] < 0) continue;
+            int s;
+            if (intKey) {
+                s = slotOf(oldInts[i]);
+                intKeys[s] = oldInts[i];
+            } else {
+                s = slotOf(oldStrings[i], oldHashes[i]);
+                stringKeys[s] = oldStrings[i];
+                hashes[s] = oldHashes[i];
+            }
+            first[s] = oldFirst[i];
+            last[s] = oldLast[i];
+        }
+    }
+
+    private void growRows() {
+        int n = 2 * next.length;
+        next = Arrays.copyOf(next, n);
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null)
+                ints[i] = Arrays.copyOf(ints[i], n);
+            else
+                strings[i] = Arrays.copyOf(strings[i], n);
+        }
+    }
+
+    /** Adds the live rows of a batch, which must have the TupleDesc of the table. */
+    public void add(TupleBatch b) {
+        for (int i = 0; i < b.numSelected(); i++)
+            add(b, b.selected(i));
+    }
+
+    /** Adds a row of a batch, which must have the TupleDesc of the table. */
+    public void add(TupleBatch b, int r) {
+        if (numRows == next.length) growRows();
+        int row = numRows++;
+        for (int j = 0; j < ints.length; j++) {
+            if (ints[j] != null) {
+                ints[j][row] = b.getInt(j, r);
+            } else {
+                strings[j][row] = b.getString(j, r);
+                stringChars += strings[j][row].length();
+            }
+        }
+        next[row] = -1;
+        if (2 * (numKeys + 1) > first.length) rehash();
+        int s;
+        if (intKey) {
+            s = slotOf(ints[keyField][row]);
+            intKeys[s] = ints[keyField][row];
+        } else {
+            String key = strings[keyField][row];
+            int hash = key.hashCode();
+            s = slotOf(key, hash);
+            stringKeys[s] = key;
+            hashes[s] = hash;
+        }
+        if (first[s] < 0) {
+            first[s] = row;
+            numKeys++;
+        } else {
+            next[last[s]] = row;
+        }
+        last[s] = row;
+    }
+
+    /**
+     * Returns the first row whose key equals the given field of a row of
+     * another batch, or -1 if there is none; the rest follow from
+     * {@link #next(int)}, in the order they were added.
+     */
+    public int find(TupleBatch b, int col, int row) {
+        if (intKey) {
+            int[] c = b.intColumn(col);
+            return c == null ? -1 : first[slotOf(c[row])];
+        }
+        String[] c = b.stringColumn(col);
+        if (c == null) return -1;
+        return first[slotOf(c[row], c[row].hashCode())];
+    }
+
+    /** @return the next row with the key of the given row, or -1 */
+    public int next(int row) {
+        return next[row];
+    }
+
+    /**
+     * Copies the fields of a row into a row of a batch, starting at the given
+     * column of the batch.
+     */
+    public void copyRow(int row, TupleBatch out, int outRow, int outCol) {
+        for (int j = 0; j < ints.length; j++) {
+            if (ints[j] != null)
+                out.setInt(outCol + j, outRow, ints[j][row]);
+            else
+                out.setString(outCol + j, outRow, strings[j][row]);
+        }
+    }
+}
@@ -68,12 +68,48 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.indexLookup && lj.p == Predicate.Op.EQUALS
+                && IndexNestedLoopJoin.indexOf(plan2, t2id) != null)
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        else if (isRangeJoin(lj.p)
+                || (lj.p == Predicate.Op.EQUALS && SortMergeJoin.isSortedOn(plan1, t1id)
+                        && SortMergeJoin.isSortedOn(plan2, t2id)))
+            j = new SortMergeJoin(p, plan1, plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
     }
 
+    /**
+     * @return the B+ tree keyed on the given field of the table with the
+     *         given alias, or null if that table is not one
+     */
+    private BTreeFile indexOn(String tableAlias, String fieldPureName) {
+        Integer id = tableAlias == null ? null : p.getTableId(tableAlias);
+        if (id == null) return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(id);
+        if (!(f instanceof BTreeFile)) return null;
+        BTreeFile bf = (BTreeFile) f;
+        return fieldPureName.equals(bf.getTupleDesc().getFieldName(bf.keyField())) ? bf : null;
+    }
+
+    /**
+     * @return true if op is an inequality that a {@link SortMergeJoin} can
+     *         evaluate, rather than a nested loops join
+     */
+    private static boolean isRangeJoin(Predicate.Op op) {
+        return op != Predicate.Op.EQUALS && SortMergeJoin.supports(op);
+    }
+
+    /**
+     * Estimate the CPU cost of sorting card tuples in memory.
+     */
+    private static double sortCost(int card) {
+        return card <= 1 ? card : card * (Math.log(card) / Math.log(2));
+    }
+
     /**
      * Estimate the cost of a join.
      *
@@ -102,19 +138,104 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true, true);
+    }
+
+    /**
+     * Estimate the cost of a join, as {@link #estimateJoinCost(LogicalJoinNode,
+     * int, int, double, double)} does.
+     *
+     * @param outerIsTable
+     *            Is the left-hand side of the query the table j.t1Alias
+     *            itself, rather than a join that includes it? Only then can
+     *            its tuples come in the order of an index on it.
+     * @param innerIsTable
+     *            Is the right-hand side of the query the table j.t2Alias
+     *            itself, rather than a join that includes it? Only then can
+     *            the join look tuples up in an index on it.
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean outerIsTable, boolean innerIsTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1+card1*cost2+card1*card2;
+            if (isRangeJoin(j.p)) {
+                // sort merge: each side is read once and sorted, then every
+                // output tuple is produced once
+                return cost1 + cost2 + sortCost(card1) + sortCost(card2)
+                        + estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
+                                j.f1PureName, j.f2PureName, card1, card2, false,
+                                false, null, null);
+            }
+            if (j.p != Predicate.Op.EQUALS) {
+                // block nested loops: the inner side is read once per block
+                // of outer tuples
+                double blocks = Math.ceil((double) card1 / blockSize(j.t1Alias));
+                return cost1 + blocks * cost2 + (double) card1 * card2;
+            }
+            return Math.min(equiJoinCost(j, card1, card2, cost1, cost2, outerIsTable, innerIsTable),
+                    lookupJoinCost(j, card1, cost1, cost2, innerIsTable))
+                    + estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
+                            j.f1PureName, j.f2PureName, card1, card2, false,
+                            false, null, null);
         }
     }
 
+    /**
+     * @return the cost of an equality join of the given sides without index
+     *         lookups, but for producing its output: if both sides are tables
+     *         that come in the order of the join fields, as scans of B+ trees
+     *         keyed on them do, a sort merge join only reads each once;
+     *         otherwise a hash join reads each side once, and probes the
+     *         table once per right tuple, after hashing and copying every
+     *         left tuple into it
+     */
+    private double equiJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean outerIsTable, boolean innerIsTable) {
+        if (outerIsTable && innerIsTable && indexOn(j.t1Alias, j.f1PureName) != null
+                && indexOn(j.t2Alias, j.f2PureName) != null)
+            return cost1 + cost2;
+        return cost1 + cost2 + 2.0 * card1 + card2;
+    }
+
+    /**
+     * @return the cost of an index nested loops join of the given sides but
+     *         for producing its output: one lookup in the inner table per
+     *         outer tuple, at the cost of the pages it reads; infinite if the
+     *         inner side is not a table with a B+ tree on the join field
+     */
+    private double lookupJoinCost(LogicalJoinNode j, int card1, double cost1,
+            double cost2, boolean innerIsTable) {
+        BTreeFile index = innerIsTable ? indexOn(j.t2Alias, j.f2PureName) : null;
+        if (index == null) return Double.POSITIVE_INFINITY;
+        return cost1 + card1 * cost2 * IndexNestedLoopJoin.lookupPages(index)
+                / Math.max(1, index.numPages());
+    }
+
+    /**
+     * @return true if an equality join of the given sides is cheapest done
+     *         by looking the outer tuples up in an index on the inner table
+     */
+    private boolean isWorthLookingUp(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean outerIsTable, boolean innerIsTable) {
+        return j.p == Predicate.Op.EQUALS && !(j instanceof LogicalSubplanJoinNode)
+                && lookupJoinCost(j, card1, cost1, cost2, innerIsTable)
+                        < equiJoinCost(j, card1, card2, cost1, cost2, outerIsTable, innerIsTable);
+    }
+
+    /**
+     * @return the number of tuples of the given table that a {@link Join}
+     *         holds per scan of its inner input
+     */
+    private int blockSize(String tableAlias) {
+        Integer id = p.getTableId(tableAlias);
+        if (id == null) return 1;
+        TupleDesc td = Database.getCatalog().getTupleDesc(id);
+        return Join.tuplesPerBlock(td, Join.DEFAULT_BLOCK_PAGES);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -224,6 +345,8 @@ public class JoinOptimizer {
         //Not necessary for labs 1--3
 
         int siz = joins.size();
+        if (siz == 0)
+            return joins;
         PlanCache pc = new PlanCache();
         for (int i=1;i<=siz;i++) {
             Set<Set<LogicalJoinNode>> subset = enumerateSubsets(joins,i);
@@ -369,10 +492,13 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        boolean t2IsTable = news.isEmpty() || !doesJoin(prevBest, j.t2Alias);
+        boolean t1IsTable = news.isEmpty() || !doesJoin(prevBest, j.t1Alias);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t1IsTable, t2IsTable);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t2IsTable, t1IsTable);
+        boolean lookup;
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -380,9 +506,17 @@ public class JoinOptimizer {
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
+            lookup = isWorthLookingUp(j2, t2card, t1card, t2cost, t1cost, t2IsTable, t1IsTable);
+        } else {
+            lookup = isWorthLookingUp(j, t1card, t2card, t1cost, t2cost, t1IsTable, t2IsTable);
         }
         if (cost1 >= bestCostSoFar)
             return null;
+        if (lookup) {
+            // the same node is planned with other inputs for other subsets
+            j = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName, j.f2PureName, j.p);
+            j.indexLookup = true;
+        }
 
         CostCard cc = new CostCard();
 
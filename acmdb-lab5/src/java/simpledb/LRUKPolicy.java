@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Every page remembers the
+ * times of its last K accesses; the victim is the page whose K-th most recent
+ * access is the oldest. Pages seen fewer than K times rank before all others
+ * (their backward K-distance is infinite) and are ordered among themselves by
+ * plain LRU, so one-shot scan pages go before pages that are re-referenced.
+ * <p>
+ * The history of evicted pages is kept for a while, so a page that comes
+ * back soon after being evicted is not treated as brand new.
+ */
+public class LRUKPolicy extends AbstractReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+    public static final int DEFAULT_RETAINED = 1024;
+
+    private static class Entry {
+        final PageId pid;
+        final long serial;
+        // access times, most recent first
+        final long[] history;
+        int count;
+
+        Entry(PageId pid, long serial, long[] history, int count) {
+            this.pid = pid;
+            this.serial = serial;
+            this.history = history;
+            this.count = count;
+        }
+
+        long kth() {
+            return count >= history.length ? history[history.length - 1] : Long.MIN_VALUE;
+        }
+    }
+
+    private final int k;
+    private final int retainedLimit;
+    private long clock;
+    private long serials;
+    private final HashMap<PageId, Entry> resident;
+    private final TreeSet<Entry> order;
+    private final LinkedHashMap<PageId, Entry> retained;
+
+    public LRUKPolicy() {
+        this(DEFAULT_K, DEFAULT_RETAINED);
+    }
+
+    /**
+     * @param k the number of accesses remembered per page (K &gt;= 1; K = 1 is LRU)
+     * @param retainedLimit how many evicted pages to keep history for
+     */
+    public LRUKPolicy(int k, int retainedLimit) {
+        if (k < 1) throw new IllegalArgumentException("K must be at least 1");
+        this.k = k;
+        this.retainedLimit = retainedLimit;
+        this.clock = 0;
+        this.serials = 0;
+        this.resident = new HashMap<PageId, Entry>();
+        this.order = new TreeSet<Entry>(new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = Long.compare(a.kth(), b.kth());
+                if (c != 0) return c;
+                c = Long.compare(a.history[0], b.history[0]);
+                if (c != 0) return c;
+                return Long.compare(a.serial, b.serial);
+            }
+        });
+        this.retained = new LinkedHashMap<PageId, Entry>();
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        long now = ++clock;
+        Entry e = resident.get(pid);
+        if (e != null) {
+            order.remove(e);
+        } else {
+            e = retained.remove(pid);
+            if (e == null) e = new Entry(pid, serials++, new long[k], 0);
+            resident.put(pid, e);
+        }
+        System.arraycopy(e.history, 0, e.history, 1, k - 1);
+        e.history[0] = now;
+        if (e.count < k) e.count++;
+        order.add(e);
+    }
+
+    public synchronized void recordRemoval(PageId pid, boolean evicted) {
+        Entry e = resident.remove(pid);
+        if (e == null) return;
+        order.remove(e);
+        if (!evicted || retainedLimit <= 0) return;
+        retained.put(pid, e);
+        if (retained.size() > retainedLimit) {
+            Iterator<Map.Entry<PageId, Entry>> it = retained.entrySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        for (Entry e : order) {
+            if (evictable.canEvict(e.pid)) return e.pid;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,32 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Least-recently-used replacement: the victim is the evictable page whose
+ * last access is the oldest.
+ */
+public class LRUPolicy extends AbstractReplacementPolicy {
+
+    // access-ordered, so iteration starts at the least recently used page
+    private final LinkedHashMap<PageId, Boolean> pages;
+
+    public LRUPolicy() {
+        pages = new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        pages.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void recordRemoval(PageId pid, boolean evicted) {
+        pages.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        for (PageId pid : pages.keySet()) {
+            if (evictable.canEvict(pid)) return pid;
+        }
+        return null;
+    }
+}
@@ -1,92 +1,615 @@
 package simpledb;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-enum State{
-    EMPTY,READ1,WRITE,READ2
-}
-
+/**
+ * LockManager keeps the table and page locks of all transactions.
+ * <p>
+ * Locking is hierarchical: before a page is locked, its table is locked in
+ * an intention mode (IS for a shared page lock, IX for an exclusive one).
+ * A transaction holding a table in S, SIX or X mode reads every page of it
+ * without page locks, and one holding it in X mode writes them without
+ * page locks. Once a transaction holds more than
+ * {@link #getEscalationThreshold()} page locks on one table, the manager
+ * tries to escalate to a table lock (S from IS, X from IX or SIX) and drops
+ * the page locks it covers, so a scan of a large table keeps a bounded
+ * number of lock entries. Escalation never blocks: if the table lock cannot
+ * be granted right away, the transaction keeps its page locks and tries
+ * again after another threshold's worth of pages.
+ * <p>
+ * Every locked page or table has a lock head counting the holders of each
+ * mode; heads are independently synchronized, so requests on different
+ * pages never contend. Every transaction keeps a hash map from the pages
+ * and tables it has locked to the mode it holds them in, so re-entrant
+ * requests are answered without touching the head and releasing all locks
+ * of a transaction costs O(locks held).
+ * <p>
+ * A request that cannot be granted joins the FIFO queue of its head and
+ * blocks until it is woken by a release. Requests are granted in arrival
+ * order: a new shared request does not overtake a queued exclusive one, so
+ * a stream of readers cannot starve a writer. A holder asking for a
+ * stronger mode takes the head's upgrade slot instead, and is served before
+ * anything in the queue.
+ * <p>
+ * Every time a request blocks, the wait-for graph (an edge from each
+ * blocked transaction to each transaction holding a conflicting lock or
+ * queued ahead of it with a conflicting request) is searched for a cycle;
+ * if one is found, one transaction of the cycle is chosen by the
+ * {@link VictimPolicy} and its requests fail with a
+ * TransactionAbortedException.
+ */
 public class LockManager {
-    public static class TP{
-        public TransactionId tid;
-        public PageId pid;
-        public Permissions permissions;
-        public TP(TransactionId tid, PageId pid,Permissions permissions) {
-            this.tid = tid;
-            this.pid = pid;
-            this.permissions = permissions;
+    /** How to pick the transaction to abort when a deadlock is found. */
+    public enum VictimPolicy {
+        /** abort the transaction that started last */
+        YOUNGEST,
+        /** abort the transaction holding the fewest locks, the youngest one on ties */
+        FEWEST_LOCKS
+    }
+
+    /** Lock modes; pages are only locked in S and X mode. */
+    public enum LockMode {
+        /** intention to lock pages shared */
+        IS,
+        /** intention to lock pages exclusive */
+        IX,
+        /** shared */
+        S,
+        /** shared, with the intention to lock pages exclusive */
+        SIX,
+        /** exclusive */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        /** @return true if two transactions can hold this mode and other at the same time */
+        public boolean compatible(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode granting everything this mode and other grant */
+        public LockMode join(LockMode other) {
+            if (this == other || other == null) return this;
+            if (this == X || other == X) return X;
+            if (this == IS) return other;
+            if (other == IS) return this;
+            // two different modes among IX, S and SIX
+            return SIX;
+        }
+
+        /** @return true if this mode grants everything other grants */
+        public boolean covers(LockMode other) {
+            return join(other) == this;
+        }
+    }
+
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** Lock key of a whole table. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return tableId;
+        }
+
+        public String toString() {
+            return "table " + tableId;
         }
-        public boolean equals(Object other) {
-            if (!(other instanceof TP)) return false;
-            return tid.equals(((TP) other).tid) && pid.equals(((TP) other).pid) && permissions.equals(((TP) other).permissions);
+    }
+
+    /** Lock state of one page or table; all fields are guarded by the head's monitor. */
+    private static class LockHead {
+        // number of holders of each mode
+        final int[] granted = new int[LockMode.values().length];
+        // blocked requests in arrival order
+        final LinkedList<Request> queue = new LinkedList<Request>();
+        // a holder waiting for a stronger mode, served before the queue
+        Request upgrader;
+        // set once the head has been dropped from the lock table
+        boolean removed;
+
+        boolean hasWaiters() {
+            return upgrader != null || !queue.isEmpty();
+        }
+
+        boolean idle() {
+            for (int n : granted) {
+                if (n != 0) return false;
+            }
+            return !hasWaiters();
+        }
+    }
+
+    /** Locks of one transaction. */
+    private static class TxnLocks {
+        // keys are PageIds and TableKeys
+        final ConcurrentHashMap<Object, LockMode> held = new ConcurrentHashMap<Object, LockMode>();
+        // page locks held per table, guarded by the TxnLocks' monitor
+        final HashMap<Integer, Integer> pageLocks = new HashMap<Integer, Integer>();
+        // set when the transaction has been chosen to break a deadlock
+        volatile boolean victim;
+        // set by releaseAll; nothing is granted to a closed TxnLocks any more
+        boolean closed;
+    }
+
+    /** A lock request; while it is blocked, a node of the wait-for graph. */
+    private static class Request {
+        final TransactionId tid;
+        final Object key;
+        final LockMode mode;
+
+        Request(TransactionId tid, Object key, LockMode mode) {
+            this.tid = tid;
+            this.key = key;
+            this.mode = mode;
         }
     }
-    private ConcurrentHashMap<TransactionId, ArrayList<TP> > TransLockPage;
-    private ConcurrentHashMap<PageId, ArrayList<TP> > PageLock;
+
+    private final ConcurrentHashMap<Object, LockHead> heads;
+    private final ConcurrentHashMap<TransactionId, TxnLocks> txns;
+    // blocked requests per transaction, guarded by the map itself; a
+    // transaction may block in several threads at once
+    private final HashMap<TransactionId, ArrayList<Request>> waiting;
+    private volatile VictimPolicy victimPolicy;
+    private volatile int escalationThreshold;
+
     public LockManager() {
-        TransLockPage = new ConcurrentHashMap<>();
-        PageLock = new ConcurrentHashMap<>();
+        heads = new ConcurrentHashMap<Object, LockHead>();
+        txns = new ConcurrentHashMap<TransactionId, TxnLocks>();
+        waiting = new HashMap<TransactionId, ArrayList<Request>>();
+        victimPolicy = VictimPolicy.YOUNGEST;
+        escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    public void setVictimPolicy(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
+    }
+
+    /** @return the number of page locks on one table above which a transaction escalates */
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /** @param escalationThreshold the new threshold; 0 or less disables escalation */
+    public void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    private static LockMode pageMode(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? LockMode.X : LockMode.S;
+    }
+
+    /**
+     * @return the access tid has to pid, through a page lock or a lock on
+     *         its table, or null if it has none
+     */
+    public Permissions getPermissions(TransactionId tid, PageId pid) {
+        TxnLocks txn = txns.get(tid);
+        if (txn == null) return null;
+        LockMode mode = txn.held.get(pid);
+        LockMode table = txn.held.get(new TableKey(pid.getTableId()));
+        if (mode == LockMode.X || table == LockMode.X) return Permissions.READ_WRITE;
+        if (mode == LockMode.S || table == LockMode.S || table == LockMode.SIX) return Permissions.READ_ONLY;
+        return null;
+    }
+
+    /** @return the mode tid holds the table in, or null if it holds no lock on it */
+    public LockMode getTableMode(TransactionId tid, int tableId) {
+        TxnLocks txn = txns.get(tid);
+        return txn == null ? null : txn.held.get(new TableKey(tableId));
+    }
+
+    /** @return the number of table and page locks tid holds */
+    public int numLocks(TransactionId tid) {
+        TxnLocks txn = txns.get(tid);
+        return txn == null ? 0 : txn.held.size();
     }
-    public synchronized ArrayList<TP> query_tid(TransactionId tid) {
-        if (!TransLockPage.containsKey(tid)) {
-            TransLockPage.put(tid,new ArrayList<TP>());
+
+    private TxnLocks txn(TransactionId tid) {
+        TxnLocks txn = txns.get(tid);
+        if (txn == null) {
+            TxnLocks created = new TxnLocks();
+            txn = txns.putIfAbsent(tid, created);
+            if (txn == null) txn = created;
         }
-        return TransLockPage.get(tid);
+        return txn;
     }
-    public synchronized ArrayList<TP> query_pid(PageId pid) {
-        if (!PageLock.containsKey(pid)) {
-            PageLock.put(pid,new ArrayList<TP>());
+
+    private LockHead head(Object key) {
+        LockHead head = heads.get(key);
+        if (head == null) {
+            LockHead created = new LockHead();
+            head = heads.putIfAbsent(key, created);
+            if (head == null) head = created;
         }
-        return PageLock.get(pid);
+        return head;
     }
-    public synchronized TP queryTP(TransactionId tid,PageId pid) {
-        ArrayList<TP> ans = query_tid(tid);
-        for (TP i:ans) {
-            if (i.pid.equals(pid)) return i;
+
+    /** Drop a head nobody holds or waits on; the caller holds its monitor. */
+    private void dropIfIdle(Object key, LockHead head) {
+        if (head.idle()) {
+            head.removed = true;
+            heads.remove(key, head);
         }
-        return null;
     }
-    public synchronized void addTP(TP tp) {
-        eraseTP(new TP(tp.tid,tp.pid,Permissions.READ_ONLY));
-        eraseTP(new TP(tp.tid,tp.pid,Permissions.READ_WRITE));
-        query_tid(tp.tid).add(tp);
-        query_pid(tp.pid).add(tp);
-    }
-    public synchronized void eraseTP(TP tp) {
-        query_tid(tp.tid).remove(tp);
-        query_pid(tp.pid).remove(tp);
-    }
-    private synchronized State getState(PageId pid) {
-        ArrayList<TP> tmp = query_pid(pid);
-        if (tmp.size()<1) return State.EMPTY;
-        if (tmp.size()>1) return State.READ2;
-        if (tmp.get(0).permissions.equals(Permissions.READ_ONLY))   return State.READ1;
-        return State.WRITE;
-    }
-    public synchronized boolean getlock(TransactionId tid,PageId pid, Permissions permissions) {
-        State state = getState(pid);
-        ArrayList<TP> tmp = query_pid(pid);
-        TP tp = new TP(tid,pid,permissions);
-        switch (state) {
-            case EMPTY:
-                addTP(tp);
-                return true;
-            case READ1:
-                if (tmp.get(0).tid.equals(tid)) {
-                    addTP(tp);
-                    return true;
+
+    /** @return true if a and b are requests of different transactions that cannot both be granted */
+    private static boolean conflicts(Request a, Request b) {
+        return !a.tid.equals(b.tid) && !a.mode.compatible(b.mode);
+    }
+
+    /**
+     * @return true if a request queued before this one (all of the queue if
+     *         this one is not queued yet) or the upgrade slot must be served
+     *         first; the caller holds the head's monitor.
+     */
+    private static boolean conflictAhead(LockHead head, Request request) {
+        if (head.upgrader == request) return false;
+        if (head.upgrader != null && conflicts(head.upgrader, request)) return true;
+        for (Request other : head.queue) {
+            if (other == request) break;
+            if (conflicts(other, request)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Grant the request if it is compatible with the holders of the head and
+     * no earlier conflicting request is waiting; the caller holds the head's
+     * monitor.
+     *
+     * @param queued false for a request that must not wait for anything,
+     *        which is compared with the whole queue and never takes the slot
+     * @throws TransactionAbortedException if tid was chosen as the victim of a deadlock
+     */
+    private boolean tryGrant(LockHead head, Request request, boolean queued)
+            throws TransactionAbortedException {
+        TransactionId tid = request.tid;
+        Object key = request.key;
+        while (true) {
+            TxnLocks txn = txns.get(tid);
+            // completed by another thread of tid; nothing is granted to it any more
+            if (txn == null) throw new TransactionAbortedException();
+            synchronized (txn) {
+                // released concurrently by another thread of tid, look up the
+                // new one if a later request has made one
+                if (txn.closed) continue;
+                if (txn.victim) throw new TransactionAbortedException();
+                LockMode held = txn.held.get(key);
+                // granted meanwhile to another thread of tid
+                if (held != null && held.covers(request.mode)) return true;
+                // an upgrade that had to queue behind another one takes the slot once it is free
+                if (queued && held != null && head.upgrader == null && head.queue.remove(request)) {
+                    head.upgrader = request;
+                    // the requests it overtook now wait for it, let them look for a cycle
+                    head.notifyAll();
+                }
+                if (conflictAhead(head, request)) return false;
+                LockMode mode = request.mode.join(held);
+                for (LockMode other : LockMode.values()) {
+                    int n = head.granted[other.ordinal()] - (other == held ? 1 : 0);
+                    if (n > 0 && !other.compatible(mode)) return false;
+                }
+                if (held != null) head.granted[held.ordinal()]--;
+                head.granted[mode.ordinal()]++;
+                txn.held.put(key, mode);
+                if (held == null && key instanceof PageId) {
+                    Integer table = ((PageId) key).getTableId();
+                    Integer n = txn.pageLocks.get(table);
+                    txn.pageLocks.put(table, n == null ? 1 : n + 1);
                 }
-                if (permissions.equals(Permissions.READ_WRITE)) return false;
-                addTP(tp);
-                return true;
-            case READ2:
-                if (permissions.equals(Permissions.READ_WRITE)) return false;
-                addTP(tp);
                 return true;
-            case WRITE:
-                return tmp.get(0).tid.equals(tid);
+            }
+        }
+    }
+
+    /**
+     * Acquire a lock on pid for tid, and the matching intention lock on its
+     * table, blocking until they can be granted.
+     *
+     * @throws TransactionAbortedException if tid was chosen as the victim of a deadlock
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        TxnLocks txn = txn(tid);
+        if (txn.victim) throw new TransactionAbortedException();
+        LockMode mode = pageMode(perm);
+        LockMode held = txn.held.get(pid);
+        if (held != null && held.covers(mode)) return;
+        TableKey table = new TableKey(pid.getTableId());
+        LockMode tableMode = txn.held.get(table);
+        if (coversPages(tableMode, mode)) return;
+
+        acquire(tid, table, perm == Permissions.READ_WRITE ? LockMode.IX : LockMode.IS);
+        if (coversPages(txn(tid).held.get(table), mode)) return;
+        if (acquire(tid, pid, mode)) maybeEscalate(tid, table);
+    }
+
+    /**
+     * Acquire a lock on a whole table for tid, blocking until it can be
+     * granted. Pages of a table held in S, SIX or X mode can then be read,
+     * and pages of a table held in X mode written, without page locks.
+     *
+     * @throws TransactionAbortedException if tid was chosen as the victim of a deadlock
+     */
+    public void acquireTable(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        TxnLocks txn = txn(tid);
+        if (txn.victim) throw new TransactionAbortedException();
+        acquire(tid, new TableKey(tableId), mode);
+    }
+
+    /** @return true if holding a table in tableMode grants pageMode on all of its pages */
+    private static boolean coversPages(LockMode tableMode, LockMode pageMode) {
+        if (tableMode == LockMode.X) return true;
+        return pageMode == LockMode.S && (tableMode == LockMode.S || tableMode == LockMode.SIX);
+    }
+
+    /**
+     * Acquire key in mode for tid, blocking until the lock can be granted.
+     *
+     * @return false if tid already held key in mode or a stronger one
+     */
+    private boolean acquire(TransactionId tid, Object key, LockMode mode)
+            throws TransactionAbortedException {
+        LockMode held = txn(tid).held.get(key);
+        if (held != null && held.covers(mode)) return false;
+
+        Request request = new Request(tid, key, mode);
+        LockHead head;
+        boolean granted;
+        while (true) {
+            head = head(key);
+            synchronized (head) {
+                if (head.removed) continue;
+                granted = tryGrant(head, request, true);
+                if (!granted) {
+                    if (held != null && head.upgrader == null) head.upgrader = request;
+                    else head.queue.addLast(request);
+                }
+            }
+            break;
+        }
+        if (granted) {
+            // a grant adds edges towards tid, which matters if tid also blocks elsewhere
+            if (isWaiting(tid)) resolveDeadlock(tid);
+            return true;
+        }
+
+        synchronized (waiting) {
+            ArrayList<Request> requests = waiting.get(tid);
+            if (requests == null) {
+                requests = new ArrayList<Request>();
+                waiting.put(tid, requests);
+            }
+            requests.add(request);
+        }
+        try {
+            while (true) {
+                // the graph changes while we wait, e.g. when a queued upgrade takes the slot
+                resolveDeadlock(tid);
+                synchronized (head) {
+                    if (tryGrant(head, request, true)) return true;
+                    head.wait();
+                    if (tryGrant(head, request, true)) return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        } finally {
+            synchronized (waiting) {
+                ArrayList<Request> requests = waiting.get(tid);
+                requests.remove(request);
+                if (requests.isEmpty()) waiting.remove(tid);
+            }
+            synchronized (head) {
+                if (head.upgrader == request) head.upgrader = null;
+                else head.queue.remove(request);
+                // the requests behind this one may be grantable now
+                if (head.hasWaiters()) head.notifyAll();
+                else dropIfIdle(key, head);
+            }
+        }
+    }
+
+    /**
+     * Escalate to a lock on the whole table if tid holds more page locks on
+     * it than the threshold, and release the page locks the table lock
+     * covers. Escalation is only attempted each time another threshold's
+     * worth of page locks has been taken, and gives up instead of waiting.
+     */
+    private void maybeEscalate(TransactionId tid, TableKey table)
+            throws TransactionAbortedException {
+        int threshold = escalationThreshold;
+        if (threshold <= 0) return;
+        TxnLocks txn = txn(tid);
+        LockMode held;
+        synchronized (txn) {
+            Integer n = txn.pageLocks.get(table.tableId);
+            if (n == null || n <= threshold || (n - 1) % threshold != 0) return;
+            held = txn.held.get(table);
+        }
+        if (held == null) return;
+        LockMode mode = held == LockMode.IS ? LockMode.S : LockMode.X;
+
+        LockHead head;
+        while (true) {
+            head = head(table);
+            synchronized (head) {
+                if (head.removed) continue;
+                if (!tryGrant(head, new Request(tid, table, mode), false)) return;
+            }
+            break;
         }
+
+        ArrayList<Object> covered = new ArrayList<Object>();
+        ArrayList<LockMode> modes = new ArrayList<LockMode>();
+        synchronized (txn) {
+            for (Map.Entry<Object, LockMode> e : txn.held.entrySet()) {
+                Object key = e.getKey();
+                if (!(key instanceof PageId) || ((PageId) key).getTableId() != table.tableId) continue;
+                if (!coversPages(mode, e.getValue())) continue;
+                covered.add(key);
+                modes.add(e.getValue());
+            }
+            for (Object key : covered) txn.held.remove(key);
+            txn.pageLocks.put(table.tableId, txn.pageLocks.get(table.tableId) - covered.size());
+        }
+        for (int i = 0; i < covered.size(); i++) release(tid, covered.get(i), modes.get(i));
+    }
+
+    /** Release the page lock tid holds on pid, if any; its table lock is kept. */
+    public void release(TransactionId tid, PageId pid) {
+        TxnLocks txn = txns.get(tid);
+        if (txn == null) return;
+        LockMode mode;
+        synchronized (txn) {
+            mode = txn.held.remove(pid);
+            if (mode == null) return;
+            txn.pageLocks.put(pid.getTableId(), txn.pageLocks.get(pid.getTableId()) - 1);
+        }
+        release(tid, pid, mode);
+    }
+
+    /**
+     * Give up one hold of key in mode; does nothing if its head is gone,
+     * as when the lock was already released.
+     */
+    private void release(TransactionId tid, Object key, LockMode mode) {
+        LockHead head = heads.get(key);
+        if (head == null) return;
+        synchronized (head) {
+            if (head.removed || head.granted[mode.ordinal()] == 0) return;
+            head.granted[mode.ordinal()]--;
+            if (head.hasWaiters()) head.notifyAll();
+            else dropIfIdle(key, head);
+        }
+    }
+
+    /** Release all locks held by tid and forget that it was a deadlock victim. */
+    public void releaseAll(TransactionId tid) {
+        TxnLocks txn = txns.remove(tid);
+        if (txn == null) return;
+        synchronized (txn) {
+            txn.closed = true;
+        }
+        for (Map.Entry<Object, LockMode> e : txn.held.entrySet()) release(tid, e.getKey(), e.getValue());
+    }
+
+    private boolean isWaiting(TransactionId tid) {
+        synchronized (waiting) {
+            return waiting.containsKey(tid);
+        }
+    }
+
+    /**
+     * @return the transactions holding a lock that conflicts with request,
+     *         or waiting ahead of it with a conflicting request
+     */
+    private ArrayList<TransactionId> blockers(Request request) {
+        // only runs when a request blocks, so a scan of the active transactions is fine
+        ArrayList<TransactionId> res = new ArrayList<TransactionId>();
+        TxnLocks own = txns.get(request.tid);
+        LockMode mode = own == null ? request.mode : request.mode.join(own.held.get(request.key));
+        for (Map.Entry<TransactionId, TxnLocks> e : txns.entrySet()) {
+            if (e.getKey().equals(request.tid)) continue;
+            LockMode held = e.getValue().held.get(request.key);
+            if (held != null && !held.compatible(mode)) res.add(e.getKey());
+        }
+        LockHead head = heads.get(request.key);
+        if (head == null) return res;
+        synchronized (head) {
+            if (head.upgrader == request) return res;
+            if (head.upgrader != null && conflicts(head.upgrader, request)) res.add(head.upgrader.tid);
+            for (Request other : head.queue) {
+                if (other == request) break;
+                if (conflicts(other, request)) res.add(other.tid);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Break every cycle through tid in the wait-for graph: for each cycle
+     * found, mark its victim and wake up all of the victim's blocked
+     * requests so they can abort. Any cycle that did not go through tid
+     * would have been broken when it formed.
+     */
+    private void resolveDeadlock(TransactionId tid) {
+        ArrayList<Object> wake = new ArrayList<Object>();
+        synchronized (waiting) {
+            ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+            while (findCycle(tid, tid, cycle, new HashSet<TransactionId>())) {
+                TransactionId victim = null;
+                for (TransactionId t : cycle) {
+                    if (victim == null || betterVictim(t, victim)) victim = t;
+                }
+                txns.get(victim).victim = true;
+                for (Request request : waiting.get(victim)) wake.add(request.key);
+                cycle.clear();
+            }
+        }
+        for (Object key : wake) {
+            LockHead head = heads.get(key);
+            if (head == null) continue;
+            synchronized (head) {
+                head.notifyAll();
+            }
+        }
+    }
+
+    /** @return true if a is a better choice of victim than b */
+    private boolean betterVictim(TransactionId a, TransactionId b) {
+        if (victimPolicy == VictimPolicy.FEWEST_LOCKS) {
+            int la = numLocks(a), lb = numLocks(b);
+            if (la != lb) return la < lb;
+        }
+        return a.getId() > b.getId();
+    }
+
+    /**
+     * Depth-first search from cur for an edge back to start; path collects
+     * the cycle. Victims are about to release their locks, so cycles through
+     * them are already broken and they are skipped.
+     */
+    private boolean findCycle(TransactionId start, TransactionId cur, ArrayList<TransactionId> path,
+            HashSet<TransactionId> visited) {
+        ArrayList<Request> requests = waiting.get(cur);
+        TxnLocks txn = txns.get(cur);
+        if (requests == null || txn == null || txn.victim || !visited.add(cur)) return false;
+        path.add(cur);
+        for (Request request : requests) {
+            for (TransactionId next : blockers(request)) {
+                if (next.equals(start)) return true;
+                if (findCycle(start, next, path, visited)) return true;
+            }
+        }
+        path.remove(path.size() - 1);
         return false;
     }
-}
\ No newline at end of file
+}
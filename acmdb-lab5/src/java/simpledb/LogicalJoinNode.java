@@ -23,6 +23,9 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Whether the optimizer found looking each tuple of t1 up in a B+ tree on t2.f2 cheaper than hashing or merging the tables */
+    public boolean indexLookup;
+
     public LogicalJoinNode() {
     }
 
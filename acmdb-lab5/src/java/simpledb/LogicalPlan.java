@@ -35,6 +35,8 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1;
+    private int parallelism = 1;
     private String query;
 //    private Query owner;
 
@@ -216,6 +218,136 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT to the query: only its first limit result tuples, in the
+        ORDER BY order if it has one, are returned.
+        @param limit the number of tuples to return at most
+     * @throws ParsingException if limit is negative
+    */
+    public void setLimit(int limit) throws ParsingException {
+        if (limit < 0)
+            throw new ParsingException("Negative LIMIT " + limit);
+        this.limit = limit;
+    }
+
+    /** @return the LIMIT of the query, or -1 if it has none */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** @return the number of threads the physical plan may run in */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Set the number of threads the physical plan may run in; with one,
+        no {@link Exchange} is planned.  It defaults to one, so plans
+        are serial unless a caller opts in, as the parser does with
+        -parallel.
+        @throws IllegalArgumentException if parallelism is less than one
+    */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        this.parallelism = parallelism;
+    }
+
+    /** @return the number of fragments to split parts of the plan into:
+        no more than its threads, nor than the morsels of its largest
+        HeapFile, as smaller tables are not worth the threads
+    */
+    private int fragments() {
+        int morsels = 0;
+        for (LogicalScanNode table : tables) {
+            DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+            if (f instanceof HeapFile)
+                morsels = Math.max(morsels, ((HeapFile) f).numPages() / ParallelScan.MORSEL_PAGES);
+        }
+        return Math.max(1, Math.min(parallelism, morsels));
+    }
+
+    /** @return plans that together return the rows of plan, each in a
+        thread of its own: the fragments of a Gather, or the parts of a
+        scan; null if plan cannot be split
+    */
+    private static DbIterator[] partsOf(DbIterator plan, int n) {
+        if (plan instanceof Gather && !((Gather) plan).isMerging())
+            return ((Gather) plan).getChildren();
+        return Exchange.split(plan, n);
+    }
+
+    /** @return a parallel hash join of two plans: both are shuffled on
+        their join fields, so each fragment joins its own part of the keys,
+        unless the second is a subquery, which every fragment gets all of
+    */
+    private static DbIterator parallelJoin(JoinPredicate p, DbIterator plan1, DbIterator plan2,
+            boolean isSubqueryJoin, int n) {
+        DbIterator[] parts1 = partsOf(plan1, n);
+        DbIterator[] in1, in2;
+        if (parts1 != null && isSubqueryJoin) {
+            in1 = parts1;
+            in2 = Shuffle.broadcast(new DbIterator[]{plan2}, parts1.length);
+        } else {
+            DbIterator[] parts2 = partsOf(plan2, n);
+            in1 = Shuffle.hash(parts1 != null ? parts1 : new DbIterator[]{plan1}, p.getField1(), n);
+            in2 = Shuffle.hash(parts2 != null ? parts2 : new DbIterator[]{plan2}, p.getField2(), n);
+        }
+        DbIterator[] joins = new DbIterator[in1.length];
+        for (int i = 0; i < joins.length; i++) {
+            HashEquiJoin j = new HashEquiJoin(p, in1[i], in2[i]);
+            j.setMemoryBudget(HashEquiJoin.DEFAULT_MEMORY_BUDGET / joins.length);
+            joins[i] = j;
+        }
+        return new Gather(joins);
+    }
+
+    /** @return a parallel version of an aggregate: partial aggregates of
+        the parts of its input put together by a final one, or if its input
+        cannot be split, whole aggregates of the groups it is shuffled into;
+        null if it is not grouped either
+    */
+    private static DbIterator parallelAggregate(Aggregate agg, DbIterator child, int n) {
+        DbIterator[] parts = partsOf(child, n);
+        if (parts != null) {
+            DbIterator[] partials = new DbIterator[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                Aggregate a = agg.partialOf(parts[i]);
+                a.setMemoryBudget(HashAggregator.DEFAULT_MEMORY_BUDGET / parts.length);
+                partials[i] = a;
+            }
+            return agg.finalOf(new Gather(partials));
+        }
+        if (agg.groupField() == Aggregator.NO_GROUPING) return null;
+        DbIterator[] in = Shuffle.hash(new DbIterator[]{child}, agg.groupField(), n);
+        DbIterator[] aggs = new DbIterator[n];
+        for (int i = 0; i < n; i++) {
+            Aggregate a = new Aggregate(in[i], agg.aggregateField(), agg.groupField(), agg.aggregateOp());
+            a.setMemoryBudget(HashAggregator.DEFAULT_MEMORY_BUDGET / n);
+            aggs[i] = a;
+        }
+        return new Gather(aggs);
+    }
+
+    /** @return plan sorted in parallel: each of its parts is sorted, or
+        its first limit rows found if limit is not negative, and the parts
+        merged; null if plan cannot be split
+    */
+    private static DbIterator parallelSort(DbIterator plan, int field, boolean asc, int limit, int n) {
+        DbIterator[] parts = partsOf(plan, n);
+        if (parts == null) return null;
+        DbIterator[] runs = new DbIterator[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            if (limit >= 0) {
+                runs[i] = new TopN(field, asc, limit, parts[i]);
+            } else {
+                OrderBy o = new OrderBy(field, asc, parts[i]);
+                o.setMemoryBudget(OrderBy.DEFAULT_MEMORY_BUDGET / parts.length);
+                runs[i] = o;
+            }
+        }
+        DbIterator merged = new Gather(runs, field, asc);
+        return limit >= 0 ? new Limit(limit, merged) : merged;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -285,6 +417,9 @@ public class LogicalPlan {
      *  @return A DbIterator representing this plan.
      */ 
     public DbIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
+        // with more than one fragment, hash joins, aggregates and sorts are
+        // split into fragments that run in threads of their own
+        int fragments = fragments();
         Iterator<LogicalScanNode> tableIt = tables.iterator();
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
@@ -294,7 +429,9 @@ public class LogicalPlan {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                 ss = new SeqScan(t, file.getId(), table.alias);
+                 ss.setParallelism(Math.min(parallelism, SeqScan.parallelismFor(file)));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -334,7 +471,14 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // a scan of a HeapFile evaluates the predicate on its pages, so
+            // the tuples that fail it are never decoded; those of a B+ tree
+            // stay under a Filter, where joins look for lookups on them
+            if (subplan instanceof SeqScan
+                    && Database.getCatalog().getDatabaseFile(this.getTableId(lf.tableAlias)) instanceof HeapFile)
+                ((SeqScan) subplan).addPredicate(p);
+            else
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -383,6 +527,8 @@ public class LogicalPlan {
             
             DbIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
+            if (fragments > 1 && j instanceof Join && lj.p == Predicate.Op.EQUALS)
+                j = parallelJoin(((Join) j).getJoinPredicate(), plan1, plan2, isSubqueryJoin, fragments);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -462,20 +608,43 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
+                int gfield = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+                // stream the groups if the input already comes grouped
                 aggNode = new Aggregate(node,
                                         td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                                        gfield,
+                                getAggOp(aggOp),
+                                Aggregate.isGroupedOn(node, gfield));
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
-            node = aggNode;
+            DbIterator parallel = fragments > 1 && !aggNode.isStreaming()
+                    ? parallelAggregate(aggNode, node, fragments) : null;
+            node = parallel != null ? parallel : aggNode;
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int field;
+            if (!hasAgg)
+                field = node.getTupleDesc().fieldNameToIndex(oByField);
+            else if (oByField.equals(groupByField))
+                field = 0;
+            else if (oByField.equals(aggField))
+                field = groupByField != null ? 1 : 0;
+            else
+                throw new ParsingException("ORDER BY field " + oByField + " is neither grouped nor aggregated");
+            DbIterator parallel = fragments > 1
+                    ? parallelSort(node, field, oByAsc, limit, fragments) : null;
+            if (parallel != null)
+                node = parallel;
+            else if (limit >= 0)
+                node = new TopN(field, oByAsc, limit, node);
+            else
+                node = new OrderBy(field, oByAsc, node);
+        } else if (limit >= 0) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -1,20 +1,38 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * It sorts in memory as long as the child's tuples fit in its memory
+ * budget. Past that it is an external merge sort: each budget's worth of
+ * tuples is sorted and written to a spill file as a run, and the runs are
+ * merged through a heap holding the next tuple of each, in as many passes
+ * as it takes for the last one to read few enough runs at a time to keep a
+ * batch of each in memory.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
     private int orderByField;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
     private boolean asc;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    /** Default number of bytes of tuples the sort holds in memory. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+
+    // the sorted tuples if they fit in memory, and where we are in them
+    private transient ArrayList<Tuple> childTups;
+    private transient Iterator<Tuple> it;
+    // otherwise the sorted runs, and the heap merging the last of them
+    private transient ArrayList<SpillFile> runs;
+    private transient PriorityQueue<Run> merge;
+    private transient ArrayList<Run> readers;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,6 +51,22 @@ public class OrderBy extends Operator {
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
     }
+
+    /** A sorted run being merged, and its next tuple. */
+    private static class Run {
+        final DbIterator in;
+        Tuple head;
+
+        Run(DbIterator in) {
+            this.in = in;
+        }
+
+        /** Moves on to the next tuple; returns false at the end of the run. */
+        boolean advance() throws DbException, TransactionAbortedException {
+            head = in.hasNext() ? in.next() : null;
+            return head != null;
+        }
+    }
     
     public boolean isASC()
     {
@@ -53,24 +87,174 @@ public class OrderBy extends Operator {
         return td;
     }
 
+    /**
+     * @return the number of bytes of tuples this sort holds in memory before
+     *         it writes them to disk
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the number of bytes of tuples this sort holds in memory before it
+     * writes them to disk; takes effect at the next open.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /** @return true if the sort has written runs to disk since it was opened */
+    public boolean hasSpilled() {
+        return runs != null;
+    }
+
+    /**
+     * Estimates the number of bytes of heap a tuple of the given TupleDesc
+     * takes: the tuple, its field array and a field object per column.
+     */
+    static long tupleBytes(TupleDesc td) {
+        long bytes = 32;
+        for (int i = 0; i < td.numFields(); i++) {
+            bytes += 24;
+            if (td.getFieldType(i) == Type.STRING_TYPE)
+                bytes += 40 + 2 * Type.STRING_LEN;
+        }
+        return bytes;
+    }
+
+    /** @return how many runs can be merged at once, a batch of each in memory */
+    private int fanIn() {
+        long perRun = tupleBytes(td) * TupleBatch.DEFAULT_CAPACITY;
+        return (int) Math.max(2, Math.min(Integer.MAX_VALUE, memoryBudget / perRun));
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        try {
+            sort();
+        } catch (IOException e) {
+            deleteRuns();
+            throw new DbException("unable to spill sort run: " + e.getMessage());
+        }
         super.open();
     }
 
+    /**
+     * Reads the child into sorted runs, and merges them down to few enough
+     * to merge in one go while tuples are read.
+     */
+    private void sort() throws DbException, TransactionAbortedException, IOException {
+        TupleComparator cmp = new TupleComparator(orderByField, asc);
+        long perTuple = tupleBytes(td);
+        childTups = new ArrayList<Tuple>();
+        runs = null;
+        long used = 0;
+        while (child.hasNext()) {
+            childTups.add(child.next());
+            used += perTuple;
+            if (used > memoryBudget) {
+                if (runs == null) runs = new ArrayList<SpillFile>();
+                runs.add(writeRun(childTups, cmp));
+                childTups.clear();
+                used = 0;
+            }
+        }
+        if (runs == null) {
+            // everything fit
+            Collections.sort(childTups, cmp);
+            it = childTups.iterator();
+            return;
+        }
+        if (!childTups.isEmpty())
+            runs.add(writeRun(childTups, cmp));
+        childTups = null;
+
+        int fanIn = fanIn();
+        while (runs.size() > fanIn) {
+            List<SpillFile> group = runs.subList(0, fanIn);
+            SpillFile merged = new SpillFile(td);
+            startMerge(group);
+            Tuple t;
+            while ((t = nextMerged()) != null)
+                merged.append(t);
+            closeMerge();
+            for (SpillFile f : group) f.delete();
+            group.clear();
+            runs.add(merged);
+        }
+        startMerge(runs);
+    }
+
+    private SpillFile writeRun(ArrayList<Tuple> tuples, TupleComparator cmp) throws IOException {
+        Collections.sort(tuples, cmp);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : tuples) run.append(t);
+        return run;
+    }
+
+    /** Opens the given runs and fills the heap with their first tuples. */
+    private void startMerge(List<SpillFile> files) throws DbException,
+            TransactionAbortedException, IOException {
+        final TupleComparator cmp = new TupleComparator(orderByField, asc);
+        merge = new PriorityQueue<Run>(Math.max(1, files.size()), new Comparator<Run>() {
+            public int compare(Run a, Run b) {
+                return cmp.compare(a.head, b.head);
+            }
+        });
+        readers = new ArrayList<Run>();
+        for (SpillFile f : files) {
+            Run r = new Run(f.iterator());
+            r.in.open();
+            readers.add(r);
+            if (r.advance()) merge.add(r);
+        }
+    }
+
+    /** @return the smallest tuple left in the runs being merged, or null */
+    private Tuple nextMerged() throws DbException, TransactionAbortedException {
+        Run r = merge.poll();
+        if (r == null) return null;
+        Tuple t = r.head;
+        if (r.advance()) merge.add(r);
+        return t;
+    }
+
+    private void closeMerge() {
+        if (readers != null) {
+            for (Run r : readers) r.in.close();
+            readers = null;
+        }
+        merge = null;
+    }
+
+    private void deleteRuns() {
+        closeMerge();
+        if (runs != null) {
+            for (SpillFile f : runs) f.delete();
+            runs = null;
+        }
+    }
+
     public void close() {
         super.close();
+        deleteRuns();
+        childTups = null;
         it = null;
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (runs == null) {
+            it = childTups.iterator();
+            return;
+        }
+        closeMerge();
+        try {
+            startMerge(runs);
+        } catch (IOException e) {
+            throw new DbException("unable to read sort run: " + e.getMessage());
+        }
     }
 
     /**
@@ -82,6 +266,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null)
+            return nextMerged();
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -0,0 +1,213 @@
+package simpledb;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ParallelScan reads the pages of a HeapFile with several worker threads,
+ * for a {@link SeqScan} whose parallelism is more than one.
+ * <p>
+ * The pages are split into morsels of {@link #MORSEL_PAGES} consecutive
+ * pages, which the workers claim one at a time from a shared counter, so a
+ * worker that is slowed down by misses simply claims fewer of them. Each
+ * worker decodes the rows of its pages that pass the predicates of the
+ * scan into batches of its own, and hands the batches to the reading
+ * thread through a bounded queue; a worker that gets too far ahead blocks
+ * until the reader catches up. Batches are handed back once read, so a
+ * scan allocates a few batches per worker however large the table is.
+ * <p>
+ * All workers read pages as the transaction of the scan, so they take the
+ * same locks the scan would take alone. The workers run on a shared pool
+ * that starts threads as needed: since they block on the queue, a pool of
+ * fixed size could be taken up by the workers of a scan whose reader has
+ * stopped reading, while the same thread waits for another scan.
+ */
+public class ParallelScan {
+
+    /** Number of consecutive pages a worker claims at once. */
+    public static final int MORSEL_PAGES = 16;
+    // batches waiting to be read, per worker
+    private static final int QUEUED_PER_WORKER = 2;
+    private static final long POLL_MILLIS = 10;
+
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "scan-worker-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final TransactionId tid;
+    private final HeapFile file;
+    private final TupleDesc td;
+    private final List<Predicate> predicates;
+    private final int workers;
+    private final boolean bulk;
+
+    private final BlockingQueue<TupleBatch> full;
+    private final BlockingQueue<TupleBatch> free;
+    // marks the end of the batches in full
+    private final TupleBatch end;
+    private final AtomicInteger nextPage = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final CountDownLatch done;
+    private volatile boolean cancelled;
+    private int numPages;
+    // the batch returned last, which goes back to free at the next call
+    private TupleBatch last;
+    private boolean ended;
+
+    /**
+     * @param tid the transaction to read the pages as
+     * @param file the file to scan
+     * @param td the TupleDesc of the batches to return
+     * @param predicates the predicates all returned rows pass
+     * @param workers the number of threads to read with
+     * @param bulk true if every worker should read through a ring of its
+     *            own rather than the shared buffer pool
+     */
+    public ParallelScan(TransactionId tid, HeapFile file, TupleDesc td,
+            List<Predicate> predicates, int workers, boolean bulk) {
+        this.tid = tid;
+        this.file = file;
+        this.td = td;
+        this.predicates = predicates;
+        this.workers = workers;
+        this.bulk = bulk;
+        this.full = new ArrayBlockingQueue<TupleBatch>(QUEUED_PER_WORKER * workers + 1);
+        this.free = new LinkedBlockingQueue<TupleBatch>();
+        this.end = new TupleBatch(td, 1);
+        this.done = new CountDownLatch(workers);
+    }
+
+    /** Start the workers. A ParallelScan can only be started once. */
+    public void start() {
+        numPages = file.syncNumPages();
+        running.set(workers);
+        for (int i = 0; i < workers; i++) {
+            final BufferAccessStrategy strategy = bulk ? Database.getBufferPool().newBulkReadStrategy() : null;
+            POOL.execute(new Runnable() {
+                public void run() {
+                    work(strategy);
+                }
+            });
+        }
+    }
+
+    private void work(BufferAccessStrategy strategy) {
+        try {
+            TupleBatch b = null;
+            int first;
+            while (!cancelled && (first = nextPage.getAndAdd(MORSEL_PAGES)) < numPages) {
+                int stop = Math.min(numPages, first + MORSEL_PAGES);
+                for (int pageNo = first; pageNo < stop && !cancelled; pageNo++) {
+                    HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                            new HeapPageId(file.getId(), pageNo), Permissions.READ_WRITE, strategy);
+                    int slot = 0;
+                    while (slot < page.getNumSlots()) {
+                        if (b == null) b = batch();
+                        slot = page.readInto(b, slot, predicates);
+                        if (b.isFull()) {
+                            hand(b);
+                            b = null;
+                        }
+                    }
+                }
+            }
+            if (b != null && b.size() > 0) hand(b);
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+            cancelled = true;
+        } finally {
+            done.countDown();
+            if (running.decrementAndGet() == 0) {
+                try {
+                    offer(end);
+                } catch (InterruptedException ignore) {}
+            }
+        }
+    }
+
+    private TupleBatch batch() {
+        TupleBatch b = free.poll();
+        if (b == null) return new TupleBatch(td, TupleBatch.DEFAULT_CAPACITY);
+        b.clear();
+        return b;
+    }
+
+    /** Queues a batch if it has a row. */
+    private void hand(TupleBatch b) throws InterruptedException {
+        if (b.numSelected() == 0) {
+            free.add(b);
+            return;
+        }
+        offer(b);
+    }
+
+    /** Queues a batch, unless the scan is cancelled before there is room. */
+    private void offer(TupleBatch b) throws InterruptedException {
+        while (!full.offer(b, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (cancelled && b != end) return;
+        }
+    }
+
+    /**
+     * @return the next batch read by a worker, or null if all pages have
+     *         been read; it is valid until the next call
+     * @throws TransactionAbortedException if a worker was aborted
+     * @throws DbException if a worker failed
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (last != null) {
+            free.add(last);
+            last = null;
+        }
+        if (ended) return null;
+        TupleBatch b;
+        try {
+            b = full.take();
+        } catch (InterruptedException e) {
+            throw new DbException("interrupted while waiting for scan workers");
+        }
+        Throwable e = failure.get();
+        if (e != null) {
+            ended = true;
+            if (e instanceof TransactionAbortedException) throw (TransactionAbortedException) e;
+            if (e instanceof DbException) throw (DbException) e;
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            throw new DbException("scan worker failed: " + e);
+        }
+        if (b == end) {
+            ended = true;
+            return null;
+        }
+        last = b;
+        return b;
+    }
+
+    /**
+     * Stop the workers, and wait until none of them reads pages any more,
+     * so the transaction can complete after this returns.
+     */
+    public void close() {
+        cancelled = true;
+        full.clear();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        full.clear();
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
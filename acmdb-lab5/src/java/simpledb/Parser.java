@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -11,6 +13,8 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    // the number of threads query plans may run in; see -parallel
+    static int parallelism = 1;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -138,6 +142,7 @@ public class Parser {
         Vector<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(q.toString());
+        lp.setParallelism(parallelism);
         // walk through tables in the FROM clause
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.elementAt(i);
@@ -273,12 +278,46 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    // Zql has no LIMIT clause, so a trailing one is taken off the statement
+    // before it is parsed, and its count kept here
+    private static final Pattern LIMIT = Pattern.compile(
+            "(?is)^(.*\\S)\\s+LIMIT\\s+(\\d+)\\s*;?\\s*$");
+    private int limit = -1;
+
+    /**
+     * Reads a statement, taking a trailing LIMIT clause off it first. Its
+     * count is remembered for the query the statement is planned into, or
+     * -1 if there is none.
+     */
+    private ZStatement readStatement(InputStream is) throws IOException,
+            Zql.ParseException, simpledb.ParsingException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] b = new byte[4096];
+        int n;
+        while ((n = is.read(b)) > 0)
+            buf.write(b, 0, n);
+        String sql = buf.toString("UTF-8");
+        limit = -1;
+        Matcher m = LIMIT.matcher(sql);
+        if (m.matches()) {
+            try {
+                limit = Integer.parseInt(m.group(2));
+            } catch (NumberFormatException e) {
+                throw new simpledb.ParsingException("LIMIT too large: " + m.group(2));
+            }
+            sql = m.group(1) + ";";
+        }
+        return new ZqlParser(new ByteArrayInputStream(sql.getBytes("UTF-8"))).readStatement();
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.setLimit(limit);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -466,11 +505,12 @@ public class Parser {
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
-        ZqlParser p = new ZqlParser(bis);
         try {
-            ZStatement stmt = p.readStatement();
+            ZStatement stmt = readStatement(bis);
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit >= 0)
+                    lp.setLimit(limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -503,8 +543,7 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ZStatement s = readStatement(is);
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -595,7 +634,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-parallel threads] [-f queryFile]";
     static final int SLEEP_TIME = 5000;
 
     protected void shutdown() {
@@ -616,6 +655,18 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-parallel")) {
+                    try {
+                        parallelism = Integer.parseInt(argv[++i]);
+                    } catch (RuntimeException e) {
+                        parallelism = 0;
+                    }
+                    if (parallelism < 1) {
+                        System.out.println("Expected a positive number of threads after -parallel\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    System.out.println("Queries run in up to " + parallelism + " threads.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -47,6 +47,9 @@ public class Predicate implements Serializable {
     private int field;
     private Op op;
     private Field operand;
+    // a string operand as it is encoded on a page, if it is all ASCII, in
+    // which case fields can be compared to it without decoding them
+    private byte[] asciiOperand;
     /**
      * Constructor.
      * 
@@ -61,6 +64,15 @@ public class Predicate implements Serializable {
         this.field = field;
         this.op=op;
         this.operand = operand;
+        if (operand instanceof StringField) {
+            String v = ((StringField) operand).getValue();
+            byte[] b = new byte[v.length()];
+            for (int i = 0; b != null && i < b.length; i++) {
+                if (v.charAt(i) >= 0x80) b = null;
+                else b[i] = (byte) v.charAt(i);
+            }
+            this.asciiOperand = b;
+        }
     }
 
     /**
@@ -106,6 +118,155 @@ public class Predicate implements Serializable {
         return false;
     }
 
+    /**
+     * Drops the rows of a batch that do not pass this predicate from its
+     * selection vector. The comparison is done on the column values
+     * directly, with the same results as {@link #filter(Tuple)}.
+     *
+     * @param b
+     *            The batch to filter
+     */
+    public void filter(TupleBatch b) {
+        int[] sel = b.selectionBuffer();
+        int n = b.numSelected();
+        int m = 0;
+        if (b.getTupleDesc().getFieldType(field) == Type.INT_TYPE) {
+            if (!(operand instanceof IntField)) {
+                b.setSelection(sel, 0);
+                return;
+            }
+            int[] col = b.intColumn(field);
+            int v = ((IntField) operand).getValue();
+            // one loop per operator so the comparison is not re-dispatched per row
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++) { int r = b.selected(i); if (col[r] == v) sel[m++] = r; }
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++) { int r = b.selected(i); if (col[r] != v) sel[m++] = r; }
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++) { int r = b.selected(i); if (col[r] > v) sel[m++] = r; }
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) { int r = b.selected(i); if (col[r] >= v) sel[m++] = r; }
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++) { int r = b.selected(i); if (col[r] < v) sel[m++] = r; }
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) { int r = b.selected(i); if (col[r] <= v) sel[m++] = r; }
+                    break;
+            }
+        } else {
+            if (!(operand instanceof StringField)) {
+                b.setSelection(sel, 0);
+                return;
+            }
+            String[] col = b.stringColumn(field);
+            String v = ((StringField) operand).getValue();
+            for (int i = 0; i < n; i++) {
+                int r = b.selected(i);
+                if (compare(col[r], v)) sel[m++] = r;
+            }
+        }
+        b.setSelection(sel, m);
+    }
+
+    /**
+     * Compares a field encoded as on a {@link HeapPage}, in the format of
+     * {@link Field#serialize}, to the operand, with the same result as
+     * {@link #filter(Tuple)} on the decoded field. The field must be of the
+     * type of the operand.
+     * <p>
+     * An integer is compared as it is read. A string is compared byte by
+     * byte if the operand is all ASCII: a byte then compares to an ASCII
+     * character as the character it decodes to would, since anything but
+     * an ASCII byte decodes to a character above all of them. Otherwise it
+     * is decoded first.
+     *
+     * @param data
+     *            the bytes the field is encoded in
+     * @param off
+     *            the offset of the field in data
+     */
+    public boolean filter(byte[] data, int off) {
+        int x = ((data[off] & 0xff) << 24) | ((data[off+1] & 0xff) << 16)
+                | ((data[off+2] & 0xff) << 8) | (data[off+3] & 0xff);
+        if (operand instanceof IntField) {
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    return x == v;
+                case NOT_EQUALS:
+                    return x != v;
+                case GREATER_THAN:
+                    return x > v;
+                case GREATER_THAN_OR_EQ:
+                    return x >= v;
+                case LESS_THAN:
+                    return x < v;
+                case LESS_THAN_OR_EQ:
+                    return x <= v;
+            }
+            return false;
+        }
+        int len = Math.max(0, Math.min(x, Type.STRING_LEN));
+        byte[] v = asciiOperand;
+        if (v == null) return compare(new String(data, off+4, len), ((StringField) operand).getValue());
+        int start = off + 4;
+        if (op == Op.LIKE) {
+            for (int i = 0; i + v.length <= len; i++) {
+                int j = 0;
+                while (j < v.length && data[start+i+j] == v[j]) j++;
+                if (j == v.length) return true;
+            }
+            return false;
+        }
+        int cmp = 0;
+        for (int i = 0, m = Math.min(len, v.length); i < m && cmp == 0; i++)
+            cmp = (data[start+i] & 0xff) - v[i];
+        if (cmp == 0) cmp = len - v.length;
+        switch (op) {
+            case EQUALS:
+                return cmp == 0;
+            case NOT_EQUALS:
+                return cmp != 0;
+            case GREATER_THAN:
+                return cmp > 0;
+            case GREATER_THAN_OR_EQ:
+                return cmp >= 0;
+            case LESS_THAN:
+                return cmp < 0;
+            case LESS_THAN_OR_EQ:
+                return cmp <= 0;
+        }
+        return false;
+    }
+
+    /** Same as StringField.compare. */
+    private boolean compare(String s, String v) {
+        if (op == Op.LIKE) return s.indexOf(v) >= 0;
+        int cmp = s.compareTo(v);
+        switch (op) {
+            case EQUALS:
+                return cmp == 0;
+            case NOT_EQUALS:
+                return cmp != 0;
+            case GREATER_THAN:
+                return cmp > 0;
+            case GREATER_THAN_OR_EQ:
+                return cmp >= 0;
+            case LESS_THAN:
+                return cmp < 0;
+            case LESS_THAN_OR_EQ:
+                return cmp <= 0;
+        }
+        return false;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
@@ -3,14 +3,18 @@ package simpledb;
 import java.util.*;
 
 /**
- * Project is an operator that implements a relational projection.
+ * Project is an operator that implements a relational projection. Batches
+ * are projected without copying: the output batch shares the column vectors
+ * of the child's batch.
  */
-public class Project extends Operator {
+public class Project extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private transient BatchIterator in;
+    private transient int[] cols;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -48,6 +52,10 @@ public class Project extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
+        in = BatchingIterator.of(child);
+        cols = new int[outFieldIds.size()];
+        for (int i = 0; i < cols.length; i++)
+            cols[i] = outFieldIds.get(i);
         super.open();
     }
 
@@ -57,27 +65,20 @@ public class Project extends Operator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
         child.rewind();
     }
 
     /**
-     * Operator.fetchNext implementation. Iterates over tuples from the child
-     * operator, projecting out the fields from the tuple
+     * BatchIterator.nextBatch implementation. Reads a batch from the child
+     * operator, projecting out the columns of the batch
      * 
-     * @return The next tuple, or null if there are no more tuples
+     * @return The next batch, or null if there are no more tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException,
-            TransactionAbortedException, DbException {
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            Tuple newTuple = new Tuple(td);
-            newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
-            }
-            return newTuple;
-        }
-        return null;
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch b = in.nextBatch();
+        if (b == null) return null;
+        return b.project(cols, td);
     }
 
     @Override
@@ -0,0 +1,68 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it runs out of frames. The BufferPool reports every page access, every
+ * page that leaves the pool and every hit or miss; the policy keeps whatever
+ * history it needs to rank the resident pages.
+ * <p>
+ * Implementations must be safe to call from several threads at once.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ * @see AbstractReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Test used by {@link #chooseVictim} to skip pages that cannot leave the
+     * pool right now (e.g. dirty pages under NO STEAL).
+     */
+    public interface Evictable {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Called whenever pid is requested from the pool, whether it was already
+     * resident or has just been read in.
+     */
+    public void recordAccess(PageId pid);
+
+    /**
+     * Called when pid leaves the pool, either because it was chosen as a
+     * victim or because it was discarded.
+     *
+     * @param evicted true if pid was the victim of {@link #chooseVictim};
+     *                false if it was discarded (rolled back, dropped by a B+
+     *                tree, or recycled by a scan's ring), which says nothing
+     *                about whether it will be wanted again
+     */
+    public void recordRemoval(PageId pid, boolean evicted);
+
+    /**
+     * Pick the page that should be evicted next. The page is not removed from
+     * the policy; the BufferPool calls {@link #recordRemoval} once it has
+     * actually dropped it.
+     *
+     * @param evictable filter for pages that may be evicted
+     * @return the victim, or null if no resident page passes the filter
+     */
+    public PageId chooseVictim(Evictable evictable);
+
+    /** Count a request that was served from the pool. */
+    public void recordHit();
+
+    /** Count a request that had to go to disk. */
+    public void recordMiss();
+
+    /** @return the number of requests served from the pool */
+    public long getHits();
+
+    /** @return the number of requests that had to go to disk */
+    public long getMisses();
+
+    /** @return hits / (hits + misses), or 0 if there was no request yet */
+    public double getHitRate();
+
+    /** Reset the hit and miss counters to zero. */
+    public void resetStatistics();
+}
@@ -6,8 +6,24 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * Read a batch at a time, a scan of a HeapFile copies the fields of each
+ * page straight into the column vectors of the batch, without building
+ * tuples.
+ * <p>
+ * Predicates can be pushed down into a scan, which then only returns the
+ * rows that pass all of them. On a HeapFile they are evaluated on the bytes
+ * of each page, and only the rows that pass are decoded at all. A scan of
+ * a HeapFile can also be given a parallelism above one, and then reads the
+ * file with that many threads, each applying the predicates to the pages
+ * it reads; the tuples then come in no particular order. See
+ * {@link ParallelScan}.
+ * <p>
+ * A join above a scan can also push down a {@link BloomFilter} of its keys
+ * once it knows them, so the scan drops the rows that would find no match.
+ * Such runtime filters are only applied to the batches the scan returns.
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -15,6 +31,21 @@ public class SeqScan implements DbIterator {
     private int tableid;
     private String tableAlias;
     private DbFileIterator iter;
+    private BufferAccessStrategy strategy;
+    private ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+    private ArrayList<BloomFilter> runtimeFilters = new ArrayList<BloomFilter>();
+    private int parallelism = 1;
+    private int partition = 0;
+    private int partitions = 1;
+    // position of the batch reader: the next page and the slot on it
+    private transient TupleBatch batch;
+    private transient HeapPage page;
+    private transient int pageNo;
+    private transient int slot;
+    private transient ParallelScan parallel;
+    // the batch tuples are taken from, when they come from batches
+    private transient TupleBatch current;
+    private transient int pos;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -36,7 +67,118 @@ public class SeqScan implements DbIterator {
         this.tid = tid;
         this.tableid = tableid;
         this.tableAlias = tableAlias;
-        this.iter = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile && isLargeTable((HeapFile) file)) {
+            this.strategy = Database.getBufferPool().newBulkReadStrategy();
+            this.iter = ((HeapFile) file).iterator(tid, strategy);
+        } else {
+            this.iter = file.iterator(tid);
+        }
+    }
+
+    /**
+     * A table is scanned through a private ring of frames rather than the
+     * shared buffer pool if it does not fit in the pool: such a scan would
+     * evict its own pages before reading them again anyway.
+     */
+    private static boolean isLargeTable(HeapFile file) {
+        return file.numPages() > Database.getBufferPool().getNumPages();
+    }
+
+    /**
+     * @return the number of threads a HeapFile is read with by default: one
+     *         per processor, but no more than it has morsels of pages
+     */
+    public static int parallelismFor(DbFile file) {
+        if (!(file instanceof HeapFile)) return 1;
+        int morsels = ((HeapFile) file).numPages() / ParallelScan.MORSEL_PAGES;
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), morsels));
+    }
+
+    /** @return the number of threads this scan reads a HeapFile with */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads this scan reads a HeapFile with; it takes
+     * effect at the next open.
+     *
+     * @throws IllegalArgumentException if parallelism is less than one
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1, not " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Restrict this scan of a HeapFile to one of some parts of its pages,
+     * so the parts can be scanned by different threads: part i has the
+     * morsels of {@link ParallelScan#MORSEL_PAGES} pages whose number is i
+     * modulo the number of parts. It takes effect at the next open, and a
+     * partial scan reads its pages in one thread.
+     *
+     * @throws IllegalArgumentException if part is not in [0, parts)
+     */
+    public void setPartition(int part, int parts) {
+        if (parts < 1 || part < 0 || part >= parts)
+            throw new IllegalArgumentException("no part " + part + " of " + parts);
+        this.partition = part;
+        this.partitions = parts;
+    }
+
+    /** @return true if this scan reads the given page of a HeapFile */
+    private boolean inPartition(int pageNo) {
+        return (pageNo / ParallelScan.MORSEL_PAGES) % partitions == partition;
+    }
+
+    /**
+     * Push a predicate down into this scan, which from then on only returns
+     * the tuples that pass it and those given before.
+     *
+     * @throws IllegalArgumentException if the predicate is on a field the
+     *             scanned tuples do not have, or compares it to a value of
+     *             another type
+     */
+    public void addPredicate(Predicate p) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        if (p.getField() < 0 || p.getField() >= td.numFields())
+            throw new IllegalArgumentException("no field " + p.getField() + " to push a predicate on");
+        if (td.getFieldType(p.getField()) != p.getOperand().getType())
+            throw new IllegalArgumentException("predicate compares field " + p.getField() + " of type "
+                    + td.getFieldType(p.getField()) + " to a " + p.getOperand().getType());
+        predicates.add(p);
+    }
+
+    /** @return the predicates pushed down into this scan */
+    public List<Predicate> getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * Push a runtime filter down into this scan: from its next batch on, it
+     * drops the rows whose field is surely not in the filter. Unlike a
+     * predicate, the filter may be added while the scan is open, and rows
+     * that fail it may still be returned, by {@link #next()} as it reads
+     * tuples one at a time.
+     */
+    public void addRuntimeFilter(BloomFilter f) {
+        runtimeFilters.add(f);
+    }
+
+    /** Remove a runtime filter added by {@link #addRuntimeFilter}. */
+    public void removeRuntimeFilter(BloomFilter f) {
+        runtimeFilters.remove(f);
+    }
+
+    /** @return true if tuples are taken from batches rather than the file iterator */
+    private boolean batched() {
+        return parallelism > 1 || partitions > 1 || !predicates.isEmpty();
+    }
+
+    private boolean isParallel() {
+        return parallelism > 1 && partitions == 1 && Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile;
     }
 
     /**
@@ -48,6 +190,20 @@ public class SeqScan implements DbIterator {
         return null;
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return this.tableid;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return this.tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -77,7 +233,28 @@ public class SeqScan implements DbIterator {
     }
 
     public void open() throws DbException, TransactionAbortedException {
-        iter.open();
+        resetBatches();
+        if (isParallel()) startParallel();
+        else iter.open();
+    }
+
+    private void startParallel() {
+        parallel = new ParallelScan(tid, (HeapFile) Database.getCatalog().getDatabaseFile(tableid),
+                getTupleDesc(), predicates, parallelism, strategy != null);
+        parallel.start();
+    }
+
+    private void resetBatches() {
+        if (parallel != null) {
+            parallel.close();
+            parallel = null;
+        }
+        batch = null;
+        page = null;
+        pageNo = 0;
+        slot = 0;
+        current = null;
+        pos = 0;
     }
 
     /**
@@ -102,20 +279,84 @@ public class SeqScan implements DbIterator {
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
-        return iter.hasNext();
+        if (!batched()) return iter.hasNext();
+        while (current == null || pos >= current.numSelected()) {
+            current = nextBatch();
+            pos = 0;
+            if (current == null) return false;
+        }
+        return true;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        return iter.next();
+        if (!batched()) return iter.next();
+        if (!hasNext()) throw new NoSuchElementException();
+        return current.getTuple(current.selected(pos++));
+    }
+
+    /**
+     * Returns the next batch with a row that passes the predicates and
+     * runtime filters of this scan, or null if there are no more tuples.
+     * Runtime filters are applied here even when the workers of a parallel
+     * scan read the pages, as they may be added while it runs.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch b;
+        while ((b = parallel != null ? parallel.nextBatch() : readBatch()) != null) {
+            for (BloomFilter f : runtimeFilters) f.filter(b);
+            if (b.numSelected() > 0) return b;
+        }
+        return null;
+    }
+
+    /**
+     * Reads the next batch of rows that pass the predicates, which may have
+     * none; the predicates are evaluated on the pages of a HeapFile before
+     * rows are copied out of them.
+     */
+    private TupleBatch readBatch() throws DbException, TransactionAbortedException {
+        if (batch == null) batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        batch.clear();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile)) {
+            while (!batch.isFull() && iter.hasNext())
+                batch.addTuple(iter.next());
+            for (Predicate p : predicates) p.filter(batch);
+            return batch.size() == 0 ? null : batch;
+        }
+        while (!batch.isFull()) {
+            if (page == null) {
+                while (partitions > 1 && pageNo < ((HeapFile) file).numPages() && !inPartition(pageNo))
+                    pageNo++;
+                if (pageNo >= ((HeapFile) file).numPages()) break;
+                page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableid, pageNo),
+                        Permissions.READ_WRITE, strategy);
+                if (page == null) break;
+                slot = 0;
+            }
+            slot = page.readInto(batch, slot, predicates);
+            if (slot >= page.getNumSlots()) {
+                page = null;
+                pageNo++;
+            }
+        }
+        return batch.size() == 0 ? null : batch;
     }
 
     public void close() {
         iter.close();
+        resetBatches();
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        if (parallel != null) {
+            resetBatches();
+            startParallel();
+            return;
+        }
         iter.rewind();
+        resetBatches();
     }
 }
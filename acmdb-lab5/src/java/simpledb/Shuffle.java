@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * Shuffle is an {@link Exchange} that sends the rows of some inputs to
+ * several outputs, each of which is a Shuffle to be read by a fragment of
+ * a parallel plan. A hash shuffle sends each row to one output, picked by
+ * the hash of a field, so equal values meet in the same fragment; a
+ * broadcast sends every row to every output.
+ * <p>
+ * Each input is read by a worker thread of its own, started when the first
+ * output is opened. The workers stop once all outputs are closed; an output
+ * closed early drops the rows sent to it, so it does not hold up the
+ * others. The outputs cannot be rewound, but the fragments reading them
+ * can be opened again once all of them are closed, as a Gather above them
+ * does on rewind, and then read all rows again.
+ */
+public class Shuffle extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+    private final Router router;
+    private final int index;
+
+    private Shuffle(Router router, int index) {
+        this.router = router;
+        this.index = index;
+    }
+
+    /**
+     * @param inputs the inputs, which must all have the same TupleDesc
+     * @param field the field to hash rows on
+     * @param outputs the number of outputs
+     * @return the outputs, each of which gets the rows whose field hashes
+     *         to it
+     */
+    public static Shuffle[] hash(DbIterator[] inputs, int field, int outputs) {
+        return create(new Router(inputs, field, outputs));
+    }
+
+    /**
+     * @param inputs the inputs, which must all have the same TupleDesc
+     * @param outputs the number of outputs
+     * @return the outputs, each of which gets all rows
+     */
+    public static Shuffle[] broadcast(DbIterator[] inputs, int outputs) {
+        return create(new Router(inputs, -1, outputs));
+    }
+
+    private static Shuffle[] create(Router router) {
+        Shuffle[] outputs = new Shuffle[router.channels.length];
+        for (int i = 0; i < outputs.length; i++)
+            outputs[i] = new Shuffle(router, i);
+        return outputs;
+    }
+
+    /** @return the number of outputs of this shuffle */
+    public int numOutputs() {
+        return router.channels.length;
+    }
+
+    /** @return true if every row goes to every output */
+    public boolean isBroadcast() {
+        return router.field < 0;
+    }
+
+    public String getName() {
+        if (isBroadcast()) return "broadcast(" + router.channels.length + ")";
+        return "shuffle(" + router.channels.length + ", hash "
+                + getTupleDesc().getFieldName(router.field) + ")";
+    }
+
+    /**
+     * Returns the output a row goes to by a hash shuffle with the given
+     * number of outputs. The hash is mixed first, since the hash table of a
+     * join or aggregate above picks slots by its low bits and partitions by
+     * its high bits, both of which would otherwise be the same for all rows
+     * of an output.
+     */
+    static int outputOf(TupleBatch b, int field, int row, int outputs) {
+        int h = JoinHashTable.hash(b, field, row) * 0x9E3779B9;
+        return (int) (((h ^ (h >>> 15)) & 0xffffffffL) * outputs >>> 32);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return router.inputs[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        router.open(index);
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        router.close(index);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        throw new DbException("a shuffle cannot be rewound");
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return router.take(index);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return router.inputs;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        router.inputs = children;
+    }
+
+    /** The workers and channels shared by the outputs of a shuffle. */
+    private static class Router {
+        DbIterator[] inputs;
+        final int field;
+        final Channel[] channels;
+        private Workers workers;
+        // the outputs closed since the workers started; an output that is
+        // closed without having been opened counts too, since it will not
+        // read anything either
+        private final boolean[] done;
+        private int closed;
+
+        Router(DbIterator[] inputs, int field, int outputs) {
+            this.inputs = inputs;
+            this.field = field;
+            this.channels = new Channel[outputs];
+            this.done = new boolean[outputs];
+        }
+
+        synchronized void open(int output) throws DbException {
+            if (workers == null) start();
+            else if (done[output])
+                throw new DbException("shuffle output reopened before all outputs were closed");
+        }
+
+        synchronized void close(int output) {
+            if (workers == null || done[output]) return;
+            done[output] = true;
+            channels[output].close();
+            if (++closed < channels.length) return;
+            workers.cancel();
+            workers = null;
+        }
+
+        TupleBatch take(int output) throws DbException, TransactionAbortedException {
+            Workers w;
+            synchronized (this) {
+                w = workers;
+            }
+            return channels[output].take(w);
+        }
+
+        private void start() {
+            final TupleDesc td = inputs[0].getTupleDesc();
+            for (int i = 0; i < channels.length; i++)
+                channels[i] = new Channel(td, inputs.length);
+            closed = 0;
+            Arrays.fill(done, false);
+            final Workers w = new Workers();
+            Runnable[] tasks = new Runnable[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                final DbIterator input = inputs[i];
+                final Channel[] out = channels.clone();
+                tasks[i] = new Runnable() {
+                    public void run() {
+                        try {
+                            route(input, td, out, w);
+                        } catch (Throwable e) {
+                            w.fail(e);
+                        } finally {
+                            input.close();
+                            for (Channel c : out) c.producerDone();
+                        }
+                    }
+                };
+            }
+            workers = w;
+            w.start(tasks);
+        }
+
+        /** Reads an input and sends its rows to the channels. */
+        private void route(DbIterator input, TupleDesc td, Channel[] out, Workers w)
+                throws Exception {
+            input.open();
+            BatchIterator in = BatchingIterator.of(input);
+            TupleBatch[] pending = new TupleBatch[out.length];
+            TupleBatch b;
+            while (!w.isCancelled() && (b = in.nextBatch()) != null) {
+                for (int j = 0; j < b.numSelected(); j++) {
+                    int row = b.selected(j);
+                    if (field >= 0) {
+                        int o = outputOf(b, field, row, out.length);
+                        pending[o] = add(pending[o], b, row, td, out[o], w);
+                    } else {
+                        for (int o = 0; o < out.length; o++)
+                            pending[o] = add(pending[o], b, row, td, out[o], w);
+                    }
+                }
+            }
+            for (int o = 0; o < out.length; o++)
+                if (pending[o] != null) out[o].put(pending[o], w);
+        }
+
+        /** Adds a row to the pending batch of a channel, sending it when full. */
+        private static TupleBatch add(TupleBatch pending, TupleBatch b, int row, TupleDesc td,
+                Channel out, Workers w) throws InterruptedException {
+            if (pending == null) pending = new TupleBatch(td, TupleBatch.DEFAULT_CAPACITY);
+            pending.addRow(b, row);
+            if (!pending.isFull()) return pending;
+            out.put(pending, w);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs on an equality or range predicate by
+ * sorting both on their join field and merging them. An input that scans a
+ * B+ tree keyed on the join field, or comes from an ascending OrderBy on
+ * it, is already sorted and is read as it is; any other one is sorted by an
+ * {@link OrderBy}, which spills sorted runs to disk past its share of the
+ * memory budget.
+ * <p>
+ * The merge reads one input, the driving one, a tuple at a time, and holds
+ * the tuples of the other input that join with it:
+ * <ul>
+ * <li>for EQUALS, the left input drives and the right tuples with its key
+ * are held, one group of equal keys at a time;</li>
+ * <li>for GREATER_THAN and GREATER_THAN_OR_EQ, the left input drives and
+ * the right tuples with a key below (or not above) its key are held; as
+ * the left keys go up, this only grows;</li>
+ * <li>for LESS_THAN and LESS_THAN_OR_EQ, it is the other way around: the
+ * right input drives and the left tuples with a key below (or not above)
+ * its key are held, so the output comes in order of the right key.</li>
+ * </ul>
+ * A range join may thus hold all of one input. Held tuples are kept in
+ * memory up to a third of the memory budget, the sorts of the inputs
+ * getting the other two thirds, and written to a spill file past that.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    /** Default number of bytes of tuples the join and its sorts hold in memory. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+
+    // the inputs in ascending order of their join fields: the children,
+    // or sorts of them
+    private transient DbIterator in1, in2;
+    // the driving input, the input whose tuples are held, their join
+    // fields, and the next tuple of the held input, read ahead
+    private transient DbIterator drive, held;
+    private transient int driveField, heldField;
+    private transient Tuple nextHeld;
+    // the tuples of the held input that join with the current driving
+    // tuple, and for EQUALS their key
+    private transient Buffer buffer;
+    private transient Field bufferKey;
+    // the current driving tuple, and where we are in the buffer for it
+    private transient Tuple now;
+    private transient int memPos;
+    private transient DbIterator diskIn;
+    private transient boolean spilled;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be EQUALS, LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or
+     *            GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException if the operator is not supported
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("unsupported join operator " + p.getOperator());
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * Tuples held for the merge, in memory up to a budget and in a spill
+     * file past it, read back in the order they were added.
+     */
+    private static class Buffer {
+        final TupleDesc td;
+        final long budget;
+        final long perTuple;
+        final ArrayList<Tuple> mem = new ArrayList<Tuple>();
+        SpillFile disk;
+
+        Buffer(TupleDesc td, long budget) {
+            this.td = td;
+            this.budget = budget;
+            this.perTuple = OrderBy.tupleBytes(td);
+        }
+
+        void add(Tuple t) throws IOException {
+            if (disk == null && (mem.size() + 1) * perTuple <= budget) {
+                mem.add(t);
+                return;
+            }
+            if (disk == null) disk = new SpillFile(td);
+            disk.append(t);
+        }
+
+        void clear() {
+            mem.clear();
+            if (disk != null) disk.delete();
+            disk = null;
+        }
+    }
+
+    /**
+     * @return true if a SortMergeJoin can evaluate the given join operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the tuples of it come in ascending order of the given
+     *         field, because it scans a B+ tree keyed on that field, whose
+     *         leaves are read from left to right, possibly through Filters,
+     *         or sorts on it
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (IndexNestedLoopJoin.indexOf(it, field) != null) return true;
+        if (it instanceof OrderBy)
+            return ((OrderBy) it).isASC() && ((OrderBy) it).getOrderByField() == field;
+        if (!(it instanceof BTreeScan)) return false;
+        Catalog catalog = Database.getCatalog();
+        DbFile f;
+        try {
+            f = catalog.getDatabaseFile(catalog.getTableId(((BTreeScan) it).getTableName()));
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return the number of bytes of tuples this join and the sorts of its
+     *         inputs hold in memory before they write them to disk
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set the number of bytes of tuples this join and the sorts of its
+     * inputs hold in memory before they write them to disk; takes effect at
+     * the next open.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return true if the join or the sort of an input has written tuples
+     *         to disk since it was opened
+     */
+    public boolean hasSpilled() {
+        return spilled || (in1 instanceof OrderBy && in1 != child1 && ((OrderBy) in1).hasSpilled())
+                || (in2 instanceof OrderBy && in2 != child2 && ((OrderBy) in2).hasSpilled());
+    }
+
+    /** @return the input in ascending order of the given field */
+    private DbIterator sorted(DbIterator it, int field) {
+        if (isSortedOn(it, field)) return it;
+        OrderBy sort = new OrderBy(field, true, it);
+        sort.setMemoryBudget(memoryBudget / 3);
+        return sort;
+    }
+
+    /** @return true if the left input drives the merge */
+    private boolean leftDrives() {
+        switch (p.getOperator()) {
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        in1 = sorted(child1, p.getField1());
+        in2 = sorted(child2, p.getField2());
+        in1.open();
+        in2.open();
+        if (leftDrives()) {
+            drive = in1;
+            driveField = p.getField1();
+            held = in2;
+            heldField = p.getField2();
+        } else {
+            drive = in2;
+            driveField = p.getField2();
+            held = in1;
+            heldField = p.getField1();
+        }
+        buffer = new Buffer(held.getTupleDesc(), memoryBudget / 3);
+        spilled = false;
+        reset();
+        super.open();
+    }
+
+    private void reset() throws DbException, TransactionAbortedException {
+        closeDisk();
+        buffer.clear();
+        bufferKey = null;
+        now = null;
+        nextHeld = held.hasNext() ? held.next() : null;
+    }
+
+    private void closeDisk() {
+        if (diskIn != null) {
+            diskIn.close();
+            diskIn = null;
+        }
+    }
+
+    public void close() {
+        super.close();
+        closeDisk();
+        if (buffer != null) buffer.clear();
+        buffer = null;
+        now = null;
+        nextHeld = null;
+        (in2 != null ? in2 : child2).close();
+        (in1 != null ? in1 : child1).close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        in1.rewind();
+        in2.rewind();
+        reset();
+    }
+
+    /**
+     * Moves the held input on to the tuples that join with the driving
+     * tuple of the given key: for EQUALS those with the key, replacing the
+     * buffered ones unless they have it too; otherwise adds those with a
+     * key below (or not above) it.
+     */
+    private void fill(Field key) throws DbException, TransactionAbortedException, IOException {
+        Predicate.Op op = p.getOperator();
+        if (op == Predicate.Op.EQUALS) {
+            if (bufferKey != null && bufferKey.compare(Predicate.Op.EQUALS, key)) return;
+            buffer.clear();
+            bufferKey = key;
+            while (nextHeld != null && nextHeld.getField(heldField).compare(Predicate.Op.LESS_THAN, key))
+                nextHeld = held.hasNext() ? held.next() : null;
+            op = Predicate.Op.LESS_THAN_OR_EQ;
+        } else {
+            op = op == Predicate.Op.GREATER_THAN || op == Predicate.Op.LESS_THAN
+                    ? Predicate.Op.LESS_THAN : Predicate.Op.LESS_THAN_OR_EQ;
+        }
+        while (nextHeld != null && nextHeld.getField(heldField).compare(op, key)) {
+            buffer.add(nextHeld);
+            nextHeld = held.hasNext() ? held.next() : null;
+        }
+        if (buffer.disk != null) spilled = true;
+    }
+
+    /** @return the next buffered tuple for the current driving tuple, or null */
+    private Tuple nextBuffered() throws DbException, TransactionAbortedException {
+        if (memPos < buffer.mem.size()) return buffer.mem.get(memPos++);
+        if (buffer.disk == null) return null;
+        if (diskIn == null) {
+            try {
+                diskIn = buffer.disk.iterator();
+            } catch (IOException e) {
+                throw new DbException("unable to read join spill file: " + e.getMessage());
+            }
+            diskIn.open();
+        }
+        return diskIn.hasNext() ? diskIn.next() : null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of joining tuples from the
+     * left and right relation, in order of the join field of the driving one.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (now != null) {
+                Tuple t = nextBuffered();
+                if (t != null) return drive == in1 ? Tuple.merge(now, t) : Tuple.merge(t, now);
+                closeDisk();
+            }
+            if (!drive.hasNext()) return null;
+            now = drive.next();
+            try {
+                fill(now.getField(driveField));
+            } catch (IOException e) {
+                throw new DbException("unable to spill join input: " + e.getMessage());
+            }
+            memPos = 0;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
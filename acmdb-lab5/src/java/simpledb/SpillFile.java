@@ -0,0 +1,221 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * A SpillFile is a temporary file that operators write rows to when they
+ * do not fit in memory, and read back later, in the order they were
+ * written. It can be read any number of times, and appended to between
+ * reads; a reader sees the rows appended before it was opened.
+ * <p>
+ * Rows are written field by field: integers as four bytes, strings as their
+ * length and bytes, so short strings take little space.
+ * <p>
+ * The file is only created by the first append, and its writer, with a
+ * buffer of {@link #getBufferSize()} bytes, stays open until the file is
+ * read or {@link #closeOutput()} is called; an empty spill file takes no
+ * file descriptor and no buffer.
+ */
+public class SpillFile {
+
+    /** Default size in bytes of the buffers of a spill file's writer and readers. */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    private final TupleDesc td;
+    private final int bufferSize;
+    private File file;
+    private DataOutputStream out;
+    private int numRows;
+
+    /**
+     * Create an empty spill file.
+     *
+     * @param td the TupleDesc of the rows
+     */
+    public SpillFile(TupleDesc td) {
+        this(td, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create an empty spill file whose writer and readers buffer the given
+     * number of bytes.
+     *
+     * @param td the TupleDesc of the rows
+     * @param bufferSize the size of the buffers in bytes
+     */
+    public SpillFile(TupleDesc td, int bufferSize) {
+        this.td = td;
+        this.bufferSize = bufferSize;
+    }
+
+    /** @return the TupleDesc of the rows */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows in the file */
+    public int numRows() {
+        return numRows;
+    }
+
+    /** @return the size in bytes of the buffers of the writer and readers */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** @return true if the writer is open and holds its buffer */
+    public boolean isOutputOpen() {
+        return out != null;
+    }
+
+    private DataOutputStream out() throws IOException {
+        if (file == null) {
+            file = File.createTempFile("spill", ".tmp");
+            file.deleteOnExit();
+        }
+        if (out == null)
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), bufferSize));
+        return out;
+    }
+
+    /** Append a row of a batch, which must have the TupleDesc of this file. */
+    public void append(TupleBatch b, int row) throws IOException {
+        DataOutputStream out = out();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (b.intColumn(i) != null) {
+                out.writeInt(b.getInt(i, row));
+            } else {
+                out.writeUTF(b.getString(i, row));
+            }
+        }
+        numRows++;
+    }
+
+    /** Append the live rows of a batch. */
+    public void append(TupleBatch b) throws IOException {
+        for (int i = 0; i < b.numSelected(); i++)
+            append(b, b.selected(i));
+    }
+
+    /** Append a tuple, which must have the TupleDesc of this file. */
+    public void append(Tuple t) throws IOException {
+        DataOutputStream out = out();
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (f instanceof IntField) {
+                out.writeInt(((IntField) f).getValue());
+            } else {
+                out.writeUTF(((StringField) f).getValue());
+            }
+        }
+        numRows++;
+    }
+
+    /**
+     * Returns an iterator over the rows of this file, as of when it is
+     * opened.
+     */
+    public BatchIterator iterator() throws IOException {
+        closeOutput();
+        return new Reader();
+    }
+
+    /**
+     * Write out what is buffered and close the writer, freeing its file
+     * descriptor and buffer; the next append opens it again.
+     */
+    public void closeOutput() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /** Delete the file. */
+    public void delete() {
+        try {
+            closeOutput();
+        } catch (IOException ignore) {}
+        out = null;
+        if (file != null) file.delete();
+        file = null;
+    }
+
+    private class Reader implements BatchIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient DataInputStream in;
+        private transient int rows;
+        private transient int read;
+        private transient TupleBatch batch;
+        private transient int pos;
+
+        public void open() throws DbException {
+            try {
+                closeOutput();
+                InputStream s = file == null ? new ByteArrayInputStream(new byte[0]) : new FileInputStream(file);
+                in = new DataInputStream(new BufferedInputStream(s, bufferSize));
+            } catch (IOException e) {
+                throw new DbException("unable to open spill file: " + e.getMessage());
+            }
+            rows = numRows;
+            read = 0;
+            batch = null;
+            pos = 0;
+        }
+
+        public TupleBatch nextBatch() throws DbException {
+            if (in == null) throw new IllegalStateException("spill file not open");
+            if (batch == null) batch = new TupleBatch(td, TupleBatch.DEFAULT_CAPACITY);
+            batch.clear();
+            pos = 0;
+            try {
+                while (!batch.isFull() && read < rows) {
+                    int row = batch.addRow();
+                    for (int i = 0; i < td.numFields(); i++) {
+                        if (batch.intColumn(i) != null)
+                            batch.setInt(i, row, in.readInt());
+                        else
+                            batch.setString(i, row, in.readUTF());
+                    }
+                    read++;
+                }
+            } catch (IOException e) {
+                throw new DbException("unable to read spill file: " + e.getMessage());
+            }
+            return batch.size() == 0 ? null : batch;
+        }
+
+        public boolean hasNext() throws DbException {
+            if (batch == null || pos >= batch.size()) {
+                if (nextBatch() == null) return false;
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (!hasNext()) throw new NoSuchElementException();
+            return batch.getTuple(pos++);
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {}
+                in = null;
+            }
+        }
+    }
+}
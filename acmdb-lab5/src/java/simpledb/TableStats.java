@@ -1,6 +1,6 @@
 package simpledb;
 
-import javax.xml.crypto.Data;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -87,7 +87,10 @@ public class TableStats {
         this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
         DbFile file = Database.getCatalog().getDatabaseFile(tableid);
-        this.numPage = ((HeapFile)file).numPages();
+        if (file instanceof BTreeFile)
+            this.numPage = ((BTreeFile)file).numPages();
+        else
+            this.numPage = ((HeapFile)file).numPages();
         TupleDesc td = file.getTupleDesc();
         int numfields = td.numFields();
         isint = new boolean[numfields];
@@ -104,7 +107,11 @@ public class TableStats {
         numTup = 0;
         TransactionId tid = new TransactionId();
         try {
-            DbFileIterator iter = file.iterator(tid);
+            // both passes over a heap file read through one small ring so
+            // that computing the statistics does not flush the buffer pool
+            DbFileIterator iter = file instanceof HeapFile
+                    ? ((HeapFile)file).iterator(tid, Database.getBufferPool().newBulkReadStrategy())
+                    : file.iterator(tid);
             iter.open();
             while (iter.hasNext()) {
                 Tuple t = iter.next();
@@ -137,7 +144,13 @@ public class TableStats {
                     }
                 }
             }
-        } catch (Exception ignore) {}
+            iter.close();
+        } catch (Exception ignore) {
+        } finally {
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (IOException ignore) {}
+        }
     }
 
     /**
@@ -0,0 +1,146 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n: it returns the
+ * first n tuples of its child in the order OrderBy would return them,
+ * without sorting the whole child.
+ * <p>
+ * It keeps the best n tuples seen so far in a heap whose head is the worst
+ * of them. A row of the child is only turned into a tuple if it beats that
+ * one, so reading the child takes O(n) memory and O(log n) time per row
+ * that gets in, and a comparison of its key for every other row.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private TupleDesc td;
+    private int orderByField;
+    private String orderByFieldName;
+    private boolean asc;
+    private int limit;
+
+    // the result, in order, and where we are in it
+    private transient ArrayList<Tuple> top;
+    private transient Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, DbIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.child = child;
+        td = child.getTupleDesc();
+        this.orderByField = orderbyField;
+        this.orderByFieldName = td.getFieldName(orderbyField);
+        this.asc = asc;
+        this.limit = limit;
+    }
+
+    public boolean isASC() {
+        return this.asc;
+    }
+
+    public int getOrderByField() {
+        return this.orderByField;
+    }
+
+    public String getOrderFieldName() {
+        return this.orderByFieldName;
+    }
+
+    /** @return the number of tuples this operator returns at most */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return true if a row of a batch comes strictly before a tuple */
+    private boolean before(TupleBatch b, int row, Tuple t) {
+        Field f = t.getField(orderByField);
+        int c;
+        if (f instanceof IntField)
+            c = Integer.compare(b.getInt(orderByField, row), ((IntField) f).getValue());
+        else
+            c = b.getString(orderByField, row).compareTo(((StringField) f).getValue());
+        return asc ? c < 0 : c > 0;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        Comparator<Tuple> order = new TupleComparator(orderByField, asc);
+        // the head of the heap is the tuple that would go last
+        PriorityQueue<Tuple> heap = new PriorityQueue<Tuple>(Math.max(1, limit),
+                Collections.reverseOrder(order));
+        if (limit > 0) {
+            BatchIterator in = BatchingIterator.of(child);
+            TupleBatch b;
+            while ((b = in.nextBatch()) != null) {
+                for (int i = 0; i < b.numSelected(); i++) {
+                    int row = b.selected(i);
+                    if (heap.size() < limit) {
+                        heap.add(b.getTuple(row));
+                    } else if (before(b, row, heap.peek())) {
+                        heap.poll();
+                        heap.add(b.getTuple(row));
+                    }
+                }
+            }
+        }
+        top = new ArrayList<Tuple>(heap);
+        Collections.sort(top, order);
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        top = null;
+        it = null;
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the first tuples of the
+     * child operator in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,249 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A TupleBatch holds up to a fixed number of rows of one TupleDesc stored
+ * column by column: integer columns as int arrays, string columns as String
+ * arrays. Operators that work batch at a time (see {@link BatchIterator})
+ * pass these around instead of one Tuple per row, so a filter or an
+ * aggregate runs a tight loop over a primitive array instead of a virtual
+ * call and a few allocations per row.
+ * <p>
+ * Rows that have been filtered out are not removed. Instead the batch has a
+ * selection vector, the ascending list of the rows that are still live. A
+ * batch without a selection vector has all of its rows live. Consumers
+ * should only look at the rows from {@link #selected(int)}.
+ * <p>
+ * A batch returned by nextBatch is only valid until the next call to
+ * nextBatch on the same iterator, which may reuse it.
+ */
+public class TupleBatch {
+
+    /** Number of rows in the batches operators produce. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    // one of the two is null for each column, depending on its type
+    private final int[][] ints;
+    private final String[][] strings;
+    private final RecordId[] rids;
+    private int size;
+    // live rows in ascending order, or null if all rows are live
+    private int[] sel;
+    private int selSize;
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the TupleDesc of the rows
+     * @param capacity the maximum number of rows
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.strings = new String[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                strings[i] = new String[capacity];
+        }
+        this.rids = new RecordId[capacity];
+    }
+
+    private TupleBatch(TupleDesc td, int capacity, int[][] ints, String[][] strings,
+            RecordId[] rids, int size, int[] sel, int selSize) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = ints;
+        this.strings = strings;
+        this.rids = rids;
+        this.size = size;
+        this.sel = sel;
+        this.selSize = selSize;
+    }
+
+    /** @return the TupleDesc of the rows of this batch */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the maximum number of rows of this batch */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of rows in this batch, live or not */
+    public int size() {
+        return size;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** Remove all rows and the selection vector. */
+    public void clear() {
+        size = 0;
+        sel = null;
+        selSize = 0;
+    }
+
+    /** @return the number of live rows */
+    public int numSelected() {
+        return sel == null ? size : selSize;
+    }
+
+    /** @return the row index of the i-th live row */
+    public int selected(int i) {
+        return sel == null ? i : sel[i];
+    }
+
+    /**
+     * Returns the selection vector, which lists the live rows in ascending
+     * order in its first {@link #numSelected()} entries, or null if all rows
+     * are live.
+     */
+    public int[] getSelection() {
+        return sel;
+    }
+
+    /**
+     * Make the first n rows of the given array the live rows of this batch.
+     *
+     * @param sel row indexes in ascending order, or null to make all rows live
+     */
+    public void setSelection(int[] sel, int n) {
+        this.sel = sel;
+        this.selSize = sel == null ? 0 : n;
+    }
+
+    /**
+     * Returns an array the caller may use as a new selection vector; it is
+     * the current one if there is one, which is fine for a caller that only
+     * drops rows, since it writes at or before the entry it reads.
+     */
+    public int[] selectionBuffer() {
+        return sel != null ? sel : new int[capacity];
+    }
+
+    /** @return the values of an integer column, indexed by row */
+    public int[] intColumn(int col) {
+        return ints[col];
+    }
+
+    /** @return the values of a string column, indexed by row */
+    public String[] stringColumn(int col) {
+        return strings[col];
+    }
+
+    public int getInt(int col, int row) {
+        return ints[col][row];
+    }
+
+    public String getString(int col, int row) {
+        return strings[col][row];
+    }
+
+    /** @return the record id of a row, or null if it has none */
+    public RecordId getRecordId(int row) {
+        return rids[row];
+    }
+
+    /** @return the given field of a row as a Field */
+    public Field getField(int col, int row) {
+        if (ints[col] != null) return new IntField(ints[col][row]);
+        return new StringField(strings[col][row], Type.STRING_LEN);
+    }
+
+    /** @return a new Tuple with the contents of a row */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(rids[row]);
+        for (int i = 0; i < ints.length; i++)
+            t.setField(i, getField(i, row));
+        return t;
+    }
+
+    /**
+     * Add a row at the end of the batch; its fields have to be set by the
+     * caller. Only allowed on a batch without a selection vector.
+     *
+     * @return the index of the new row
+     * @throws NoSuchElementException if the batch is full
+     */
+    public int addRow() {
+        if (size == capacity) throw new NoSuchElementException("batch is full");
+        rids[size] = null;
+        return size++;
+    }
+
+    /**
+     * Add a tuple at the end of the batch.
+     *
+     * @return the index of the new row
+     */
+    public int addTuple(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < ints.length; i++)
+            setField(i, row, t.getField(i));
+        rids[row] = t.getRecordId();
+        return row;
+    }
+
+    /**
+     * Add a copy of a row of another batch, with the same types of columns,
+     * at the end of this one.
+     *
+     * @return the index of the new row
+     */
+    public int addRow(TupleBatch b, int row) {
+        int r = addRow();
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) ints[i][r] = b.ints[i][row];
+            else strings[i][r] = b.strings[i][row];
+        }
+        rids[r] = b.rids[row];
+        return r;
+    }
+
+    public void setInt(int col, int row, int value) {
+        ints[col][row] = value;
+    }
+
+    public void setString(int col, int row, String value) {
+        strings[col][row] = value;
+    }
+
+    public void setField(int col, int row, Field f) {
+        if (ints[col] != null)
+            ints[col][row] = ((IntField) f).getValue();
+        else
+            strings[col][row] = ((StringField) f).getValue();
+    }
+
+    public void setRecordId(int row, RecordId rid) {
+        rids[row] = rid;
+    }
+
+    /**
+     * Returns a batch with a subset of the columns of this one, sharing
+     * their values, row ids and selection vector with it.
+     *
+     * @param cols the columns of this batch to keep, in output order
+     * @param td the TupleDesc of the result
+     */
+    public TupleBatch project(int[] cols, TupleDesc td) {
+        int[][] pi = new int[cols.length][];
+        String[][] ps = new String[cols.length][];
+        for (int i = 0; i < cols.length; i++) {
+            pi[i] = ints[cols[i]];
+            ps[i] = strings[cols[i]];
+        }
+        return new TupleBatch(td, capacity, pi, ps, rids, size, sel, selSize);
+    }
+}
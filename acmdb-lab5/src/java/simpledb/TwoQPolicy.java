@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). New pages enter a FIFO queue
+ * A1in; when they are evicted from it only their ids are remembered in the
+ * ghost queue A1out. A page that is requested again while it is in A1out is
+ * considered hot and goes to the LRU queue Am. Pages that are touched once
+ * (e.g. by a sequential scan) therefore never push hot pages out of Am.
+ * Pages that are discarded rather than evicted are not remembered.
+ */
+public class TwoQPolicy extends AbstractReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    // access-ordered LRU
+    private final LinkedHashMap<PageId, Boolean> am;
+
+    /**
+     * @param capacity the number of pages of the buffer pool this policy serves;
+     *                 A1in is sized to a quarter and A1out to half of it
+     */
+    public TwoQPolicy(int capacity) {
+        this(Math.max(1, capacity / 4), Math.max(1, capacity / 2));
+    }
+
+    /**
+     * @param kin  the target size of A1in
+     * @param kout the maximum number of ids remembered in A1out
+     */
+    public TwoQPolicy(int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+        this.a1in = new LinkedHashSet<PageId>();
+        this.a1out = new LinkedHashSet<PageId>();
+        this.am = new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        if (am.containsKey(pid)) {
+            am.get(pid);
+            return;
+        }
+        if (a1in.contains(pid)) return;
+        if (a1out.remove(pid)) {
+            am.put(pid, Boolean.TRUE);
+            return;
+        }
+        a1in.add(pid);
+    }
+
+    public synchronized void recordRemoval(PageId pid, boolean evicted) {
+        if (a1in.remove(pid)) {
+            // only pages pushed out of A1in are remembered; a discarded page
+            // coming back is no sign that it is hot
+            if (!evicted) return;
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+            return;
+        }
+        am.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        PageId victim;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = firstEvictable(a1in, evictable);
+            if (victim == null) victim = firstEvictable(am.keySet(), evictable);
+        } else {
+            victim = firstEvictable(am.keySet(), evictable);
+            if (victim == null) victim = firstEvictable(a1in, evictable);
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(Iterable<PageId> queue, Evictable evictable) {
+        for (PageId pid : queue) {
+            if (evictable.canEvict(pid)) return pid;
+        }
+        return null;
+    }
+}
@@ -1,14 +1,20 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class AggregateTest extends SimpleDbTestBase {
 
@@ -176,6 +182,126 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * A group by with more groups than fit in its memory budget spills rows
+   * to disk, and still returns every group once with its aggregate, also
+   * after a rewind.
+   */
+  @Test public void spilledGroupBy() throws Exception {
+    Random r = new Random(7);
+    int rows = 20000;
+    int[] data = new int[rows * 2];
+    HashMap<Integer, Integer> sums = new HashMap<Integer, Integer>();
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = r.nextInt(5000);
+      data[2 * i + 1] = r.nextInt(100);
+      sums.merge(data[2 * i], data[2 * i + 1], Integer::sum);
+    }
+
+    Aggregate op = new Aggregate(TestUtil.createTupleList(width1, data), 1, 0,
+        Aggregator.Op.SUM);
+    op.setMemoryBudget(10000);
+    op.open();
+    assertTrue(op.hasSpilled());
+    for (int pass = 0; pass < 2; pass++) {
+      HashMap<Integer, Integer> seen = new HashMap<Integer, Integer>();
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        int key = ((IntField) t.getField(0)).getValue();
+        assertEquals(null, seen.put(key, ((IntField) t.getField(1)).getValue()));
+      }
+      assertEquals(sums, seen);
+      op.rewind();
+    }
+    op.close();
+
+    op = new Aggregate(TestUtil.createTupleList(width1, data), 1, 0,
+        Aggregator.Op.SUM);
+    op.open();
+    assertFalse(op.hasSpilled());
+    op.close();
+  }
+
+  private static HashMap<Field, Field> drain(DbIterator it) throws Exception {
+    HashMap<Field, Field> ans = new HashMap<Field, Field>();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertEquals(null, ans.put(t.getField(0), t.getField(1)));
+    }
+    return ans;
+  }
+
+  /**
+   * A streaming aggregate over input sorted on the group field returns the
+   * same groups as a hash aggregate, for every operator, also after a
+   * rewind; over grouped strings it matches the expected result.
+   */
+  @Test public void streamingGroupBy() throws Exception {
+    Random r = new Random(3);
+    int[] data = new int[2 * 3000];
+    for (int i = 0; i < data.length; i++)
+      data[i] = r.nextInt(i % 2 == 0 ? 700 : 1000);
+    Aggregator.Op[] ops = { Aggregator.Op.MIN, Aggregator.Op.MAX,
+        Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT };
+    for (Aggregator.Op aop : ops) {
+      Aggregate hash = new Aggregate(TestUtil.createTupleList(width1, data), 1, 0, aop);
+      hash.open();
+      HashMap<Field, Field> expected = drain(hash);
+      hash.close();
+
+      DbIterator sorted = new OrderBy(0, true, TestUtil.createTupleList(width1, data));
+      assertTrue(Aggregate.isGroupedOn(sorted, 0));
+      Aggregate op = new Aggregate(sorted, 1, 0, aop, true);
+      assertTrue(op.isStreaming());
+      op.open();
+      assertEquals(expected, drain(op));
+      op.rewind();
+      assertEquals(expected, drain(op));
+      op.close();
+    }
+
+    Aggregate op = new Aggregate(scan3, 1, 0, Aggregator.Op.SUM, true);
+    op.open();
+    sumstring.open();
+    TestUtil.matchAllTuples(sumstring, op);
+  }
+
+  /**
+   * GROUP BY on the key of a B+ tree is planned as a streaming aggregate,
+   * since a scan of the tree returns the tuples in key order, and on any
+   * other field as a hash aggregate.
+   */
+  @Test public void planStreamsOverTreeKey() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    BTreeFile tree = BTreeUtility.createRandomBTreeFile(2, 3000, 200, null, tuples, 0);
+    BTreeFile named = new BTreeFile(tree.getFile(), 0, Utility.getTupleDesc(2, "c"));
+    Database.getCatalog().addTable(named, "AGGTREE");
+    TableStats.setTableStats("AGGTREE", new TableStats(named.getId(), 1));
+    HashMap<Field, Field> counts = new HashMap<Field, Field>();
+    for (ArrayList<Integer> t : tuples) {
+      IntField key = new IntField(t.get(0));
+      IntField c = (IntField) counts.get(key);
+      counts.put(key, new IntField(c == null ? 1 : c.getValue() + 1));
+    }
+
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT t.c0, COUNT(t.c1) FROM AGGTREE t GROUP BY t.c0;");
+    DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    Aggregate agg = (Aggregate) ((Operator) plan).getChildren()[0];
+    assertTrue(agg.isStreaming());
+    plan.open();
+    assertEquals(counts, drain(plan));
+    plan.close();
+
+    lp = p.generateLogicalPlan(tid,
+        "SELECT t.c1, COUNT(t.c0) FROM AGGTREE t GROUP BY t.c1;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertFalse(((Aggregate) ((Operator) plan).getChildren()[0]).isStreaming());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
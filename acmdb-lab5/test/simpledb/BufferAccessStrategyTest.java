@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferAccessStrategyTest extends SimpleDbTestBase {
+
+  private static final int POOL_PAGES = 8;
+
+  private HeapFile hot;
+  private HeapFile big;
+  private BufferPool bp;
+  private ReplacementPolicy policy;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    hot = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    big = SystemTestUtil.createRandomHeapFile(2, 20 * 504, null, null);
+    policy = new LRUPolicy();
+    bp = Database.resetBufferPool(POOL_PAGES, policy);
+  }
+
+  private int scan(DbFileIterator it) throws Exception {
+    int n = 0;
+    it.open();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    return n;
+  }
+
+  /**
+   * Unit test for BufferAccessStrategy: the ring recycles its own frames, so a
+   * page read before a large scan is still resident afterwards.
+   */
+  @Test public void scanKeepsWorkingSet() throws Exception {
+    TransactionId tid = new TransactionId();
+    PageId hotPage = new HeapPageId(hot.getId(), 0);
+    bp.getPage(tid, hotPage, Permissions.READ_ONLY);
+
+    BufferAccessStrategy ring = bp.newBulkReadStrategy();
+    assertEquals(1, ring.getRingSize());
+    assertEquals(20 * 504, scan(big.iterator(tid, ring)));
+
+    policy.resetStatistics();
+    bp.getPage(tid, hotPage, Permissions.READ_ONLY);
+    assertEquals(1, policy.getHits());
+    bp.transactionComplete(tid);
+  }
+
+  /**
+   * Without a strategy the same scan pushes the page out of the pool.
+   */
+  @Test public void plainScanEvicts() throws Exception {
+    TransactionId tid = new TransactionId();
+    PageId hotPage = new HeapPageId(hot.getId(), 0);
+    bp.getPage(tid, hotPage, Permissions.READ_ONLY);
+
+    assertEquals(20 * 504, scan(big.iterator(tid)));
+
+    policy.resetStatistics();
+    bp.getPage(tid, hotPage, Permissions.READ_ONLY);
+    assertEquals(1, policy.getMisses());
+    bp.transactionComplete(tid);
+  }
+
+  /**
+   * A page read through a ring and then requested normally is no longer
+   * recycled by the ring.
+   */
+  @Test public void normalAccessClaimsRingPage() throws Exception {
+    TransactionId tid = new TransactionId();
+    BufferAccessStrategy ring = new BufferAccessStrategy(1);
+    PageId p0 = new HeapPageId(big.getId(), 0);
+    PageId p1 = new HeapPageId(big.getId(), 1);
+    bp.getPage(tid, p0, Permissions.READ_ONLY, ring);
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    bp.getPage(tid, p1, Permissions.READ_ONLY, ring);
+
+    policy.resetStatistics();
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    assertEquals(1, policy.getHits());
+    bp.transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BufferAccessStrategyTest.class);
+  }
+}
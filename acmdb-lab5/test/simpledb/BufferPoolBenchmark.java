@@ -0,0 +1,93 @@
+package simpledb;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures BufferPool.getPage() throughput with 1 to 32 threads reading
+ * random pages of one table under READ_ONLY locks, once with a single
+ * page table shard (equivalent to one monitor around the pool) and once
+ * with the default number of shards.
+ * <p>
+ * Two workloads are run: "hot", where the table fits into the pool and
+ * almost every request is a hit, and "cold", where the pool holds a quarter
+ * of the table and most requests go to disk.
+ * <p>
+ * Usage: java simpledb.BufferPoolBenchmark [millis per measurement]
+ */
+public class BufferPoolBenchmark {
+
+    private static final int TABLE_PAGES = 256;
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, TABLE_PAGES * 504, null, null);
+        int tableId = table.getId();
+
+        run("hot", tableId, 2 * TABLE_PAGES, millis);
+        run("cold", tableId, TABLE_PAGES / 4, millis);
+    }
+
+    private static void run(String workload, int tableId, int poolPages, long millis)
+            throws Exception {
+        System.out.println(workload + " workload, " + TABLE_PAGES + " page table, "
+                + poolPages + " page pool (getPage calls per second)");
+        System.out.printf("%8s %14s %14s %8s%n", "threads", "1 shard",
+                BufferPool.DEFAULT_SHARDS + " shards", "speedup");
+        // warm up the JIT and the OS page cache
+        measure(tableId, poolPages, BufferPool.DEFAULT_SHARDS, 4, millis);
+        for (int threads : THREADS) {
+            double single = measure(tableId, poolPages, 1, threads, millis);
+            double sharded = measure(tableId, poolPages, BufferPool.DEFAULT_SHARDS, threads, millis);
+            System.out.printf("%8d %14.0f %14.0f %7.2fx%n", threads, single, sharded, sharded / single);
+        }
+        System.out.println();
+    }
+
+    private static double measure(final int tableId, int poolPages, int shards, int threads,
+            long millis) throws Exception {
+        final BufferPool bp = new BufferPool(poolPages, new LRUPolicy(), shards);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong ops = new AtomicLong(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            new Thread() {
+                public void run() {
+                    Random r = new Random(seed);
+                    TransactionId tid = new TransactionId();
+                    long n = 0;
+                    try {
+                        start.await();
+                        while (!stop.get()) {
+                            PageId pid = new HeapPageId(tableId, r.nextInt(TABLE_PAGES));
+                            bp.getPage(tid, pid, Permissions.READ_ONLY);
+                            n++;
+                        }
+                        bp.transactionComplete(tid);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        ops.addAndGet(n);
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(millis);
+        stop.set(true);
+        done.await();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        return ops.get() / seconds;
+    }
+}
@@ -0,0 +1,97 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+  private static final int PAGES = 20;
+  private static final int THREADS = 8;
+
+  private HeapFile hf;
+  private BufferPool bp;
+  private ReplacementPolicy policy;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    hf = SystemTestUtil.createRandomHeapFile(2, PAGES * 504, null, null);
+    policy = new LRUPolicy();
+    bp = Database.resetBufferPool(2 * PAGES, policy);
+  }
+
+  /**
+   * Unit test for the sharded page table: threads missing on the same pages
+   * at the same time read each page from disk once and all get the same
+   * copy of it.
+   */
+  @Test public void concurrentMisses() throws Exception {
+    final Page[][] seen = new Page[THREADS][PAGES];
+    final Exception[] failure = new Exception[1];
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < THREADS; i++) {
+      final int t = i;
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            TransactionId tid = new TransactionId();
+            for (int p = 0; p < PAGES; p++) {
+              // walk the table in a different order in each thread
+              int pgNo = (p + t) % PAGES;
+              seen[t][pgNo] = bp.getPage(tid, new HeapPageId(hf.getId(), pgNo),
+                  Permissions.READ_ONLY);
+            }
+            bp.transactionComplete(tid);
+          } catch (Exception e) {
+            failure[0] = e;
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    if (failure[0] != null)
+      throw failure[0];
+
+    for (int p = 0; p < PAGES; p++)
+      for (int t = 1; t < THREADS; t++)
+        assertSame(seen[0][p], seen[t][p]);
+    assertEquals(PAGES, policy.getMisses());
+    assertEquals((THREADS - 1) * PAGES, policy.getHits());
+  }
+
+  /**
+   * The pool never holds more pages than its capacity, whatever the number
+   * of shards.
+   */
+  @Test public void capacityIsGlobal() throws Exception {
+    bp = Database.resetBufferPool(3, policy);
+    TransactionId tid = new TransactionId();
+    for (int p = 0; p < PAGES; p++)
+      bp.getPage(tid, new HeapPageId(hf.getId(), p), Permissions.READ_ONLY);
+    policy.resetStatistics();
+    for (int p = PAGES - 3; p < PAGES; p++)
+      bp.getPage(tid, new HeapPageId(hf.getId(), p), Permissions.READ_ONLY);
+    assertEquals(3, policy.getHits());
+    bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+    assertEquals(1, policy.getMisses());
+    bp.transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+  }
+}
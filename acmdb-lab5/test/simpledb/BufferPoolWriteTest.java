@@ -39,7 +39,8 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
                 byte[] emptyData = HeapPage.createEmptyPageData();
                 bw.write(emptyData);
                 bw.close();
-    			HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.numPages() - 1), 
+    			// the page was appended behind the back of the HeapFile
+    			HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.syncNumPages() - 1), 
     					HeapPage.createEmptyPageData());
     	        p.insertTuple(t);
     			dirtypages.add(p);
@@ -133,6 +134,22 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A buffer pool full of dirty pages cannot evict any of them, and says
+     * so when asked for another page.
+     */
+    @Test public void noVictimWhenAllDirty() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*2, null, null);
+        Database.resetBufferPool(1);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        try {
+            Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+            fail("expected a DbException");
+        } catch (DbException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("1 dirty, 0 pinned, 0 loading"));
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,114 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+public class DbFileChannelTest {
+
+  private File f;
+  private DbFileChannel channel;
+
+  @Before public void setUp() throws Exception {
+    f = File.createTempFile("channel", "dat");
+    f.deleteOnExit();
+    channel = new DbFileChannel(f);
+  }
+
+  @After public void tearDown() throws Exception {
+    channel.close();
+  }
+
+  /**
+   * Unit test for positional I/O: writes at any offset grow the file and
+   * are read back from the same offset.
+   */
+  @Test public void positionalReadWrite() throws Exception {
+    byte[] a = { 1, 2, 3, 4 };
+    byte[] b = { 5, 6, 7, 8 };
+    channel.write(b, 8);
+    channel.write(a, 0);
+    assertEquals(12, channel.size());
+
+    byte[] data = new byte[4];
+    assertEquals(4, channel.read(data, 8));
+    assertArrayEquals(b, data);
+    assertEquals(4, channel.read(data, 0));
+    assertArrayEquals(a, data);
+    assertEquals(12, channel.append(a));
+    assertEquals(16, channel.size());
+  }
+
+  /**
+   * A read at the end of the file returns the number of bytes available.
+   */
+  @Test public void shortRead() throws Exception {
+    channel.write(new byte[6], 0);
+    assertEquals(2, channel.read(new byte[4], 4));
+    assertEquals(0, channel.read(new byte[4], 6));
+  }
+
+  /**
+   * A closed channel is reopened by the next operation.
+   */
+  @Test public void reopenAfterClose() throws Exception {
+    byte[] a = { 1, 2, 3, 4 };
+    channel.write(a, 0);
+    channel.close();
+    byte[] data = new byte[4];
+    assertEquals(4, channel.read(data, 0));
+    assertArrayEquals(a, data);
+  }
+
+  /**
+   * Unit test for memory mapped reads: writes through the channel are seen
+   * through the mapping, which is extended when the file grows.
+   */
+  @Test public void mappedReads() throws Exception {
+    byte[] a = { 1, 2, 3, 4 };
+    byte[] b = { 5, 6, 7, 8 };
+    channel.setMemoryMapped(true);
+    channel.write(a, 0);
+    byte[] data = new byte[4];
+    assertEquals(4, channel.read(data, 0));
+    assertArrayEquals(a, data);
+
+    channel.write(b, 0);
+    channel.append(a);
+    assertEquals(4, channel.read(data, 0));
+    assertArrayEquals(b, data);
+    assertEquals(4, channel.read(data, 4));
+    assertArrayEquals(a, data);
+    // past the end of the file the channel answers
+    assertEquals(0, channel.read(data, 8));
+  }
+
+  /**
+   * A HeapFile reads the same pages with and without its mapping.
+   */
+  @Test public void mappedHeapFile() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+    for (int p = 0; p < hf.numPages(); p++) {
+      HeapPageId pid = new HeapPageId(hf.getId(), p);
+      byte[] plain = hf.readPage(pid).getPageData();
+      hf.setMemoryMapped(true);
+      assertArrayEquals(plain, hf.readPage(pid).getPageData());
+      hf.setMemoryMapped(false);
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(DbFileChannelTest.class);
+  }
+}
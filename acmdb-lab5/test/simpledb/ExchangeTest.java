@@ -0,0 +1,231 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  private TransactionId tid;
+  private HeapFile big;
+  private HeapFile small;
+  private ArrayList<ArrayList<Integer>> tuples;
+
+  @Before public void setUp() throws Exception {
+    tid = new TransactionId();
+    tuples = new ArrayList<ArrayList<Integer>>();
+    big = SystemTestUtil.createRandomHeapFile(2, 40000, 1000, null, tuples, "c");
+    small = SystemTestUtil.createRandomHeapFile(2, 2000, 1000, null, null, "c");
+    assertTrue(big.numPages() >= 4 * ParallelScan.MORSEL_PAGES);
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static ArrayList<ArrayList<Integer>> run(DbIterator it) throws Exception {
+    it.open();
+    ArrayList<ArrayList<Integer>> ans = SystemTestUtil.drain(it);
+    it.close();
+    return ans;
+  }
+
+  private DbIterator scan(HeapFile f) {
+    return new SeqScan(tid, f.getId(), "t");
+  }
+
+  /**
+   * A Gather over the parts of a filtered scan returns the same tuples as
+   * the scan, also after a rewind; only scans of HeapFiles can be split.
+   */
+  @Test public void gatherSplitScans() throws Exception {
+    Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500));
+    ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sorted(run(new Filter(p, scan(big))));
+    assertTrue(expected.size() > 0);
+
+    DbIterator[] parts = Exchange.split(new Filter(p, scan(big)), 4);
+    assertEquals(4, parts.length);
+    Gather g = new Gather(parts);
+    g.open();
+    assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.drain(g)));
+    g.rewind();
+    assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.drain(g)));
+    g.close();
+
+    assertNull(Exchange.split(new OrderBy(0, true, scan(big)), 4));
+  }
+
+  /**
+   * A join of inputs shuffled on their join fields, or of parts of one
+   * input with all of the other, returns the same tuples as a serial join.
+   */
+  @Test public void shuffledJoin() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sorted(run(new HashEquiJoin(p, scan(big), scan(small))));
+    assertTrue(expected.size() > 0);
+
+    Shuffle[] in1 = Shuffle.hash(Exchange.split(scan(big), 3), 0, 4);
+    Shuffle[] in2 = Shuffle.hash(new DbIterator[] { scan(small) }, 0, 4);
+    DbIterator[] joins = new DbIterator[4];
+    for (int i = 0; i < 4; i++)
+      joins[i] = new HashEquiJoin(p, in1[i], in2[i]);
+    Gather g = new Gather(joins);
+    g.open();
+    assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.drain(g)));
+    // the fragments are all closed and opened again, so the shuffles
+    // start over
+    g.rewind();
+    assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.drain(g)));
+    g.close();
+
+    DbIterator[] parts = Exchange.split(scan(big), 4);
+    Shuffle[] all = Shuffle.broadcast(new DbIterator[] { scan(small) }, 4);
+    for (int i = 0; i < 4; i++)
+      joins[i] = new HashEquiJoin(p, parts[i], all[i]);
+    assertEquals(expected, SystemTestUtil.sorted(run(new Gather(joins))));
+  }
+
+  /**
+   * Partial aggregates of parts of the input, put together by a final
+   * aggregate, give the result of the aggregate over all of it.
+   */
+  @Test public void partialAggregates() throws Exception {
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX,
+        Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.AVG }) {
+      for (int gfield : new int[] { 0, Aggregator.NO_GROUPING }) {
+        Aggregate serial = new Aggregate(scan(big), 1, gfield, op);
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sorted(run(serial));
+        DbIterator[] parts = Exchange.split(scan(big), 4);
+        DbIterator[] partials = new DbIterator[parts.length];
+        for (int i = 0; i < parts.length; i++)
+          partials[i] = serial.partialOf(parts[i]);
+        Aggregate fin = serial.finalOf(new Gather(partials));
+        assertEquals(serial.getTupleDesc(), fin.getTupleDesc());
+        assertEquals(op + " " + gfield, expected, SystemTestUtil.sorted(run(fin)));
+      }
+    }
+  }
+
+  /**
+   * A merging Gather over sorted parts of the input returns all of it in
+   * order, ascending or descending.
+   */
+  @Test public void mergeSortedParts() throws Exception {
+    for (boolean asc : new boolean[] { true, false }) {
+      DbIterator[] parts = Exchange.split(scan(big), 4);
+      DbIterator[] runs = new DbIterator[parts.length];
+      for (int i = 0; i < parts.length; i++)
+        runs[i] = new OrderBy(1, asc, parts[i]);
+      Gather g = new Gather(runs, 1, asc);
+      assertTrue(g.isMerging());
+      ArrayList<ArrayList<Integer>> result = run(g);
+      assertEquals(tuples.size(), result.size());
+      for (int i = 1; i < result.size(); i++) {
+        int c = Integer.compare(result.get(i - 1).get(1), result.get(i).get(1));
+        assertTrue(asc ? c <= 0 : c >= 0);
+      }
+      assertEquals(SystemTestUtil.sorted(new ArrayList<ArrayList<Integer>>(tuples)), SystemTestUtil.sorted(result));
+    }
+  }
+
+  /**
+   * Closing a parallel plan before the end stops its workers, so the
+   * transaction can complete and the tables be read again.
+   */
+  @Test public void closeEarly() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    for (int n = 0; n < 5; n++) {
+      Shuffle[] in1 = Shuffle.hash(Exchange.split(scan(big), 2), 0, 3);
+      Shuffle[] in2 = Shuffle.hash(Exchange.split(scan(small), 2), 0, 3);
+      DbIterator[] joins = new DbIterator[3];
+      for (int i = 0; i < 3; i++)
+        joins[i] = new HashEquiJoin(p, in1[i], in2[i]);
+      Gather g = new Gather(joins);
+      g.open();
+      assertTrue(g.hasNext());
+      g.next();
+      g.close();
+    }
+    Database.getBufferPool().transactionComplete(tid);
+    tid = new TransactionId();
+    assertEquals(tuples.size(), run(scan(big)).size());
+  }
+
+  /**
+   * With several threads, the planner splits joins, aggregates and sorts
+   * over a big table into fragments, and the plan returns what a serial
+   * plan does, in columns of the same names.
+   */
+  @Test public void parallelPlan() throws Exception {
+    Database.getCatalog().addTable(big, "EXBIG");
+    Database.getCatalog().addTable(small, "EXSMALL");
+    TableStats.setTableStats("EXBIG", new TableStats(big.getId(), 1));
+    TableStats.setTableStats("EXSMALL", new TableStats(small.getId(), 1));
+    String[] queries = {
+        "SELECT * FROM EXBIG b, EXSMALL s WHERE b.c0 = s.c0 AND b.c1 < 300;",
+        "SELECT b.c0, AVG(b.c1) FROM EXBIG b GROUP BY b.c0;",
+        "SELECT s.c1, COUNT(b.c1) FROM EXBIG b, EXSMALL s WHERE b.c0 = s.c0 GROUP BY s.c1;",
+        "SELECT b.c1 FROM EXBIG b WHERE b.c0 < 100 ORDER BY b.c1;",
+        "SELECT b.c0, b.c1 FROM EXBIG b ORDER BY b.c1 DESC LIMIT 20;",
+    };
+    Parser parser = new Parser();
+    // plans are serial unless the caller asks for threads
+    assertEquals(1, parser.generateLogicalPlan(tid, queries[0]).getParallelism());
+    for (String q : queries) {
+      LogicalPlan lp = parser.generateLogicalPlan(tid, q);
+      lp.setParallelism(1);
+      DbIterator serial = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+      assertEquals(q, 1, scanParallelism(serial));
+      ArrayList<ArrayList<Integer>> expected = run(serial);
+      lp = parser.generateLogicalPlan(tid, q);
+      lp.setParallelism(4);
+      DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+      assertTrue(q, containsExchange(plan));
+      assertEquals(q, serial.getTupleDesc().toString(), plan.getTupleDesc().toString());
+      ArrayList<ArrayList<Integer>> result = run(plan);
+      if (q.contains("ORDER BY")) {
+        // ties may come in another order; the ordered column may not
+        int col = q.contains("LIMIT") ? 1 : 0;
+        for (int i = 0; i < result.size(); i++)
+          assertEquals(q, expected.get(i).get(col), result.get(i).get(col));
+        if (q.contains("LIMIT")) continue;
+      }
+      assertEquals(q, SystemTestUtil.sorted(expected), SystemTestUtil.sorted(result));
+    }
+  }
+
+  /** @return the most threads any SeqScan in the plan reads with */
+  private static int scanParallelism(DbIterator it) {
+    if (it instanceof SeqScan) return ((SeqScan) it).getParallelism();
+    int ans = 0;
+    if (it instanceof Operator)
+      for (DbIterator child : ((Operator) it).getChildren())
+        if (child != null) ans = Math.max(ans, scanParallelism(child));
+    return ans;
+  }
+
+  private static boolean containsExchange(DbIterator it) {
+    if (it instanceof Exchange) return true;
+    if (!(it instanceof Operator)) return false;
+    for (DbIterator child : ((Operator) it).getChildren())
+      if (child != null && containsExchange(child)) return true;
+    return false;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
@@ -0,0 +1,67 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FreeSpaceMapTest {
+
+  private File f;
+
+  @Before public void setUp() throws Exception {
+    f = File.createTempFile("fsm", "dat");
+    f.deleteOnExit();
+  }
+
+  /**
+   * Unit test for FreeSpaceMap.findPage(): the lowest page that may have a
+   * free slot is returned, and pages not looked at yet count as candidates.
+   */
+  @Test public void findPage() throws Exception {
+    FreeSpaceMap map = new FreeSpaceMap(f, 3);
+    assertEquals(0, map.findPage());
+    map.setFree(0, 0);
+    map.setFree(1, 0);
+    assertEquals(2, map.findPage());
+    map.setFree(2, 0);
+    assertEquals(-1, map.findPage());
+
+    map.setFree(1, 5);
+    assertEquals(1, map.findPage());
+    map.grow(5);
+    map.setFree(1, 0);
+    assertEquals(3, map.findPage());
+    assertEquals(FreeSpaceMap.UNKNOWN, map.getFree(4));
+  }
+
+  /**
+   * Persisted counts survive reloading the map; counts only set in memory
+   * and pages never written read back as unknown.
+   */
+  @Test public void persist() throws Exception {
+    FreeSpaceMap map = new FreeSpaceMap(f, 4);
+    map.persist(0, 0);
+    map.persist(2, 17);
+    map.setFree(1, 3);
+    map.close();
+
+    map = new FreeSpaceMap(f, 4);
+    assertEquals(0, map.getFree(0));
+    assertEquals(FreeSpaceMap.UNKNOWN, map.getFree(1));
+    assertEquals(17, map.getFree(2));
+    assertEquals(FreeSpaceMap.UNKNOWN, map.getFree(3));
+    assertEquals(1, map.findPage());
+    map.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+  }
+}
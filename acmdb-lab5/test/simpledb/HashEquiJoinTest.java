@@ -2,6 +2,7 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -130,6 +131,117 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
       validateJoin(1,10,1,30001);
   }
 
+  /**
+   * A join whose left side does not fit in its memory budget spills
+   * partitions to disk and still produces every match, also after a rewind.
+   */
+  @Test public void spillingJoin() throws Exception {
+    ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 20000, 5000, null, t1Tuples);
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 20000, 5000, null, t2Tuples);
+
+    HashMap<Integer, long[]> right = new HashMap<Integer, long[]>();
+    for (ArrayList<Integer> t : t2Tuples) {
+      long[] v = right.get(t.get(0));
+      if (v == null) right.put(t.get(0), v = new long[2]);
+      v[0]++;
+      v[1] += 3 * t.get(0) + 4 * t.get(1);
+    }
+    long[] expected = new long[2];
+    for (ArrayList<Integer> t : t1Tuples) {
+      long[] v = right.get(t.get(0));
+      if (v == null) continue;
+      expected[0] += v[0];
+      expected[1] += v[0] * (t.get(0) + 2 * t.get(1)) + v[1];
+    }
+
+    TransactionId tid = new TransactionId();
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+    op.setMemoryBudget(64 << 10);
+    op.open();
+    assertTrue(op.hasSpilled());
+    long[] actual = TestUtil.countAndSum(op);
+    assertEquals(expected[0], actual[0]);
+    assertEquals(expected[1], actual[1]);
+
+    op.rewind();
+    actual = TestUtil.countAndSum(op);
+    assertEquals(expected[0], actual[0]);
+    assertEquals(expected[1], actual[1]);
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A partition that cannot be split because all its rows have the same key
+   * is joined in memory once it has been partitioned a few times.
+   */
+  @Test public void spillingJoinOneKey() throws Exception {
+    HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
+    columnSpecification.put(0, 1);
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 5000, columnSpecification, null);
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, columnSpecification, null);
+
+    TransactionId tid = new TransactionId();
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+    op.setMemoryBudget(16 << 10);
+    op.open();
+    assertEquals(50000, TestUtil.countAndSum(op)[0]);
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A join pushes a filter of its left keys down into the scan under its
+   * right child, which then drops most rows without a match but none with
+   * one; the filter goes away when the join is closed.
+   */
+  @Test public void runtimeFilter() throws Exception {
+    ArrayList<ArrayList<Integer>> dimTuples = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> factTuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile dim = SystemTestUtil.createRandomHeapFile(COLUMNS, 1000, 5000, null, dimTuples);
+    HeapFile fact = SystemTestUtil.createRandomHeapFile(COLUMNS, 20000, 5000, null, factTuples);
+
+    HashMap<Integer, Integer> keys = new HashMap<Integer, Integer>();
+    for (ArrayList<Integer> t : dimTuples)
+      if (t.get(1) < 500) keys.put(t.get(0), keys.containsKey(t.get(0)) ? keys.get(t.get(0)) + 1 : 1);
+    int matching = 0;
+    long expected = 0;
+    for (ArrayList<Integer> t : factTuples) {
+      if (!keys.containsKey(t.get(0))) continue;
+      matching++;
+      expected += keys.get(t.get(0));
+    }
+
+    TransactionId tid = new TransactionId();
+    Predicate small = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500));
+    Predicate all = new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0));
+    SeqScan probe = new SeqScan(tid, fact.getId(), "");
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new Filter(small, new SeqScan(tid, dim.getId(), "")), new Filter(all, probe));
+    op.open();
+    assertNotNull(op.getRuntimeFilter());
+    int passed = 0;
+    TupleBatch b;
+    while ((b = probe.nextBatch()) != null) passed += b.numSelected();
+    assertTrue(passed >= matching);
+    assertTrue(passed < factTuples.size() / 5);
+
+    op.rewind();
+    assertEquals(expected, TestUtil.countAndSum(op)[0]);
+    op.close();
+    assertNull(op.getRuntimeFilter());
+    probe.open();
+    passed = 0;
+    while ((b = probe.nextBatch()) != null) passed += b.numSelected();
+    assertEquals(factTuples.size(), passed);
+    probe.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
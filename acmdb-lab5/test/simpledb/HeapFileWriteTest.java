@@ -43,6 +43,40 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for the free space map: a slot freed by a delete is reused
+     * by the next insert instead of the last page.
+     */
+    @Test public void reuseFreedSlot() throws Exception {
+        for (int i = 0; i < 2 * 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+
+        HeapPage p0 = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+        Tuple victim = p0.iterator().next();
+        empty.deleteTuple(tid, victim);
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.numPages(): the count kept in memory follows
+     * the page an insert appends, and agrees with the file on disk.
+     */
+    @Test public void numPagesAfterAppend() throws Exception {
+        for (int i = 0; i < 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(1, empty.numPages());
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(2, empty.numPages());
+        assertEquals(2L * BufferPool.getPageSize(), empty.getFile().length());
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(2, reopened.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,32 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for the (slot, column) accessors, which decode fields
+     * without building tuples.
+     */
+    @Test public void fieldAccessors() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int i = 0; i < EXAMPLE_VALUES.length; ++i) {
+            assertEquals(EXAMPLE_VALUES[i][0], page.getInt(i, 0));
+            assertEquals(EXAMPLE_VALUES[i][1], page.getInt(i, 1));
+            assertEquals(new IntField(EXAMPLE_VALUES[i][1]), page.getField(i, 1));
+            assertEquals(new RecordId(pid, i), page.getTuple(i).getRecordId());
+        }
+    }
+
+    /**
+     * The page works on its own copy of the data it was built from, and
+     * serializes back to the same bytes.
+     */
+    @Test public void pageDataRoundTrip() throws Exception {
+        byte[] data = EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, data);
+        data[0] = 0;
+        assertTrue(page.isSlotUsed(0));
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  private TransactionId tid;
+  private BTreeFile tree;
+  private HeapFile outer;
+
+  @Before public void setUp() throws Exception {
+    tid = new TransactionId();
+    tree = BTreeUtility.createRandomBTreeFile(2, 5000, 2000, null, null, 0);
+    outer = SystemTestUtil.createRandomHeapFile(2, 40, 2000, null, null);
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private DbIterator inner(boolean filtered) {
+    DbIterator scan = new SeqScan(tid, tree.getId(), "t2");
+    if (!filtered) return scan;
+    return new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1000)), scan);
+  }
+
+  /**
+   * Lookups in the inner tree find the same tuples as a nested loops join
+   * over a scan of it, with and without filters on the inner side, also
+   * after a rewind.
+   */
+  @Test public void matchesNestedLoops() throws Exception {
+    Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+        Predicate.Op.GREATER_THAN_OR_EQ };
+    for (Predicate.Op op : ops) {
+      for (boolean filtered : new boolean[] { false, true }) {
+        JoinPredicate pred = new JoinPredicate(0, op, 0);
+        Join nl = new Join(pred, new SeqScan(tid, outer.getId(), "t1"), inner(filtered));
+        nl.open();
+        long[] expected = TestUtil.countAndSum(nl);
+        nl.close();
+        assertTrue(expected[0] > 0);
+
+        IndexNestedLoopJoin inl = new IndexNestedLoopJoin(pred,
+            new SeqScan(tid, outer.getId(), "t1"), inner(filtered));
+        assertEquals(nl.getTupleDesc(), inl.getTupleDesc());
+        inl.open();
+        long[] actual = TestUtil.countAndSum(inl);
+        assertEquals(expected[0], actual[0]);
+        assertEquals(expected[1], actual[1]);
+        inl.rewind();
+        actual = TestUtil.countAndSum(inl);
+        assertEquals(expected[0], actual[0]);
+        assertEquals(expected[1], actual[1]);
+        inl.close();
+      }
+    }
+  }
+
+  /**
+   * Predicates pushed down into the inner scan are applied to the tuples
+   * a lookup returns, as the scan would apply them.
+   */
+  @Test public void pushedPredicates() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    Join nl = new Join(pred, new SeqScan(tid, outer.getId(), "t1"), inner(true));
+    nl.open();
+    long[] expected = TestUtil.countAndSum(nl);
+    nl.close();
+
+    SeqScan scan = new SeqScan(tid, tree.getId(), "t2");
+    scan.addPredicate(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1000)));
+    IndexNestedLoopJoin inl = new IndexNestedLoopJoin(pred, new SeqScan(tid, outer.getId(), "t1"), scan);
+    inl.open();
+    long[] actual = TestUtil.countAndSum(inl);
+    inl.close();
+    assertEquals(expected[0], actual[0]);
+    assertEquals(expected[1], actual[1]);
+  }
+
+  /**
+   * Only scans of a B+ tree keyed on the join field can be looked up in.
+   */
+  @Test public void indexOf() throws Exception {
+    assertEquals(tree, IndexNestedLoopJoin.indexOf(inner(true), 0));
+    assertNull(IndexNestedLoopJoin.indexOf(inner(false), 1));
+    assertNull(IndexNestedLoopJoin.indexOf(new SeqScan(tid, outer.getId(), "t1"), 0));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
@@ -0,0 +1,82 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class JoinHashTableTest {
+
+  /**
+   * Unit test for an int keyed table: every row is found under its key, in
+   * the order it was added, also after the index has grown.
+   */
+  @Test public void intKeys() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(2);
+    JoinHashTable table = new JoinHashTable(td, 0);
+    TupleBatch b = new TupleBatch(td, 100);
+    for (int n = 0; n < 30; n++) {
+      b.clear();
+      for (int i = 0; i < 100; i++) {
+        int row = b.addRow();
+        b.setInt(0, row, (n * 100 + i) % 1000);
+        b.setInt(1, row, n * 100 + i);
+      }
+      table.add(b);
+    }
+    assertEquals(3000, table.size());
+
+    TupleBatch probe = new TupleBatch(td, 1);
+    TupleBatch out = new TupleBatch(td, 1);
+    for (int key = 0; key < 1000; key++) {
+      probe.clear();
+      probe.setInt(0, probe.addRow(), key);
+      int expected = key;
+      for (int row = table.find(probe, 0, 0); row >= 0; row = table.next(row)) {
+        out.clear();
+        table.copyRow(row, out, out.addRow(), 0);
+        assertEquals(key, out.getInt(0, 0));
+        assertEquals(expected, out.getInt(1, 0));
+        expected += 1000;
+      }
+      assertEquals(key + 3000, expected);
+    }
+    probe.setInt(0, 0, 1000);
+    assertEquals(-1, table.find(probe, 0, 0));
+  }
+
+  /**
+   * Unit test for a string keyed table.
+   */
+  @Test public void stringKeys() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+    JoinHashTable table = new JoinHashTable(td, 0);
+    TupleBatch b = new TupleBatch(td, 500);
+    for (int i = 0; i < 500; i++) {
+      int row = b.addRow();
+      b.setString(0, row, "key" + (i % 200));
+      b.setInt(1, row, i);
+    }
+    table.add(b);
+
+    TupleBatch probe = new TupleBatch(td, 1);
+    probe.addRow();
+    probe.setString(0, 0, "key7");
+    TupleBatch out = new TupleBatch(td, 3);
+    for (int row = table.find(probe, 0, 0); row >= 0; row = table.next(row))
+      table.copyRow(row, out, out.addRow(), 0);
+    assertEquals(3, out.size());
+    assertEquals("key7", out.getString(0, 2));
+    assertEquals(407, out.getInt(1, 2));
+
+    probe.setString(0, 0, "nokey");
+    assertEquals(-1, table.find(probe, 0, 0));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(JoinHashTableTest.class);
+  }
+}
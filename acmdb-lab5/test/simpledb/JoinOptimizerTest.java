@@ -621,4 +621,98 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * @return a B+ tree keyed on its first column, with columns named as
+     *         those of SystemTestUtil.createRandomHeapFile, in the catalog
+     *         under the given name
+     */
+    private static BTreeFile createNamedBTreeFile(int rows, String name)
+            throws IOException, DbException, TransactionAbortedException {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+        bf = new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(bf, name);
+        return bf;
+    }
+
+    /**
+     * An equality join looks tuples up in an index on its inner table only
+     * if that is cheaper than hashing the whole table: for few outer
+     * tuples, but not for many.
+     */
+    @Test
+    public void indexLookupTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int IO_COST = 103;
+        TransactionId tid = new TransactionId();
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 10, 1000, null, null, "c");
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, null, "c");
+        BTreeFile index = createNamedBTreeFile(20000, "ix");
+        Database.getCatalog().addTable(small, "small");
+        Database.getCatalog().addTable(big, "big");
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        LogicalPlan lp = new LogicalPlan();
+        for (String name : new String[] { "small", "big", "ix" }) {
+            int id = Database.getCatalog().getTableId(name);
+            stats.put(name, new TableStats(id, IO_COST));
+            filterSelectivities.put(name, 1.0);
+            lp.addScan(id, name);
+        }
+
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("small", "ix", "c0", "c0", Predicate.Op.EQUALS));
+        LogicalJoinNode lj = new JoinOptimizer(lp, nodes).orderJoins(stats,
+                filterSelectivities, false).get(0);
+        Assert.assertTrue(lj.indexLookup);
+        Assert.assertEquals("ix", lj.t2Alias);
+        DbIterator j = JoinOptimizer.instantiateJoin(lj,
+                new SeqScan(tid, small.getId(), "small"),
+                new SeqScan(tid, index.getId(), "ix"));
+        Assert.assertTrue(j instanceof IndexNestedLoopJoin);
+
+        nodes.clear();
+        nodes.add(new LogicalJoinNode("big", "ix", "c0", "c0", Predicate.Op.EQUALS));
+        lj = new JoinOptimizer(lp, nodes).orderJoins(stats,
+                filterSelectivities, false).get(0);
+        Assert.assertFalse(lj.indexLookup);
+        SeqScan ixScan = new SeqScan(tid, index.getId(), "ix");
+        SeqScan bigScan = new SeqScan(tid, big.getId(), "big");
+        j = lj.t1Alias.equals("big")
+                ? JoinOptimizer.instantiateJoin(lj, bigScan, ixScan)
+                : JoinOptimizer.instantiateJoin(lj, ixScan, bigScan);
+        Assert.assertTrue(j instanceof Join);
+    }
+
+    /**
+     * An equality join of two tables in the order of their join fields is
+     * costed, and run, as a merge that reads each table once.
+     */
+    @Test
+    public void sortedMergeCostTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        TransactionId tid = new TransactionId();
+        BTreeFile left = createNamedBTreeFile(5000, "ileft");
+        BTreeFile right = createNamedBTreeFile(5000, "iright");
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(left.getId(), "ileft");
+        lp.addScan(right.getId(), "iright");
+        JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+
+        LogicalJoinNode sorted = new LogicalJoinNode("ileft", "iright", "c0", "c0",
+                Predicate.Op.EQUALS);
+        Assert.assertEquals(100.0 + 200.0 + 1000,
+                jo.estimateJoinCost(sorted, 1000, 2000, 100.0, 200.0), 0.001);
+        // on another field of one side, the join hashes
+        LogicalJoinNode unsorted = new LogicalJoinNode("ileft", "iright", "c1", "c0",
+                Predicate.Op.EQUALS);
+        Assert.assertTrue(jo.estimateJoinCost(unsorted, 1000, 2000, 100.0, 200.0)
+                > 100.0 + 200.0 + 1000);
+
+        DbIterator j = JoinOptimizer.instantiateJoin(sorted,
+                new SeqScan(tid, left.getId(), "ileft"),
+                new SeqScan(tid, right.getId(), "iright"));
+        Assert.assertTrue(j instanceof SortMergeJoin);
+    }
 }
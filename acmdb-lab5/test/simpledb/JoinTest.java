@@ -5,6 +5,8 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import java.util.ArrayList;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -105,6 +107,92 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * A nested loops join scans its inner input once per block of outer
+   * tuples, and still finds every match across blocks and after a rewind.
+   */
+  @Test public void blockNestedLoops() throws Exception {
+    int outerRows = 1500;
+    int[] outerData = new int[outerRows * width1];
+    for (int i = 0; i < outerData.length; i++) outerData[i] = i % 10;
+    int[] innerData = new int[20 * width2];
+    for (int i = 0; i < innerData.length; i++) innerData[i] = i % 7;
+    ArrayList<Tuple> innerTuples = new ArrayList<Tuple>();
+    DbIterator it = TestUtil.createTupleList(width2, innerData);
+    while (it.hasNext()) innerTuples.add(it.next());
+    final int[] scans = new int[1];
+    DbIterator inner = new TupleIterator(Utility.getTupleDesc(width2), innerTuples) {
+      private static final long serialVersionUID = 1L;
+      public void rewind() {
+        scans[0]++;
+        super.rewind();
+      }
+    };
+
+    int expected = 0;
+    for (int i = 0; i < outerRows; i++)
+      for (int j = 0; j < 20; j++)
+        if (outerData[i * width1] != innerData[j * width2]) expected++;
+
+    Join op = new Join(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+        TestUtil.createTupleList(width1, outerData), inner);
+    op.setBlockPages(1);
+    int blockSize = Join.tuplesPerBlock(Utility.getTupleDesc(width1), 1);
+    int blocks = (outerRows + blockSize - 1) / blockSize;
+    assertTrue(blocks > 1);
+
+    op.open();
+    int cnt = 0;
+    while (op.hasNext()) { op.next(); cnt++; }
+    assertEquals(expected, cnt);
+    assertEquals(blocks, scans[0]);
+
+    op.rewind();
+    for (cnt = 0; op.hasNext(); cnt++) op.next();
+    assertEquals(expected, cnt);
+    op.close();
+  }
+
+  /**
+   * An equality join leaves its children to the HashEquiJoin it hands
+   * the work to, so each of them is opened and rewound once.
+   */
+  @Test public void equalityOpensChildrenOnce() throws Exception {
+    final int[] opens = new int[2];
+    final int[] rewinds = new int[2];
+    DbIterator[] children = new DbIterator[2];
+    for (int i = 0; i < 2; i++) {
+      final int c = i;
+      DbIterator it = i == 0 ? scan1 : scan2;
+      ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+      while (it.hasNext()) tuples.add(it.next());
+      children[i] = new TupleIterator(it.getTupleDesc(), tuples) {
+        private static final long serialVersionUID = 1L;
+        public void open() {
+          opens[c]++;
+          super.open();
+        }
+        public void rewind() {
+          rewinds[c]++;
+          super.rewind();
+        }
+      };
+    }
+    Join op = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0), children[0], children[1]);
+    op.open();
+    int cnt = 0;
+    while (op.hasNext()) { op.next(); cnt++; }
+    assertEquals(3, cnt);
+    assertEquals(1, opens[0]);
+    assertEquals(1, opens[1]);
+    op.rewind();
+    for (cnt = 0; op.hasNext(); cnt++) op.next();
+    assertEquals(3, cnt);
+    assertEquals(1, rewinds[0]);
+    assertEquals(1, rewinds[1]);
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
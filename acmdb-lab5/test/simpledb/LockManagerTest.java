@@ -0,0 +1,339 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockManagerTest {
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  private LockManager lm;
+  private PageId p0, p1, p2;
+
+  @Before public void setUp() {
+    lm = new LockManager();
+    p0 = new HeapPageId(0, 0);
+    p1 = new HeapPageId(0, 1);
+    p2 = new HeapPageId(0, 2);
+  }
+
+  /** Acquires one lock in its own thread. */
+  private class Acquirer extends Thread {
+    final TransactionId tid;
+    final PageId pid;
+    final Permissions perm;
+    volatile boolean acquired;
+    volatile Exception error;
+
+    Acquirer(TransactionId tid, PageId pid, Permissions perm) {
+      this.tid = tid;
+      this.pid = pid;
+      this.perm = perm;
+      start();
+    }
+
+    public void run() {
+      try {
+        lm.acquire(tid, pid, perm);
+        acquired = true;
+      } catch (Exception e) {
+        error = e;
+      }
+    }
+  }
+
+  /**
+   * Unit test for blocking: a writer waits until the reader releases the
+   * page and is then woken up, without any timeout.
+   */
+  @Test public void wakeUpOnRelease() throws Exception {
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    lm.acquire(t1, p0, Permissions.READ_ONLY);
+    Acquirer a = new Acquirer(t2, p0, Permissions.READ_WRITE);
+    a.join(TIMEOUT);
+    assertFalse(a.acquired);
+
+    lm.releaseAll(t1);
+    a.join(TIMEOUT);
+    assertTrue(a.acquired);
+  }
+
+  /**
+   * Unit test for deadlock detection: with the YOUNGEST policy the
+   * transaction that started last is aborted, as soon as the cycle forms.
+   */
+  @Test public void youngestVictim() throws Exception {
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    lm.acquire(t1, p0, Permissions.READ_WRITE);
+    lm.acquire(t2, p1, Permissions.READ_WRITE);
+    Acquirer a1 = new Acquirer(t1, p1, Permissions.READ_WRITE);
+    a1.join(TIMEOUT);
+    Acquirer a2 = new Acquirer(t2, p0, Permissions.READ_WRITE);
+    a2.join(TIMEOUT);
+
+    assertTrue(a2.error instanceof TransactionAbortedException);
+    assertFalse(a1.acquired);
+    lm.releaseAll(t2);
+    a1.join(TIMEOUT);
+    assertTrue(a1.acquired);
+    assertNull(a1.error);
+  }
+
+  /**
+   * Unit test for the FEWEST_LOCKS policy: the older transaction is aborted
+   * if it holds fewer locks, even though it was not the one closing the cycle.
+   */
+  @Test public void fewestLocksVictim() throws Exception {
+    lm.setVictimPolicy(LockManager.VictimPolicy.FEWEST_LOCKS);
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    lm.acquire(t1, p0, Permissions.READ_WRITE);
+    lm.acquire(t2, p1, Permissions.READ_WRITE);
+    lm.acquire(t2, p2, Permissions.READ_ONLY);
+    Acquirer a1 = new Acquirer(t1, p1, Permissions.READ_WRITE);
+    a1.join(TIMEOUT);
+    Acquirer a2 = new Acquirer(t2, p0, Permissions.READ_WRITE);
+    a1.join(TIMEOUT);
+
+    assertTrue(a1.error instanceof TransactionAbortedException);
+    assertFalse(a2.acquired);
+    lm.releaseAll(t1);
+    a2.join(TIMEOUT);
+    assertTrue(a2.acquired);
+  }
+
+  /**
+   * Unit test for two readers upgrading the same page: one of them is
+   * aborted and the other one gets the exclusive lock.
+   */
+  @Test public void upgradeDeadlock() throws Exception {
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    lm.acquire(t1, p0, Permissions.READ_ONLY);
+    lm.acquire(t2, p0, Permissions.READ_ONLY);
+    Acquirer a1 = new Acquirer(t1, p0, Permissions.READ_WRITE);
+    a1.join(TIMEOUT);
+    Acquirer a2 = new Acquirer(t2, p0, Permissions.READ_WRITE);
+    a2.join(TIMEOUT);
+
+    assertTrue(a2.error instanceof TransactionAbortedException);
+    lm.releaseAll(t2);
+    a1.join(TIMEOUT);
+    assertTrue(a1.acquired);
+  }
+
+  /**
+   * Unit test for three readers upgrading the same page: aborting a single
+   * victim is not enough, every cycle has to be broken before one of them
+   * gets the exclusive lock.
+   */
+  @Test public void threeWayUpgradeDeadlock() throws Exception {
+    TransactionId[] t = { new TransactionId(), new TransactionId(), new TransactionId() };
+    Acquirer[] a = new Acquirer[t.length];
+    for (int i = 0; i < t.length; i++)
+      lm.acquire(t[i], p0, Permissions.READ_ONLY);
+    for (int i = 0; i < t.length; i++) {
+      a[i] = new Acquirer(t[i], p0, Permissions.READ_WRITE);
+      a[i].join(TIMEOUT);
+    }
+    for (int i = 0; i < t.length; i++) {
+      if (a[i].error != null)
+        lm.releaseAll(t[i]);
+    }
+    a[0].join(TIMEOUT);
+    assertTrue(a[0].acquired);
+    assertTrue(a[1].error instanceof TransactionAbortedException);
+    assertTrue(a[2].error instanceof TransactionAbortedException);
+  }
+
+  /**
+   * Unit test for the FIFO queue: a reader arriving after a queued writer
+   * waits behind it instead of joining the readers that hold the page, and
+   * gets its lock once the writer is done.
+   */
+  @Test public void writerNotStarved() throws Exception {
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    TransactionId t3 = new TransactionId();
+    lm.acquire(t1, p0, Permissions.READ_ONLY);
+    Acquirer writer = new Acquirer(t2, p0, Permissions.READ_WRITE);
+    writer.join(TIMEOUT);
+    Acquirer reader = new Acquirer(t3, p0, Permissions.READ_ONLY);
+    reader.join(TIMEOUT);
+    assertFalse(writer.acquired);
+    assertFalse(reader.acquired);
+
+    lm.releaseAll(t1);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired);
+    reader.join(TIMEOUT);
+    assertFalse(reader.acquired);
+
+    lm.releaseAll(t2);
+    reader.join(TIMEOUT);
+    assertTrue(reader.acquired);
+  }
+
+  /**
+   * Unit test for the upgrade slot: a reader upgrading its lock is served
+   * before a writer that was queued first.
+   */
+  @Test public void upgradeBeforeQueue() throws Exception {
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    TransactionId t3 = new TransactionId();
+    lm.acquire(t1, p0, Permissions.READ_ONLY);
+    lm.acquire(t2, p0, Permissions.READ_ONLY);
+    Acquirer writer = new Acquirer(t3, p0, Permissions.READ_WRITE);
+    writer.join(TIMEOUT);
+    Acquirer upgrade = new Acquirer(t1, p0, Permissions.READ_WRITE);
+    upgrade.join(TIMEOUT);
+    assertFalse(upgrade.acquired);
+
+    lm.releaseAll(t2);
+    upgrade.join(TIMEOUT);
+    assertTrue(upgrade.acquired);
+    assertFalse(writer.acquired);
+
+    lm.releaseAll(t1);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired);
+    assertNull(writer.error);
+  }
+
+  /**
+   * Unit test for intention locks: a reader holding the whole table blocks
+   * a writer of any of its pages, but not a reader of one.
+   */
+  @Test public void tableLockBlocksPageWriter() throws Exception {
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    TransactionId t3 = new TransactionId();
+    lm.acquireTable(t1, 0, LockManager.LockMode.S);
+    assertEquals(Permissions.READ_ONLY, lm.getPermissions(t1, p1));
+    lm.acquire(t2, p0, Permissions.READ_ONLY);
+    assertEquals(LockManager.LockMode.IS, lm.getTableMode(t2, 0));
+    Acquirer writer = new Acquirer(t3, p2, Permissions.READ_WRITE);
+    writer.join(TIMEOUT);
+    assertFalse(writer.acquired);
+
+    lm.releaseAll(t1);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired);
+    assertEquals(LockManager.LockMode.IX, lm.getTableMode(t3, 0));
+  }
+
+  /**
+   * Unit test for lock escalation: past the threshold, a reader's page
+   * locks are replaced by a shared lock on the table, and a writer's by an
+   * exclusive one.
+   */
+  @Test public void escalation() throws Exception {
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    lm.setEscalationThreshold(10);
+    for (int i = 0; i < 10; i++)
+      lm.acquire(t1, new HeapPageId(1, i), Permissions.READ_ONLY);
+    assertEquals(11, lm.numLocks(t1));
+    lm.acquire(t1, new HeapPageId(1, 10), Permissions.READ_ONLY);
+    assertEquals(LockManager.LockMode.S, lm.getTableMode(t1, 1));
+    assertEquals(1, lm.numLocks(t1));
+    lm.acquire(t1, new HeapPageId(1, 100), Permissions.READ_ONLY);
+    assertEquals(1, lm.numLocks(t1));
+
+    for (int i = 0; i < 11; i++)
+      lm.acquire(t2, new HeapPageId(2, i), i == 0 ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+    assertEquals(LockManager.LockMode.X, lm.getTableMode(t2, 2));
+    assertEquals(1, lm.numLocks(t2));
+    assertEquals(Permissions.READ_WRITE, lm.getPermissions(t2, new HeapPageId(2, 50)));
+  }
+
+  /**
+   * Escalation does not wait: while another transaction writes a page of
+   * the table, the reader keeps its page locks.
+   */
+  @Test public void escalationNeverBlocks() throws Exception {
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    lm.setEscalationThreshold(10);
+    lm.acquire(t2, new HeapPageId(1, 100), Permissions.READ_WRITE);
+    for (int i = 0; i < 11; i++)
+      lm.acquire(t1, new HeapPageId(1, i), Permissions.READ_ONLY);
+    assertEquals(LockManager.LockMode.IS, lm.getTableMode(t1, 1));
+    assertEquals(12, lm.numLocks(t1));
+
+    // the next attempt comes after another threshold's worth of pages
+    lm.releaseAll(t2);
+    for (int i = 11; i < 20; i++)
+      lm.acquire(t1, new HeapPageId(1, i), Permissions.READ_ONLY);
+    assertEquals(LockManager.LockMode.IS, lm.getTableMode(t1, 1));
+    lm.acquire(t1, new HeapPageId(1, 20), Permissions.READ_ONLY);
+    assertEquals(LockManager.LockMode.S, lm.getTableMode(t1, 1));
+    assertEquals(1, lm.numLocks(t1));
+  }
+
+  /**
+   * Releasing page locks that escalation already dropped, or all locks of
+   * a transaction twice, does nothing, and leaves the table free for the
+   * next writer once the transaction is done.
+   */
+  @Test public void releaseAfterEscalation() throws Exception {
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    lm.setEscalationThreshold(10);
+    for (int i = 0; i < 11; i++)
+      lm.acquire(t1, new HeapPageId(1, i), Permissions.READ_ONLY);
+    assertEquals(LockManager.LockMode.S, lm.getTableMode(t1, 1));
+    for (int i = 0; i < 11; i++)
+      lm.release(t1, new HeapPageId(1, i));
+    assertEquals(LockManager.LockMode.S, lm.getTableMode(t1, 1));
+    assertEquals(Permissions.READ_ONLY, lm.getPermissions(t1, new HeapPageId(1, 3)));
+
+    lm.releaseAll(t1);
+    lm.releaseAll(t1);
+    lm.release(t1, new HeapPageId(1, 3));
+    assertEquals(0, lm.numLocks(t1));
+    Acquirer a = new Acquirer(t2, new HeapPageId(1, 3), Permissions.READ_WRITE);
+    a.join(TIMEOUT);
+    assertTrue(a.acquired);
+  }
+
+  /**
+   * Unit test for the lock table bookkeeping: a transaction holding many
+   * locks releases all of them at once.
+   */
+  @Test public void releaseManyLocks() throws Exception {
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    int n = 100000;
+    lm.setEscalationThreshold(0);
+    for (int i = 0; i < n; i++)
+      lm.acquire(t1, new HeapPageId(1, i), i % 2 == 0 ? Permissions.READ_ONLY : Permissions.READ_WRITE);
+    // the page locks and the intention lock on their table
+    assertEquals(n + 1, lm.numLocks(t1));
+    assertEquals(Permissions.READ_WRITE, lm.getPermissions(t1, new HeapPageId(1, 1)));
+
+    lm.releaseAll(t1);
+    assertEquals(0, lm.numLocks(t1));
+    assertNull(lm.getPermissions(t1, new HeapPageId(1, 1)));
+    Acquirer a = new Acquirer(t2, new HeapPageId(1, n - 1), Permissions.READ_WRITE);
+    a.join(TIMEOUT);
+    assertTrue(a.acquired);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockManagerTest.class);
+  }
+}
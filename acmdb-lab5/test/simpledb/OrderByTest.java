@@ -0,0 +1,76 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OrderByTest {
+
+  /**
+   * Checks that it returns rows tuples, ordered on field 0, and returns the
+   * sum of their fields.
+   */
+  private static long checkSorted(DbIterator it, int rows, boolean asc) throws Exception {
+    long sum = 0;
+    int n = 0;
+    int last = asc ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      assertTrue(asc ? key >= last : key <= last);
+      last = key;
+      sum += key + 31 * ((IntField) t.getField(1)).getValue();
+      n++;
+    }
+    assertEquals(rows, n);
+    return sum;
+  }
+
+  /**
+   * A sort that fits in memory does not spill.
+   */
+  @Test public void inMemory() throws Exception {
+    OrderBy op = new OrderBy(0, true, TestUtil.randomTuples(new Random(7), 5000, 2, 1000));
+    op.open();
+    assertFalse(op.hasSpilled());
+    long sum = checkSorted(op, 5000, true);
+    op.rewind();
+    assertEquals(sum, checkSorted(op, 5000, true));
+    op.close();
+  }
+
+  /**
+   * A sort over its memory budget writes sorted runs and merges them, in
+   * several passes when there are too many, with the same result as an in
+   * memory sort, also after a rewind.
+   */
+  @Test public void external() throws Exception {
+    for (boolean asc : new boolean[] { true, false }) {
+      OrderBy expected = new OrderBy(0, asc, TestUtil.randomTuples(new Random(7), 20000, 2, 1000));
+      expected.open();
+      long sum = checkSorted(expected, 20000, asc);
+      expected.close();
+
+      OrderBy op = new OrderBy(0, asc, TestUtil.randomTuples(new Random(7), 20000, 2, 1000));
+      op.setMemoryBudget(64 << 10);
+      op.open();
+      assertTrue(op.hasSpilled());
+      assertEquals(sum, checkSorted(op, 20000, asc));
+      op.rewind();
+      assertEquals(sum, checkSorted(op, 20000, asc));
+      op.close();
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
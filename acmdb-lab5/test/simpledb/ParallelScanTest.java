@@ -0,0 +1,116 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelScanTest extends SimpleDbTestBase {
+
+  private TransactionId tid;
+  private HeapFile f;
+  private ArrayList<ArrayList<Integer>> tuples;
+
+  @Before public void setUp() throws Exception {
+    tid = new TransactionId();
+    tuples = new ArrayList<ArrayList<Integer>>();
+    f = SystemTestUtil.createRandomHeapFile(2, 30000, 1000, null, tuples);
+    assertTrue(f.numPages() > 2 * ParallelScan.MORSEL_PAGES);
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A scan with several threads returns the same tuples as one with a
+   * single thread, also after a rewind.
+   */
+  @Test public void matchesSerialScan() throws Exception {
+    SeqScan scan = new SeqScan(tid, f.getId(), "t");
+    scan.setParallelism(4);
+    assertEquals(4, scan.getParallelism());
+    scan.open();
+    ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sorted(new ArrayList<ArrayList<Integer>>(tuples));
+    assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.drain(scan)));
+    scan.rewind();
+    assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.drain(scan)));
+    scan.close();
+  }
+
+  /**
+   * Predicates pushed down into a scan drop the same tuples a Filter
+   * would, with one thread and with several.
+   */
+  @Test public void pushedPredicates() throws Exception {
+    Predicate lo = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(100));
+    Predicate hi = new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(300));
+    DbIterator filter = new Filter(hi, new Filter(lo, new SeqScan(tid, f.getId(), "t")));
+    filter.open();
+    ArrayList<ArrayList<Integer>> expected = SystemTestUtil.sorted(SystemTestUtil.drain(filter));
+    filter.close();
+    assertTrue(expected.size() > 0);
+
+    for (int threads : new int[] { 1, 3 }) {
+      SeqScan scan = new SeqScan(tid, f.getId(), "t");
+      scan.addPredicate(lo);
+      scan.addPredicate(hi);
+      scan.setParallelism(threads);
+      scan.open();
+      assertEquals(expected, SystemTestUtil.sorted(SystemTestUtil.drain(scan)));
+      int n = 0;
+      scan.rewind();
+      BatchIterator in = scan;
+      TupleBatch b;
+      while ((b = in.nextBatch()) != null) n += b.numSelected();
+      assertEquals(expected.size(), n);
+      scan.close();
+    }
+  }
+
+  /**
+   * A predicate that compares a field to a value of another type cannot
+   * be pushed down into a scan.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void mistypedPredicate() throws Exception {
+    SeqScan scan = new SeqScan(tid, f.getId(), "t");
+    scan.addPredicate(new Predicate(0, Predicate.Op.EQUALS, new StringField("1", Type.STRING_LEN)));
+  }
+
+  /**
+   * Closing a parallel scan before the end stops its workers, so the
+   * transaction can complete and the table be scanned again.
+   */
+  @Test public void closeEarly() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      SeqScan scan = new SeqScan(tid, f.getId(), "t");
+      scan.setParallelism(4);
+      scan.open();
+      assertTrue(scan.hasNext());
+      scan.next();
+      scan.close();
+    }
+    Database.getBufferPool().transactionComplete(tid);
+    tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId(), "t");
+    scan.open();
+    assertEquals(tuples.size(), SystemTestUtil.drain(scan).size());
+    scan.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelScanTest.class);
+  }
+}
@@ -3,10 +3,14 @@ package simpledb;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import junit.framework.JUnit4TestAdapter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
 public class PredicateTest extends SimpleDbTestBase{
 
   /**
@@ -55,6 +59,39 @@ public class PredicateTest extends SimpleDbTestBase{
     }
   }
 
+  private static byte[] encode(Field f) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    f.serialize(new DataOutputStream(out));
+    return out.toByteArray();
+  }
+
+  /**
+   * Evaluated on the encoding of a field, as a scan does on a page, a
+   * predicate gives the same result as on the field decoded from it.
+   */
+  @Test public void filterEncoded() throws Exception {
+    int[] ints = new int[] { Integer.MIN_VALUE, -1, 0, 1, 7, Integer.MAX_VALUE };
+    String[] strings = new String[] { "", "a", "ab", "abc", "b", "B", "zz", "\u00e9t\u00e9", "t\u00e9" };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int v : ints) {
+        Predicate p = new Predicate(0, op, new IntField(v));
+        for (int x : ints) {
+          Field f = new IntField(x);
+          assertEquals(op + " " + x + " " + v, f.compare(op, p.getOperand()), p.filter(encode(f), 0));
+        }
+      }
+      for (String v : strings) {
+        Predicate p = new Predicate(0, op, new StringField(v, Type.STRING_LEN));
+        for (String x : strings) {
+          byte[] b = encode(new StringField(x, Type.STRING_LEN));
+          // what a page decodes, which differs from x if it is not ASCII
+          Field f = new StringField(new String(b, 4, x.length()), Type.STRING_LEN);
+          assertEquals(op + " " + x + " " + v, f.compare(op, p.getOperand()), p.filter(b, 0));
+        }
+      }
+    }
+  }
+
   /**
    * JUnit suite target
    */
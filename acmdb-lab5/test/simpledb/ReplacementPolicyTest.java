@@ -0,0 +1,174 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReplacementPolicyTest extends TestUtil.CreateHeapFile {
+
+  private static final ReplacementPolicy.Evictable ANY = new ReplacementPolicy.Evictable() {
+    public boolean canEvict(PageId pid) {
+      return true;
+    }
+  };
+
+  private PageId[] p;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    p = new PageId[8];
+    for (int i = 0; i < p.length; i++)
+      p[i] = new HeapPageId(1, i);
+  }
+
+  private static void access(ReplacementPolicy policy, PageId... pids) {
+    for (PageId pid : pids)
+      policy.recordAccess(pid);
+  }
+
+  /**
+   * Unit test for LRUPolicy: the least recently used evictable page goes first.
+   */
+  @Test public void lru() {
+    ReplacementPolicy policy = new LRUPolicy();
+    access(policy, p[0], p[1], p[2], p[0]);
+    assertEquals(p[1], policy.chooseVictim(ANY));
+
+    final PageId pinned = p[1];
+    assertEquals(p[2], policy.chooseVictim(new ReplacementPolicy.Evictable() {
+      public boolean canEvict(PageId pid) {
+        return !pid.equals(pinned);
+      }
+    }));
+
+    policy.recordRemoval(p[1], true);
+    assertEquals(p[2], policy.chooseVictim(ANY));
+  }
+
+  /**
+   * Unit test for ClockPolicy: referenced pages get a second chance.
+   */
+  @Test public void clock() {
+    ReplacementPolicy policy = new ClockPolicy();
+    access(policy, p[0], p[1], p[2]);
+    // first sweep clears every bit, so the hand wraps around to p[0]
+    assertEquals(p[0], policy.chooseVictim(ANY));
+    policy.recordRemoval(p[0], true);
+    access(policy, p[3], p[1]);
+    // p[1] was touched again, p[2] was not
+    assertEquals(p[2], policy.chooseVictim(ANY));
+  }
+
+  /**
+   * Unit test for LRUKPolicy: pages referenced once are evicted before pages
+   * referenced K times, even if the latter were touched longer ago.
+   */
+  @Test public void lruK() {
+    ReplacementPolicy policy = new LRUKPolicy(2, 16);
+    access(policy, p[0], p[0], p[1], p[1]);
+    access(policy, p[2], p[3], p[4]);
+    assertEquals(p[2], policy.chooseVictim(ANY));
+    policy.recordRemoval(p[2], true);
+    policy.recordRemoval(p[3], true);
+    policy.recordRemoval(p[4], true);
+    assertEquals(p[0], policy.chooseVictim(ANY));
+
+    // p[2] comes back: its retained history makes it a twice-referenced page
+    access(policy, p[2]);
+    policy.recordRemoval(p[0], true);
+    assertEquals(p[1], policy.chooseVictim(ANY));
+  }
+
+  /**
+   * Unit test for TwoQPolicy: scan pages are evicted from A1in, pages that
+   * come back while remembered in A1out are promoted to Am.
+   */
+  @Test public void twoQ() {
+    ReplacementPolicy policy = new TwoQPolicy(1, 4);
+    access(policy, p[0]);
+    assertEquals(p[0], policy.chooseVictim(ANY));
+    policy.recordRemoval(p[0], true);
+    access(policy, p[0]);             // ghost hit, goes to Am
+    access(policy, p[1], p[2], p[3]); // a scan
+    assertEquals(p[1], policy.chooseVictim(ANY));
+    policy.recordRemoval(p[1], true);
+    assertEquals(p[2], policy.chooseVictim(ANY));
+    policy.recordRemoval(p[2], true);
+    // A1in is now within its target size, so Am gives up its LRU page
+    assertEquals(p[0], policy.chooseVictim(ANY));
+  }
+
+  /**
+   * A page that TwoQPolicy gives up from A1in is remembered in A1out only
+   * if it was evicted; a discarded page that comes back is a new page.
+   */
+  @Test public void twoQDiscard() {
+    ReplacementPolicy policy = new TwoQPolicy(1, 4);
+    access(policy, p[0]);
+    policy.recordRemoval(p[0], false);
+    access(policy, p[0], p[1], p[2]);
+    // p[0] went back to A1in, not to Am, so it is the first to go
+    assertEquals(p[0], policy.chooseVictim(ANY));
+  }
+
+  /**
+   * LRUKPolicy keeps the history of evicted pages, but not of discarded ones.
+   */
+  @Test public void lruKDiscard() {
+    ReplacementPolicy policy = new LRUKPolicy(2, 16);
+    access(policy, p[0], p[0], p[1]);
+    policy.recordRemoval(p[1], false);
+    access(policy, p[1]);
+    // p[1] is referenced once again, so it goes before p[0]
+    assertEquals(p[1], policy.chooseVictim(ANY));
+  }
+
+  /**
+   * Unit test that every policy reports when nothing can be evicted.
+   */
+  @Test public void noVictim() {
+    ReplacementPolicy.Evictable none = new ReplacementPolicy.Evictable() {
+      public boolean canEvict(PageId pid) {
+        return false;
+      }
+    };
+    ReplacementPolicy[] policies = { new LRUPolicy(), new ClockPolicy(),
+        new LRUKPolicy(), new TwoQPolicy(4) };
+    for (ReplacementPolicy policy : policies) {
+      access(policy, p[0], p[1]);
+      assertNull(policy.chooseVictim(none));
+    }
+  }
+
+  /**
+   * Unit test for the hit/miss counters maintained by BufferPool.getPage().
+   */
+  @Test public void bufferPoolCounters() throws Exception {
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 1025; ++i)
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    assertEquals(3, empty.numPages());
+
+    ReplacementPolicy policy = new ClockPolicy();
+    BufferPool bp = Database.resetBufferPool(2, policy);
+    tid = new TransactionId();
+    for (int i = 0; i < 3; i++)
+      bp.getPage(tid, new HeapPageId(empty.getId(), i), Permissions.READ_ONLY);
+    bp.getPage(tid, new HeapPageId(empty.getId(), 2), Permissions.READ_ONLY);
+    assertEquals(3, policy.getMisses());
+    assertEquals(1, policy.getHits());
+    assertTrue(policy.getHitRate() > 0.2 && policy.getHitRate() < 0.3);
+    bp.transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+  }
+}
@@ -0,0 +1,98 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SortMergeJoinTest {
+
+  /**
+   * For every supported operator, a sort-merge join produces the same tuples
+   * as a nested loops join over unsorted inputs, also after a rewind.
+   */
+  @Test public void matchesNestedLoops() throws Exception {
+    Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+        Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+        Predicate.Op.GREATER_THAN_OR_EQ };
+    Random r = new Random(42);
+    for (Predicate.Op op : ops) {
+      DbIterator left = TestUtil.randomTuples(r, 300, 2, 50);
+      DbIterator right = TestUtil.randomTuples(r, 200, 3, 50);
+      JoinPredicate pred = new JoinPredicate(1, op, 2);
+
+      Join nl = new Join(pred, left, right);
+      nl.open();
+      long[] expected = TestUtil.countAndSum(nl);
+      nl.close();
+      assertTrue(expected[0] > 0);
+
+      SortMergeJoin smj = new SortMergeJoin(pred, left, right);
+      assertEquals(nl.getTupleDesc(), smj.getTupleDesc());
+      smj.open();
+      long[] actual = TestUtil.countAndSum(smj);
+      assertEquals(op.toString(), expected[0], actual[0]);
+      assertEquals(op.toString(), expected[1], actual[1]);
+      smj.rewind();
+      actual = TestUtil.countAndSum(smj);
+      assertEquals(op.toString(), expected[0], actual[0]);
+      assertEquals(op.toString(), expected[1], actual[1]);
+      smj.close();
+    }
+  }
+
+  /**
+   * With a small memory budget, the sorts of the inputs and the tuples the
+   * merge holds go to disk, and the join still produces the same tuples as
+   * a nested loops join, also after a rewind.
+   */
+  @Test public void spillingMatchesNestedLoops() throws Exception {
+    Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+        Predicate.Op.GREATER_THAN_OR_EQ };
+    Random r = new Random(7);
+    for (Predicate.Op op : ops) {
+      // few keys, so a group of equal right keys does not fit either
+      DbIterator left = TestUtil.randomTuples(r, 400, 2, op == Predicate.Op.EQUALS ? 4 : 100);
+      DbIterator right = TestUtil.randomTuples(r, 400, 3, op == Predicate.Op.EQUALS ? 4 : 100);
+      JoinPredicate pred = new JoinPredicate(1, op, 2);
+
+      Join nl = new Join(pred, left, right);
+      nl.open();
+      long[] expected = TestUtil.countAndSum(nl);
+      nl.close();
+
+      SortMergeJoin smj = new SortMergeJoin(pred, left, right);
+      smj.setMemoryBudget(3 * 20 * OrderBy.tupleBytes(right.getTupleDesc()));
+      smj.open();
+      long[] actual = TestUtil.countAndSum(smj);
+      assertTrue(op.toString(), smj.hasSpilled());
+      assertEquals(op.toString(), expected[0], actual[0]);
+      assertEquals(op.toString(), expected[1], actual[1]);
+      smj.rewind();
+      actual = TestUtil.countAndSum(smj);
+      assertEquals(op.toString(), expected[0], actual[0]);
+      assertEquals(op.toString(), expected[1], actual[1]);
+      smj.close();
+    }
+  }
+
+  /**
+   * Joins that a sort-merge join cannot evaluate are rejected.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void unsupportedOperator() {
+    new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+        TestUtil.createTupleList(1, new int[] { 1 }),
+        TestUtil.createTupleList(1, new int[] { 1 }));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class SpillFileTest {
+
+  /**
+   * Rows written to a spill file are read back in order, by batch and by
+   * tuple, as often as needed.
+   */
+  @Test public void roundTrip() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    SpillFile f = new SpillFile(td);
+    TupleBatch b = new TupleBatch(td, 2000);
+    for (int i = 0; i < 2000; i++) {
+      int row = b.addRow();
+      b.setInt(0, row, i);
+      b.setString(1, row, "s" + i);
+    }
+    f.append(b);
+    Tuple t = new Tuple(td);
+    t.setField(0, new IntField(-1));
+    t.setField(1, new StringField("last", Type.STRING_LEN));
+    f.append(t);
+    assertEquals(2001, f.numRows());
+
+    BatchIterator it = f.iterator();
+    it.open();
+    int n = 0;
+    TupleBatch in;
+    while ((in = it.nextBatch()) != null) {
+      for (int i = 0; i < in.numSelected(); i++, n++) {
+        int r = in.selected(i);
+        assertEquals(n < 2000 ? n : -1, in.getInt(0, r));
+        assertEquals(n < 2000 ? "s" + n : "last", in.getString(1, r));
+      }
+    }
+    assertEquals(2001, n);
+    assertNull(it.nextBatch());
+
+    it.rewind();
+    for (n = 0; it.hasNext(); n++)
+      assertEquals(new IntField(n < 2000 ? n : -1), it.next().getField(0));
+    assertEquals(2001, n);
+    assertFalse(it.hasNext());
+    it.close();
+    f.delete();
+  }
+
+  /**
+   * A spill file only opens its writer on the first append, and can be
+   * appended to again after the writer is closed.
+   */
+  @Test public void lazyOutput() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE });
+    SpillFile f = new SpillFile(td, 512);
+    assertFalse(f.isOutputOpen());
+    BatchIterator it = f.iterator();
+    it.open();
+    assertNull(it.nextBatch());
+    it.close();
+
+    Tuple t = new Tuple(td);
+    for (int i = 0; i < 300; i++) {
+      t.setField(0, new IntField(i));
+      f.append(t);
+      assertTrue(f.isOutputOpen());
+      if (i == 100) {
+        f.closeOutput();
+        assertFalse(f.isOutputOpen());
+      }
+    }
+    it = f.iterator();
+    assertFalse(f.isOutputOpen());
+    it.open();
+    int n;
+    for (n = 0; it.hasNext(); n++)
+      assertEquals(new IntField(n), it.next().getField(0));
+    assertEquals(300, n);
+    it.close();
+    f.delete();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SpillFileTest.class);
+  }
+}
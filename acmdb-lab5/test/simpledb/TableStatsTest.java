@@ -151,4 +151,16 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Statistics of a B+ tree table are computed by a scan of the tree,
+	 * so its cardinality and selectivities are known to the planner.
+	 */
+	@Test public void btreeStatsTest() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, 32, null, null, 0);
+		TableStats s = new TableStats(bf.getId(), IO_COST);
+		Assert.assertEquals(2000, s.estimateTableCardinality(1.0));
+		Assert.assertEquals(1.0, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(100)), 0.001);
+		Assert.assertEquals(0.5, s.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(16)), 0.1);
+	}
 }
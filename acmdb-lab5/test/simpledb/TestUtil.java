@@ -13,6 +13,17 @@ public class TestUtil {
         return new IntField(n);
     }
 
+    /**
+     * @return an open DbIterator over rows tuples of width fields, whose
+     *   values r draws from 0 to maxValue - 1
+     */
+    public static TupleIterator randomTuples(Random r, int rows, int width, int maxValue) {
+        int[] data = new int[rows * width];
+        for (int i = 0; i < data.length; i++)
+            data[i] = r.nextInt(maxValue);
+        return createTupleList(width, data);
+    }
+
     /**
      * @return a DbIterator over a list of tuples constructed over the data
      *   provided in the constructor. This iterator is already open.
@@ -149,6 +160,24 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Counts the remaining tuples of an open DbIterator and sums up all of
+     * their integer fields, weighting each field by its position so that
+     * swapped columns are caught.
+     * @return the count, then the sum
+     */
+    public static long[] countAndSum(DbIterator it)
+        throws TransactionAbortedException, DbException {
+        long[] ans = new long[2];
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            ans[0]++;
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                ans[1] += (i + 1) * ((IntField) t.getField(i)).getValue();
+        }
+        return ans;
+    }
+
     /**
      * Verifies that the DbIterator has been exhausted of all elements.
      */
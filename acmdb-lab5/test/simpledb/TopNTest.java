@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  /**
+   * TopN returns the same keys, in the same order, as the first tuples of
+   * a full sort, also after a rewind.
+   */
+  @Test public void matchesOrderBy() throws Exception {
+    for (boolean asc : new boolean[] { true, false }) {
+      for (int limit : new int[] { 0, 1, 100, 5000, 6000 }) {
+        OrderBy sort = new OrderBy(0, asc, TestUtil.randomTuples(new Random(11), 5000, 2, 500));
+        TopN top = new TopN(0, asc, limit, TestUtil.randomTuples(new Random(11), 5000, 2, 500));
+        assertEquals(limit, top.getLimit());
+        sort.open();
+        top.open();
+        for (int pass = 0; pass < 2; pass++) {
+          int n = 0;
+          while (top.hasNext()) {
+            assertTrue(sort.hasNext());
+            assertEquals(sort.next().getField(0), top.next().getField(0));
+            n++;
+          }
+          assertEquals(Math.min(limit, 5000), n);
+          sort.rewind();
+          top.rewind();
+        }
+        sort.close();
+        top.close();
+      }
+    }
+  }
+
+  /**
+   * Limit returns the first tuples of its child.
+   */
+  @Test public void limit() throws Exception {
+    Limit op = new Limit(3, TestUtil.createTupleList(1, new int[] { 5, 4, 3, 2, 1 }));
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 5, 4, 3 }), op);
+    op.rewind();
+    assertTrue(op.hasNext());
+    op.close();
+  }
+
+  /**
+   * A trailing LIMIT clause is parsed into the plan, which then ends in a
+   * TopN after ORDER BY and in a Limit otherwise.
+   */
+  @Test public void parseLimit() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, 1000, null, tuples, "c");
+    Database.getCatalog().addTable(f, "TOPN");
+    TableStats.setTableStats("TOPN", new TableStats(f.getId(), 1));
+    ArrayList<Integer> keys = new ArrayList<Integer>();
+    for (ArrayList<Integer> t : tuples) keys.add(t.get(0));
+    Collections.sort(keys, Collections.reverseOrder());
+
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT t.c0 FROM TOPN t ORDER BY t.c0 DESC LIMIT 7;");
+    assertEquals(7, lp.getLimit());
+    DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+    plan.open();
+    for (int i = 0; i < 7; i++)
+      assertEquals(new IntField(keys.get(i)), plan.next().getField(0));
+    assertFalse(plan.hasNext());
+    plan.close();
+
+    lp = p.generateLogicalPlan(tid, "SELECT t.c0 FROM TOPN t limit 4");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+    plan.open();
+    for (int i = 0; i < 4; i++) plan.next();
+    assertFalse(plan.hasNext());
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+  /**
+   * Reads all live rows of a BatchIterator as lists of ints.
+   */
+  private static ArrayList<ArrayList<Integer>> drain(BatchIterator it) throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    TupleBatch b;
+    while ((b = it.nextBatch()) != null) {
+      assertTrue(b.numSelected() > 0);
+      for (int i = 0; i < b.numSelected(); i++)
+        rows.add(SystemTestUtil.tupleToList(b.getTuple(b.selected(i))));
+    }
+    return rows;
+  }
+
+  /**
+   * A SeqScan returns the same rows, with their record ids, by batch as by
+   * tuple.
+   */
+  @Test public void seqScanBatches() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 3000, null, tuples);
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId());
+    scan.open();
+    assertEquals(tuples, drain(scan));
+
+    scan.rewind();
+    TupleBatch b = scan.nextBatch();
+    assertEquals(TupleBatch.DEFAULT_CAPACITY, b.size());
+    assertEquals(new RecordId(new HeapPageId(f.getId(), 0), 0), b.getRecordId(0));
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Filter over a tuple at a time child narrows the selection vector.
+   */
+  @Test public void filterOverAdapter() throws Exception {
+    Predicate pred = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(3));
+    Filter op = new Filter(pred, new TestUtil.MockScan(-5, 5, 2));
+    op.open();
+    TupleBatch b = op.nextBatch();
+    assertEquals(10, b.size());
+    assertEquals(2, b.numSelected());
+    assertEquals(3, b.getInt(1, b.selected(0)));
+    assertEquals(4, b.getInt(1, b.selected(1)));
+    assertNull(op.nextBatch());
+
+    op.rewind();
+    TestUtil.compareDbIterators(new TestUtil.MockScan(3, 5, 2), op);
+    op.close();
+  }
+
+  /**
+   * Project shares the column vectors of its child's batches.
+   */
+  @Test public void projectBatch() throws Exception {
+    TupleIterator child = TestUtil.createTupleList(2, new int[] { 1, 10, 2, 20, 3, 30 });
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(1);
+    ArrayList<Type> types = new ArrayList<Type>();
+    types.add(Type.INT_TYPE);
+    Filter filter = new Filter(new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(2)), child);
+    Project op = new Project(fields, types, filter);
+    op.open();
+    TupleBatch b = op.nextBatch();
+    assertEquals(1, b.getTupleDesc().numFields());
+    assertEquals(2, b.numSelected());
+    assertEquals(10, b.getInt(0, b.selected(0)));
+    assertEquals(30, b.getInt(0, b.selected(1)));
+    op.close();
+  }
+
+  /**
+   * A scan, filter, join and aggregate plan gives the same answer read by
+   * batch and by tuple.
+   */
+  @Test public void joinAggregate() throws Exception {
+    TupleIterator left = TestUtil.createTupleList(2, new int[] { 1, 1, 2, 2, 3, 3 });
+    TupleIterator right = TestUtil.createTupleList(2, new int[] { 1, 5, 1, 6, 3, 7, 4, 8 });
+    HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right);
+    join.open();
+    ArrayList<ArrayList<Integer>> rows = drain(join);
+    assertEquals(3, rows.size());
+    assertEquals(4, rows.get(0).size());
+    join.rewind();
+    int n = 0;
+    while (join.hasNext()) {
+      assertEquals(rows.get(n++), SystemTestUtil.tupleToList(join.next()));
+    }
+    assertEquals(3, n);
+    join.close();
+
+    Aggregate sum = new Aggregate(join, 3, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+    sum.open();
+    TupleBatch b = sum.nextBatch();
+    assertEquals(1, b.numSelected());
+    assertEquals(18, b.getInt(0, 0));
+    assertNull(sum.nextBatch());
+    sum.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}
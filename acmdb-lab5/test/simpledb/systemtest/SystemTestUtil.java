@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -94,6 +95,27 @@ public class SystemTestUtil {
         return list;
     }
 
+    /** @return the remaining tuples of an open iterator as lists of their fields */
+    public static ArrayList<ArrayList<Integer>> drain(DbIterator iterator)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> ans = new ArrayList<ArrayList<Integer>>();
+        while (iterator.hasNext())
+            ans.add(tupleToList(iterator.next()));
+        return ans;
+    }
+
+    /** Sorts lists of fields by their first field, then the next, and so on; returns them. */
+    public static ArrayList<ArrayList<Integer>> sorted(ArrayList<ArrayList<Integer>> tuples) {
+        Collections.sort(tuples, (a, b) -> {
+            for (int i = 0; i < a.size(); i++) {
+                int c = Integer.compare(a.get(i), b.get(i));
+                if (c != 0) return c;
+            }
+            return 0;
+        });
+        return tuples;
+    }
+
     public static void matchTuples(DbFile f, List<ArrayList<Integer>> tuples)
             throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();